@@ -0,0 +1,76 @@
+package org.theparanoidtimes.tabellarium.benchmark;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * Builds the messages used by benchmarks.
+ *
+ * @author djosifovic
+ */
+public final class BenchmarkMessages {
+
+    /**
+     * Session used for building messages.
+     */
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    /**
+     * Not instantiable.
+     */
+    private BenchmarkMessages() {
+    }
+
+    /**
+     * Builds a saved multipart message with a text part and an attachment, of
+     * roughly the passed size.
+     *
+     * @param index       index of the message, used in its subject.
+     * @param contentSize the size of the content in bytes.
+     * @return a new message.
+     * @throws Exception if the message can't be built.
+     */
+    public static MimeMessage multipartMessage(int index, int contentSize) throws Exception {
+        MimeMessage message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress("sender" + index + "@localhost"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress("user@localhost"));
+        message.setSubject("Benchmark message " + index);
+        message.setSentDate(new Date());
+        message.setHeader("X-Benchmark-Index", Integer.toString(index));
+
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText(content('t', contentSize / 2));
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setText(content('a', contentSize - contentSize / 2));
+        attachment.setFileName("attachment" + index + ".txt");
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * Returns text content of passed size made of lines of passed character.
+     *
+     * @param character the character to fill the text with.
+     * @param size      the size of the text.
+     * @return the text.
+     */
+    private static String content(char character, int size) {
+        StringBuilder builder = new StringBuilder(size);
+        char[] line = new char[75];
+        Arrays.fill(line, character);
+        while (builder.length() < size)
+            builder.append(line).append("\r\n");
+        builder.setLength(size);
+        return builder.toString();
+    }
+}
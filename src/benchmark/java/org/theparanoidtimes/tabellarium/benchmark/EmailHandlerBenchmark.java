@@ -0,0 +1,133 @@
+package org.theparanoidtimes.tabellarium.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theparanoidtimes.tabellarium.handlers.ChangeMessageFlagEmailHandler;
+import org.theparanoidtimes.tabellarium.handlers.PrintingEmailHandler;
+
+import javax.mail.Flags;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bundled handlers on detached messages, without a mailbox.
+ *
+ * @author djosifovic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailHandlerBenchmark {
+
+    /**
+     * The size of the message content in bytes.
+     */
+    @Param({"4096", "262144"})
+    public int contentSize;
+
+    /**
+     * The message to handle.
+     */
+    private MimeMessage message;
+
+    /**
+     * The buffer the printing handler prints to.
+     */
+    private ByteArrayOutputStream printed;
+
+    /**
+     * The printing handler.
+     */
+    private PrintingEmailHandler printingEmailHandler;
+
+    /**
+     * The printing handler which prints only headers.
+     */
+    private PrintingEmailHandler headersPrintingEmailHandler;
+
+    /**
+     * The flag handler which filters messages by their flags.
+     */
+    private ChangeMessageFlagEmailHandler filteringFlagEmailHandler;
+
+    /**
+     * Builds the message and the handlers.
+     *
+     * @throws Exception if the message can't be built.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        message = BenchmarkMessages.multipartMessage(0, contentSize);
+        message.setFlags(new Flags(Flags.Flag.SEEN), true);
+        message.setFlags(new Flags("custom"), true);
+        printed = new ByteArrayOutputStream(2 * contentSize);
+        PrintStream printStream = new PrintStream(printed, false, "UTF-8");
+        printingEmailHandler = new PrintingEmailHandler(printStream);
+        headersPrintingEmailHandler = new PrintingEmailHandler(printStream);
+        headersPrintingEmailHandler.setPrintHeadersOnly(true);
+        filteringFlagEmailHandler = new ChangeMessageFlagEmailHandler(Arrays.asList("seen", "custom"), "flagged", true);
+    }
+
+    /**
+     * Renders the whole message.
+     *
+     * @return the number of printed bytes.
+     * @throws Exception if the message can't be printed.
+     */
+    @Benchmark
+    public int printEmail() throws Exception {
+        printed.reset();
+        printingEmailHandler.handleEmail(message);
+        return printed.size();
+    }
+
+    /**
+     * Renders only the message headers.
+     *
+     * @return the number of printed bytes.
+     * @throws Exception if the message can't be printed.
+     */
+    @Benchmark
+    public int printEmailHeaders() throws Exception {
+        printed.reset();
+        headersPrintingEmailHandler.handleEmail(message);
+        return printed.size();
+    }
+
+    /**
+     * Constructs a flag handler, which builds its flag name mappings.
+     *
+     * @return the handler.
+     */
+    @Benchmark
+    public ChangeMessageFlagEmailHandler constructFlagHandler() {
+        return new ChangeMessageFlagEmailHandler("seen", true);
+    }
+
+    /**
+     * Changes flags of a message that matches the filter flags.
+     *
+     * @return the message flags.
+     * @throws Exception if the flags can't be changed.
+     */
+    @Benchmark
+    public Flags changeFlags() throws Exception {
+        filteringFlagEmailHandler.handleEmail(message);
+        return message.getFlags();
+    }
+}
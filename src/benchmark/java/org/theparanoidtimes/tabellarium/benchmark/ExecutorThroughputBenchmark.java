@@ -0,0 +1,149 @@
+package org.theparanoidtimes.tabellarium.benchmark;
+
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.store.StoredMessage;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theparanoidtimes.tabellarium.imap.ImapMailboxFolderTaskExecutor;
+import org.theparanoidtimes.tabellarium.imap.InMemoryUidCheckpointStore;
+
+import javax.mail.Flags;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end-to-end <pre>retrieveEmails</pre> and
+ * <pre>executeForEachEmail</pre> against an embedded GreenMail server seeded
+ * with <pre>messageCount</pre> messages. The executor uses the default flag
+ * handling and nothing is deleted; the SEEN flag of every message is cleared
+ * before each invocation, so every invocation processes the same messages.
+ * With <pre>uidCheckpoints</pre> false the messages are found with the
+ * default NOT DELETED and NOT SEEN search, otherwise each invocation starts
+ * with an empty UID checkpoint store, which finds them with a UID range and
+ * filters out seen ones on the client.
+ *
+ * @author djosifovic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExecutorThroughputBenchmark {
+
+    /**
+     * The port of the embedded IMAP server.
+     */
+    private static final int PORT = 31993;
+
+    /**
+     * The number of messages in the mailbox.
+     */
+    @Param({"1000", "5000"})
+    public int messageCount;
+
+    /**
+     * The number of messages fetched with a single command.
+     */
+    @Param({"100"})
+    public int prefetchSize;
+
+    /**
+     * If true, messages are found with a UID checkpoint store instead of the
+     * default search.
+     */
+    @Param({"false", "true"})
+    public boolean uidCheckpoints;
+
+    /**
+     * The embedded IMAP server.
+     */
+    private GreenMail greenMail;
+
+    /**
+     * The seeded mailbox.
+     */
+    private MailFolder inbox;
+
+    /**
+     * The measured executor.
+     */
+    private ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * Starts the server and seeds the mailbox.
+     *
+     * @throws Exception if the server can't be started or seeded.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        greenMail = new GreenMail(new ServerSetup(PORT, null, "imap"));
+        greenMail.start();
+        GreenMailUser user = greenMail.setUser("user@localhost", "password");
+        inbox = greenMail.getManagers().getImapHostManager().getInbox(user);
+        for (int i = 0; i < messageCount; i++)
+            inbox.appendMessage(BenchmarkMessages.multipartMessage(i, 4096), new Flags(), new Date());
+
+        executor = new ImapMailboxFolderTaskExecutor("localhost", PORT, "user@localhost", "password", "INBOX", false);
+        executor.setPrefetchSize(prefetchSize);
+    }
+
+    /**
+     * Marks all messages as not seen and resets the UID checkpoints, so the
+     * next invocation processes all messages again.
+     */
+    @Setup(Level.Invocation)
+    public void resetMailbox() {
+        for (StoredMessage message : inbox.getMessages())
+            message.setFlag(Flags.Flag.SEEN, false);
+        if (uidCheckpoints)
+            executor.setUidCheckpointStore(new InMemoryUidCheckpointStore());
+    }
+
+    /**
+     * Stops the server and closes pooled connections.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.close();
+        greenMail.stop();
+    }
+
+    /**
+     * Retrieves copies of all messages.
+     *
+     * @return the number of retrieved messages.
+     * @throws Exception if the e-mails can't be retrieved.
+     */
+    @Benchmark
+    public int retrieveEmails() throws Exception {
+        return executor.retrieveEmails().size();
+    }
+
+    /**
+     * Invokes a handler which reads the subject of each message.
+     *
+     * @param blackhole consumes the subjects.
+     * @throws Exception if the task fails.
+     */
+    @Benchmark
+    public void executeForEachEmail(Blackhole blackhole) throws Exception {
+        executor.executeForEachEmail(message -> blackhole.consume(message.getSubject()));
+    }
+}
@@ -0,0 +1,90 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theparanoidtimes.tabellarium.api.UnlinkedEmailHandler;
+import org.theparanoidtimes.tabellarium.benchmark.BenchmarkMessages;
+
+import javax.mail.Message;
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures copying of messages by
+ * <pre>{@link ImapMailboxFolderTaskExecutor#copyOf(Message)}</pre> and
+ * <pre>{@link UnlinkedEmailHandler}</pre>.
+ *
+ * @author djosifovic
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCopyBenchmark {
+
+    /**
+     * The size of the message content in bytes.
+     */
+    @Param({"4096", "262144"})
+    public int contentSize;
+
+    /**
+     * The executor whose copy is measured. It never connects.
+     */
+    private ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The message to copy.
+     */
+    private MimeMessage message;
+
+    /**
+     * Builds the message to copy.
+     *
+     * @throws Exception if the message can't be built.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        executor = new ImapMailboxFolderTaskExecutor("localhost", "user@localhost", "password", "INBOX");
+        message = BenchmarkMessages.multipartMessage(0, contentSize);
+    }
+
+    /**
+     * Copies the message as the executor does when retrieving e-mails.
+     *
+     * @return the copy.
+     * @throws Exception if the message can't be copied.
+     */
+    @Benchmark
+    public Message copyOf() throws Exception {
+        return executor.copyOf(message);
+    }
+
+    /**
+     * Copies the message through an <pre>{@link UnlinkedEmailHandler}</pre>.
+     *
+     * @param blackhole consumes the copy.
+     * @throws Exception if the message can't be copied.
+     */
+    @Benchmark
+    public void unlinkedEmailHandler(Blackhole blackhole) throws Exception {
+        new UnlinkedEmailHandler() {
+            @Override
+            protected void doHandleEmail(Message message) {
+                blackhole.consume(message);
+            }
+        }.handleEmail(message);
+    }
+}
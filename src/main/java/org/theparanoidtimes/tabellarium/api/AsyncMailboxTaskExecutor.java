@@ -0,0 +1,52 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import javax.mail.Message;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The asynchronous variant of <pre>{@link MailboxTaskExecutor}</pre>. Each
+ * task runs on an I/O executor and its result is delivered through a
+ * <pre>{@link CompletableFuture}</pre>, so the calling thread is not blocked
+ * for the connect, search and fetch cycle. Failed tasks complete the future
+ * exceptionally with a <pre>{@link MailBoxTaskExecutorException}</pre>.
+ *
+ * Cancelling a future interrupts its task, which stops before the next
+ * e-mail.
+ *
+ * @author djosifovic
+ */
+public interface AsyncMailboxTaskExecutor {
+
+    /**
+     * Retrieves all e-mail from the specified location (mailbox, folder etc).
+     *
+     * @return a future of the list of retrieved e-mails.
+     */
+    CompletableFuture<List<Message>> retrieveEmailsAsync();
+
+    /**
+     * Checks if there are more e-mails in the specified location.
+     *
+     * @return a future which is true if there are more e-mails in the
+     * specified location, otherwise false.
+     */
+    CompletableFuture<Boolean> areThereRemainingEmailsAsync();
+
+    /**
+     * Invokes the passed handler on each e-mail in the specified location.
+     *
+     * @param emailHandler the handler for each e-mail.
+     * @return a future which completes when all e-mails are handled.
+     */
+    CompletableFuture<Void> executeForEachEmailAsync(EmailHandler emailHandler);
+
+    /**
+     * Invokes the passed handler on chunks of e-mails in the specified
+     * location.
+     *
+     * @param batchEmailHandler the handler for each chunk of e-mails.
+     * @return a future which completes when all chunks are handled.
+     */
+    CompletableFuture<Void> executeForEachBatchAsync(BatchEmailHandler batchEmailHandler);
+}
@@ -0,0 +1,224 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import javax.mail.Message;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An <pre>{@link AsyncMailboxTaskExecutor}</pre> which runs the tasks of a
+ * <pre>{@link MailboxTaskExecutor}</pre> on the given I/O executor. Tasks
+ * which don't complete within the timeout are completed with a
+ * <pre>{@link TimeoutException}</pre> and interrupted, like cancelled ones.
+ *
+ * @author djosifovic
+ */
+public class AsyncMailboxTaskExecutorAdapter implements AsyncMailboxTaskExecutor {
+
+    /**
+     * The scheduler which times out tasks.
+     */
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tabellarium-async-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The executor which runs the tasks.
+     */
+    private final MailboxTaskExecutor mailboxTaskExecutor;
+
+    /**
+     * The executor on which tasks run.
+     */
+    private final Executor ioExecutor;
+
+    /**
+     * The maximum time, in milliseconds, a task can run. If it is zero tasks
+     * are not timed out.
+     */
+    private long timeout = 0;
+
+    /**
+     * Constructs a new adapter.
+     *
+     * @param mailboxTaskExecutor the executor which runs the tasks.
+     * @param ioExecutor          the executor on which tasks run.
+     */
+    public AsyncMailboxTaskExecutorAdapter(MailboxTaskExecutor mailboxTaskExecutor, Executor ioExecutor) {
+        if (mailboxTaskExecutor == null)
+            throw new IllegalArgumentException("Mailbox task executor must not be null!");
+        if (ioExecutor == null)
+            throw new IllegalArgumentException("I/O executor must not be null!");
+        this.mailboxTaskExecutor = mailboxTaskExecutor;
+        this.ioExecutor = ioExecutor;
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> retrieveEmailsAsync() {
+        return submit(mailboxTaskExecutor::retrieveEmails);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> areThereRemainingEmailsAsync() {
+        return submit(mailboxTaskExecutor::areThereRemainingEmails);
+    }
+
+    @Override
+    public CompletableFuture<Void> executeForEachEmailAsync(EmailHandler emailHandler) {
+        return submit(() -> {
+            mailboxTaskExecutor.executeForEachEmail(emailHandler);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> executeForEachBatchAsync(BatchEmailHandler batchEmailHandler) {
+        return submit(() -> {
+            mailboxTaskExecutor.executeForEachBatch(batchEmailHandler);
+            return null;
+        });
+    }
+
+    /**
+     * Submits the task to the I/O executor and schedules its timeout.
+     *
+     * @param <T>  the result type of the task.
+     * @param task the task to run.
+     * @return the future of the task.
+     */
+    private <T> CompletableFuture<T> submit(Callable<T> task) {
+        TaskFuture<T> future = new TaskFuture<>(task);
+        try {
+            ioExecutor.execute(future);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (timeout > 0) {
+            ScheduledFuture<?> timeoutCheck = TIMEOUT_SCHEDULER.schedule(future::timeOut, timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete((result, error) -> timeoutCheck.cancel(false));
+        }
+        return future;
+    }
+
+    /**
+     * Returns the executor which runs the tasks.
+     *
+     * @return the mailbox task executor.
+     */
+    public MailboxTaskExecutor getMailboxTaskExecutor() {
+        return mailboxTaskExecutor;
+    }
+
+    /**
+     * Returns the executor on which tasks run.
+     *
+     * @return the I/O executor.
+     */
+    public Executor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    /**
+     * Returns the timeout.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, a task can run. If it is zero,
+     * which is the default, tasks are not timed out.
+     *
+     * @param timeout the timeout to set.
+     */
+    public void setTimeout(long timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Timeout must be either zero or positive!");
+        this.timeout = timeout;
+    }
+
+    /**
+     * A future which runs its task and interrupts it when it is cancelled or
+     * timed out.
+     *
+     * @param <T> the result type of the task.
+     */
+    private final class TaskFuture<T> extends CompletableFuture<T> implements Runnable {
+
+        /**
+         * The task to run.
+         */
+        private final Callable<T> task;
+
+        /**
+         * The thread which runs the task or null if it is not running.
+         */
+        private Thread runner;
+
+        /**
+         * Constructs a new future.
+         *
+         * @param task the task to run.
+         */
+        private TaskFuture(Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isDone())
+                    return;
+                runner = Thread.currentThread();
+            }
+            try {
+                complete(task.call());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                // Clears an interrupt which arrived after the task stopped, so it doesn't leak to the next task.
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled)
+                interruptRunner();
+            return cancelled;
+        }
+
+        /**
+         * Completes the future with a <pre>{@link TimeoutException}</pre> and
+         * interrupts the task if it is still running.
+         */
+        private void timeOut() {
+            if (completeExceptionally(new TimeoutException("The task did not complete in " + timeout + " ms!")))
+                interruptRunner();
+        }
+
+        /**
+         * Interrupts the thread which runs the task, if any.
+         */
+        private synchronized void interruptRunner() {
+            if (runner != null)
+                runner.interrupt();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import javax.mail.Message;
+import java.util.List;
+
+/**
+ * The handler for a chunk of e-mails, for sinks which work better with bulk
+ * operations like database inserts or queue publishes.
+ *
+ * @author djosifovic
+ */
+public interface BatchEmailHandler {
+
+    /**
+     * Handles a chunk of e-mail messages. The returned result tells which
+     * messages of the chunk were handled successfully; flags of the others are
+     * reverted. If an exception is thrown, the whole chunk is treated as
+     * failed.
+     *
+     * @param messages javax.mail.Message chunk to handle, in folder order.
+     * @return the result of the chunk handling.
+     * @throws Exception if an error occurs.
+     */
+    BatchResult handleEmails(List<Message> messages) throws Exception;
+}
@@ -0,0 +1,104 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import java.util.BitSet;
+
+/**
+ * The result of handling a chunk of e-mails by a
+ * <pre>{@link BatchEmailHandler}</pre>. A chunk is either handled completely,
+ * failed completely or failed for some of its messages, identified by their
+ * index in the chunk.
+ *
+ * @author djosifovic
+ */
+public final class BatchResult {
+
+    /**
+     * The result of a completely handled chunk.
+     */
+    private static final BatchResult SUCCESS = new BatchResult(false, new BitSet());
+
+    /**
+     * The result of a completely failed chunk.
+     */
+    private static final BatchResult FAILURE = new BatchResult(true, new BitSet());
+
+    /**
+     * A flag indicating that the whole chunk failed.
+     */
+    private final boolean chunkFailed;
+
+    /**
+     * Indexes of failed messages when only some messages failed.
+     */
+    private final BitSet failedIndexes;
+
+    /**
+     * Constructs a new result.
+     *
+     * @param chunkFailed   true if the whole chunk failed.
+     * @param failedIndexes indexes of failed messages.
+     */
+    private BatchResult(boolean chunkFailed, BitSet failedIndexes) {
+        this.chunkFailed = chunkFailed;
+        this.failedIndexes = failedIndexes;
+    }
+
+    /**
+     * Returns the result of a chunk whose messages were all handled.
+     *
+     * @return a success result.
+     */
+    public static BatchResult success() {
+        return SUCCESS;
+    }
+
+    /**
+     * Returns the result of a chunk whose handling failed as a whole.
+     *
+     * @return a failure result.
+     */
+    public static BatchResult failure() {
+        return FAILURE;
+    }
+
+    /**
+     * Returns the result of a chunk in which only the messages with passed
+     * indexes failed.
+     *
+     * @param indexes indexes of the failed messages in the chunk.
+     * @return a partial failure result.
+     */
+    public static BatchResult failed(int... indexes) {
+        BitSet failedIndexes = new BitSet();
+        for (int index : indexes) {
+            if (index < 0)
+                throw new IllegalArgumentException("Failed index must be either zero or positive!");
+            failedIndexes.set(index);
+        }
+        return new BatchResult(false, failedIndexes);
+    }
+
+    /**
+     * Returns true if the whole chunk failed.
+     *
+     * @return true if the whole chunk failed, otherwise false.
+     */
+    public boolean isChunkFailed() {
+        return chunkFailed;
+    }
+
+    /**
+     * Returns true if the message with passed index in the chunk failed.
+     *
+     * @param index index of the message in the chunk.
+     * @return true if the message failed, otherwise false.
+     */
+    public boolean isFailed(int index) {
+        return chunkFailed || failedIndexes.get(index);
+    }
+
+    @Override
+    public String toString() {
+        return chunkFailed ? "BatchResult{chunkFailed}" : "BatchResult{failed=" + failedIndexes + "}";
+    }
+}
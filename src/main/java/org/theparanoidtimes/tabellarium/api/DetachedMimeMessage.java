@@ -0,0 +1,217 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A copy of a <pre>{@link MimeMessage}</pre> which takes the headers and
+ * flags of the source message eagerly and downloads the body only the first
+ * time it is read, through the content, data handler, input streams or
+ * <pre>writeTo</pre>. Handlers which read only the headers never download the
+ * body and attachments.
+ *
+ * Until the body is downloaded the copy depends on the source message, so its
+ * folder must stay open. Call <pre>{@link #load()}</pre> to download the body
+ * while the folder is open if the copy is kept after that, or
+ * <pre>{@link #unlink()}</pre> if only the headers are needed. Reading the
+ * body of an unlinked copy throws a <pre>MessagingException</pre>, so it
+ * can't be mistaken for an empty message.
+ *
+ * A body spilled by the spool to a temporary file keeps it open until the
+ * copy is closed, see <pre>{@link MessageSpool#release(javax.mail.Message)}</pre>.
+ *
+ * @author djosifovic
+ */
+public class DetachedMimeMessage extends MimeMessage implements AutoCloseable {
+
+    /**
+     * The source message or null once the body is downloaded.
+     */
+    private MimeMessage source;
+
+    /**
+     * The spool which holds the downloaded body.
+     */
+    private final MessageSpool spool;
+
+    /**
+     * Guards the download of the body, which is not done while holding a
+     * monitor so virtual threads are not pinned to their carrier.
+     */
+    private final ReentrantLock loadLock = new ReentrantLock();
+
+    /**
+     * A flag indicating that the copy was unlinked before its body was
+     * downloaded, so it has only the headers.
+     */
+    private boolean headersOnly = false;
+
+    /**
+     * Constructs a new copy of the message which keeps the body on the heap.
+     * Only the headers and flags are read from the source message.
+     *
+     * @param source the message to copy.
+     * @throws MessagingException if the headers or flags can't be read.
+     */
+    public DetachedMimeMessage(MimeMessage source) throws MessagingException {
+        this(source, MessageSpool.IN_MEMORY);
+    }
+
+    /**
+     * Constructs a new copy of the message which keeps the body in the
+     * spool. Only the headers and flags are read from the source message.
+     *
+     * @param source the message to copy.
+     * @param spool  the spool for the body.
+     * @throws MessagingException if the headers or flags can't be read.
+     */
+    public DetachedMimeMessage(MimeMessage source, MessageSpool spool) throws MessagingException {
+        super((Session) null);
+        this.spool = spool;
+        this.headers = new InternetHeaders();
+        @SuppressWarnings("unchecked")
+        Enumeration<String> headerLines = source.getAllHeaderLines();
+        while (headerLines.hasMoreElements())
+            this.headers.addHeaderLine(headerLines.nextElement());
+        this.flags = source.getFlags();
+        this.source = source;
+        this.modified = false;
+        this.saved = true;
+    }
+
+    /**
+     * Downloads the body from the source message if it was not downloaded
+     * yet. After that the copy no longer depends on the source message.
+     *
+     * @throws MessagingException if the body can't be downloaded.
+     */
+    public void load() throws MessagingException {
+        loadLock.lock();
+        try {
+            if (source == null)
+                return;
+            try (InputStream rawContent = source.getRawInputStream()) {
+                this.contentStream = spool.spool(rawContent);
+            } catch (IOException e) {
+                throw new MessagingException("Could not download the message body.", e);
+            }
+            source = null;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the link to the source message without downloading the body. If
+     * the copy was not loaded before, reading its body throws a
+     * <pre>MessagingException</pre> after that and its size is -1.
+     */
+    public void unlink() {
+        loadLock.lock();
+        try {
+            if (source == null)
+                return;
+            headersOnly = true;
+            source = null;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the downloaded body, freeing its temporary file if the spool
+     * spilled it, and drops the link to the source message. The body of a
+     * spilled copy can't be read after that, a copy closed before it was
+     * loaded has only the headers.
+     *
+     * @throws IOException if the body can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        loadLock.lock();
+        try {
+            if (source != null) {
+                headersOnly = true;
+                source = null;
+            } else if (contentStream != null)
+                contentStream.close();
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the copy no longer depends on the source message,
+     * because its body was downloaded or it was unlinked.
+     *
+     * @return true if the body is downloaded or unlinked, otherwise false.
+     */
+    public boolean isLoaded() {
+        loadLock.lock();
+        try {
+            return source == null;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the copy was unlinked before its body was downloaded,
+     * so it has only the headers.
+     *
+     * @return true if the copy has only the headers, otherwise false.
+     */
+    public boolean isHeadersOnly() {
+        loadLock.lock();
+        try {
+            return headersOnly;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Downloads the body first if it was not downloaded yet.
+     *
+     * @return the raw body stream.
+     * @throws MessagingException if the body can't be downloaded or the copy
+     *                            has only the headers.
+     */
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+        load();
+        checkBody();
+        return super.getContentStream();
+    }
+
+    /**
+     * {@inheritDoc}
+     * Downloads the body first if it was not downloaded yet.
+     *
+     * @return the data handler of the body.
+     * @throws MessagingException if the copy has only the headers.
+     */
+    @Override
+    public DataHandler getDataHandler() throws MessagingException {
+        checkBody();
+        return super.getDataHandler();
+    }
+
+    /**
+     * Throws if the copy has only the headers.
+     *
+     * @throws MessagingException if the copy has only the headers.
+     */
+    private void checkBody() throws MessagingException {
+        if (isHeadersOnly())
+            throw new MessagingException("The body of the message was not downloaded, the copy has only the headers!");
+    }
+}
@@ -0,0 +1,36 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * An <pre>{@link UnlinkedEmailHandler}</pre> whose copies are
+ * <pre>{@link DetachedMimeMessage}</pre> instances, so the body of a message
+ * is downloaded only if the handler reads it. Handlers which look only at the
+ * headers never download bodies and attachments.
+ *
+ * The copy is usable only while the handler runs. When the handler returns
+ * it is released, so a copy whose body was not read has only the headers
+ * after that and reading its body throws a <pre>MessagingException</pre>.
+ * A handler which keeps the copy or hands it to another thread must copy it
+ * itself.
+ *
+ * @author djosifovic
+ */
+public abstract class LazyUnlinkedEmailHandler extends UnlinkedEmailHandler {
+
+    /**
+     * {@inheritDoc}
+     * The copy takes the headers and flags eagerly and downloads the body on
+     * first read.
+     *
+     * @param message the message to copy.
+     * @return a copy of the message.
+     * @throws MessagingException if the headers or flags can't be read.
+     */
+    @Override
+    protected Message copyOf(MimeMessage message) throws MessagingException {
+        return new DetachedMimeMessage(message, getMessageSpool());
+    }
+}
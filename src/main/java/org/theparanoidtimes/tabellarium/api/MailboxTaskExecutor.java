@@ -1,6 +1,7 @@
 package org.theparanoidtimes.tabellarium.api;
 
 import javax.mail.Message;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -38,6 +39,27 @@ public interface MailboxTaskExecutor {
      */
     void executeForEachEmail(EmailHandler emailHandler) throws MailBoxTaskExecutorException;
 
+    /**
+     * Invokes the passed handler on chunks of e-mails in the specified
+     * location.
+     *
+     * The default implementation hands each e-mail to the handler as a chunk
+     * of one through <pre>{@link #executeForEachEmail(EmailHandler)}</pre>, and
+     * an e-mail whose result is failed is treated as an e-mail whose handling
+     * threw an exception. Implementations should override it to handle real
+     * chunks.
+     *
+     * @param batchEmailHandler the handler for each chunk of e-mails.
+     * @throws MailBoxTaskExecutorException if executor can't execute due to an
+     *                                      error.
+     */
+    default void executeForEachBatch(BatchEmailHandler batchEmailHandler) throws MailBoxTaskExecutorException {
+        executeForEachEmail(message -> {
+            if (batchEmailHandler.handleEmails(Collections.singletonList(message)).isFailed(0))
+                throw new MailBoxTaskExecutorException("Handling of e-mail failed!");
+        });
+    }
+
     /**
      * This flag should indicate should seen e-mails also be retrieved.
      *
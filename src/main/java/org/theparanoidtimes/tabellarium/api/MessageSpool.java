@@ -0,0 +1,273 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Holds the content of copied messages. Content up to the spill threshold is
+ * kept on the heap, larger content is written to a temporary file and read
+ * back through a <pre>{@link SharedFileInputStream}</pre>, so the heap used by
+ * a copy does not depend on the size of its attachments.
+ *
+ * The temporary file is deleted right after it is opened, where the platform
+ * allows it, otherwise when the JVM exits. It stays open, holding a file
+ * descriptor and its disk space, until the copy is released with
+ * <pre>{@link #release(Message)}</pre> or garbage collected. Copies handed to
+ * handlers are released when the handler returns; copies returned by
+ * <pre>retrieveEmails</pre>, streams and publishers must be released by the
+ * caller.
+ *
+ * @author djosifovic
+ */
+public final class MessageSpool {
+
+    /**
+     * A spool which keeps all content on the heap.
+     */
+    public static final MessageSpool IN_MEMORY = new MessageSpool(0, null);
+
+    /**
+     * Content larger then this number of bytes is written to a temporary
+     * file. If it is zero all content is kept on the heap.
+     */
+    private final long spillThreshold;
+
+    /**
+     * The directory of temporary files or null for the default temporary
+     * directory.
+     */
+    private final File directory;
+
+    /**
+     * Constructs a new spool.
+     *
+     * @param spillThreshold the size in bytes above which content is written
+     *                       to a temporary file, or zero to keep all content
+     *                       on the heap.
+     * @param directory      the directory of temporary files or null for the
+     *                       default temporary directory.
+     */
+    public MessageSpool(long spillThreshold, File directory) {
+        if (spillThreshold < 0)
+            throw new IllegalArgumentException("Spill threshold must be either zero or positive!");
+        this.spillThreshold = spillThreshold;
+        this.directory = directory;
+    }
+
+    /**
+     * Returns a copy of the message. The whole message is written to the
+     * spool once and the copy reads its content from there.
+     *
+     * @param source the message to copy.
+     * @return a copy of the message.
+     * @throws MessagingException if the message can't be copied.
+     */
+    public MimeMessage copyOf(MimeMessage source) throws MessagingException {
+        SpoolOutputStream spooled = new SpoolOutputStream();
+        InputStream content;
+        try {
+            source.writeTo(spooled);
+            spooled.close();
+            content = spooled.toInputStream();
+        } catch (IOException e) {
+            spooled.discard();
+            throw new MessagingException("Could not copy the message.", e);
+        } catch (MessagingException e) {
+            spooled.discard();
+            throw e;
+        }
+        MimeMessage copy;
+        try {
+            copy = new SpooledMimeMessage(content);
+        } catch (MessagingException e) {
+            closeQuietly(content);
+            throw e;
+        }
+        copy.setFlags(source.getFlags(), true);
+        return copy;
+    }
+
+    /**
+     * Releases the spooled content of a copy made by a spool, closing its
+     * temporary file if it was spilled. The body of a spilled copy can't be
+     * read after that. Other messages are ignored.
+     *
+     * @param message the copy to release.
+     */
+    public static void release(Message message) {
+        if (message instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) message).close();
+            } catch (Exception e) {
+                // Nothing can be done about a file which can't be closed.
+            }
+        }
+    }
+
+    /**
+     * Closes the stream, ignoring errors.
+     *
+     * @param stream the stream to close.
+     */
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // The stream is discarded regardless.
+        }
+    }
+
+    /**
+     * Reads the stream to its end into the spool.
+     *
+     * @param content the content to read, closed by the caller.
+     * @return a shared input stream over the spooled content.
+     * @throws IOException if the content can't be read or written.
+     */
+    public InputStream spool(InputStream content) throws IOException {
+        SpoolOutputStream spooled = new SpoolOutputStream();
+        try {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = content.read(chunk)) != -1)
+                spooled.write(chunk, 0, read);
+            spooled.close();
+            return spooled.toInputStream();
+        } catch (IOException e) {
+            spooled.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the spill threshold.
+     *
+     * @return the spill threshold in bytes, zero if all content is kept on
+     * the heap.
+     */
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Returns the directory of temporary files.
+     *
+     * @return the directory of temporary files or null for the default
+     * temporary directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * An output stream which writes to a heap buffer until the spill
+     * threshold is exceeded and to a temporary file after that.
+     */
+    private final class SpoolOutputStream extends OutputStream {
+
+        /**
+         * The heap buffer or null after the content was spilled.
+         */
+        private ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream();
+
+        /**
+         * The temporary file or null if the content is on the heap.
+         */
+        private File file;
+
+        /**
+         * The stream to the temporary file or null if the content is on the
+         * heap.
+         */
+        private OutputStream fileStream;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buffer != null && spillThreshold > 0 && buffer.size() + len > spillThreshold)
+                spill();
+            if (buffer != null)
+                buffer.write(b, off, len);
+            else
+                fileStream.write(b, off, len);
+        }
+
+        /**
+         * Moves the buffered content to a new temporary file.
+         *
+         * @throws IOException if the file can't be created or written.
+         */
+        private void spill() throws IOException {
+            file = File.createTempFile("tabellarium", ".eml", directory);
+            fileStream = new BufferedOutputStream(new FileOutputStream(file));
+            buffer.writeTo(fileStream);
+            buffer = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileStream != null)
+                fileStream.close();
+        }
+
+        /**
+         * Closes and deletes the temporary file after a failure.
+         */
+        private void discard() {
+            try {
+                close();
+            } catch (IOException e) {
+                // The file is deleted below regardless.
+            }
+            if (file != null && !file.delete())
+                file.deleteOnExit();
+        }
+
+        /**
+         * Returns a shared input stream over the written content.
+         *
+         * @return a shared input stream over the content.
+         * @throws IOException if the temporary file can't be opened.
+         */
+        private InputStream toInputStream() throws IOException {
+            if (buffer != null)
+                return new SharedByteArrayInputStream(buffer.getBuffer(), 0, buffer.size());
+            try {
+                return new SharedFileInputStream(file);
+            } finally {
+                if (!file.delete())
+                    file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * A byte array output stream which exposes its buffer, so the content is
+     * not copied once more when it is read back.
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        /**
+         * Returns the internal buffer, valid up to <pre>size()</pre>.
+         *
+         * @return the internal buffer.
+         */
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.theparanoidtimes.tabellarium.api;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A copy of a message parsed from the content written to a
+ * <pre>{@link MessageSpool}</pre>. Closing it closes the spooled content, which
+ * frees the temporary file of a spilled copy.
+ *
+ * @author djosifovic
+ */
+final class SpooledMimeMessage extends MimeMessage implements AutoCloseable {
+
+    /**
+     * The spooled content the copy was parsed from.
+     */
+    private final InputStream spooled;
+
+    /**
+     * Constructs a new copy from the spooled content.
+     *
+     * @param spooled the spooled content.
+     * @throws MessagingException if the content can't be parsed.
+     */
+    SpooledMimeMessage(InputStream spooled) throws MessagingException {
+        super((Session) null, spooled);
+        this.spooled = spooled;
+    }
+
+    /**
+     * Closes the spooled content. The body of a spilled copy can't be read
+     * after that.
+     *
+     * @throws IOException if the content can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        spooled.close();
+    }
+}
@@ -0,0 +1,35 @@
+package org.theparanoidtimes.tabellarium.api;
+
+/**
+ * Wraps a <pre>{@link MailBoxTaskExecutorException}</pre> where checked
+ * exceptions can't be thrown, for example from an
+ * <pre>{@link java.util.Iterator}</pre>.
+ *
+ * @author djosifovic
+ */
+public class UncheckedMailBoxTaskExecutorException extends RuntimeException {
+
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A constructor with the wrapped exception.
+     *
+     * @param cause the wrapped exception.
+     */
+    public UncheckedMailBoxTaskExecutorException(MailBoxTaskExecutorException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * Returns the wrapped exception.
+     *
+     * @return the wrapped exception.
+     */
+    @Override
+    public synchronized MailBoxTaskExecutorException getCause() {
+        return (MailBoxTaskExecutorException) super.getCause();
+    }
+}
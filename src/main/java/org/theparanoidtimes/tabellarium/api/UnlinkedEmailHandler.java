@@ -1,27 +1,59 @@
 package org.theparanoidtimes.tabellarium.api;
 
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
 /**
  * A <pre>{@link EmailHandler}</pre> implementation that copies retrieved
- * messages before handling them.
+ * messages before handling them. The whole message is copied, so the copy
+ * stays usable without a session after the handler returns. See
+ * <pre>{@link LazyUnlinkedEmailHandler}</pre> for handlers which read only
+ * some messages in full.
  *
  * @author djosifovic
  */
 public abstract class UnlinkedEmailHandler implements EmailHandler {
 
+    /**
+     * The spool which holds the contents of the copies.
+     */
+    private MessageSpool messageSpool = MessageSpool.IN_MEMORY;
+
     /**
      * {@inheritDoc}
      * Creates a copy of each mail retrieved so it can be handled without a
-     * session.
+     * session. The copy is released with
+     * <pre>{@link MessageSpool#release(Message)}</pre> when the handler
+     * returns, which affects only copies the spool spilled to temporary
+     * files.
      *
      * @param message javax.mail.Message to handle.
      * @throws Exception if message handling failed.
      */
     @Override
     public void handleEmail(Message message) throws Exception {
-        doHandleEmail(new MimeMessage((MimeMessage) message));
+        Message copy = copyOf((MimeMessage) message);
+        try {
+            doHandleEmail(copy);
+        } finally {
+            MessageSpool.release(copy);
+        }
+    }
+
+    /**
+     * Returns the copy of the message to handle, a full copy held by the
+     * <pre>messageSpool</pre>. With the default spool it is a plain
+     * <pre>MimeMessage</pre> copy which keeps the session of the message.
+     *
+     * @param message the message to copy.
+     * @return a copy of the message.
+     * @throws MessagingException if the message can't be copied.
+     */
+    protected Message copyOf(MimeMessage message) throws MessagingException {
+        if (messageSpool == MessageSpool.IN_MEMORY)
+            return new MimeMessage(message);
+        return messageSpool.copyOf(message);
     }
 
     /**
@@ -31,4 +63,27 @@ public abstract class UnlinkedEmailHandler implements EmailHandler {
      * @throws Exception if message handling failed.
      */
     protected abstract void doHandleEmail(Message message) throws Exception;
+
+    /**
+     * Returns the message spool.
+     *
+     * @return the message spool.
+     */
+    public MessageSpool getMessageSpool() {
+        return messageSpool;
+    }
+
+    /**
+     * Sets the spool which holds the contents of the copies. By default they
+     * are kept on the heap. Contents spilled to temporary files can't be read
+     * after the handler returns, so a handler which keeps such a copy must
+     * copy it itself.
+     *
+     * @param messageSpool the message spool to set.
+     */
+    public void setMessageSpool(MessageSpool messageSpool) {
+        if (messageSpool == null)
+            throw new IllegalArgumentException("Message spool must not be null!");
+        this.messageSpool = messageSpool;
+    }
 }
@@ -0,0 +1,252 @@
+package org.theparanoidtimes.tabellarium.handlers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+
+import javax.mail.Message;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <pre>{@link EmailHandler}</pre> decorator that hands each e-mail to the
+ * delegate handler only once. An e-mail is identified by its Message-ID
+ * header or, if it has none or <pre>keyedByContent</pre> is true, by the
+ * SHA-256 hash of its content.
+ *
+ * The keys of handled e-mails are kept in a Bloom filter which needs about
+ * 1.2 MB per million keys at the default false positive rate of 1%. The
+ * filter holds two generations of <pre>expectedMessages</pre> keys and
+ * forgets the older one when the newer one is full, so memory stays bounded.
+ * When a <pre>{@link SeenMessageStore}</pre> is given, a key reported by the
+ * filter is confirmed by the store, so no e-mail is skipped as a false
+ * positive, and the filter is filled from the store on construction. A key
+ * the filter doesn't report skips the store only until the filter forgets
+ * its first generation, after that every key is looked up in the store, so
+ * no key the store still holds is missed. Without a store, an e-mail
+ * reported by the filter is skipped. The memory used by the store itself
+ * depends on its implementation.
+ *
+ * A duplicate e-mail is not handed to the delegate and is treated as handled,
+ * so the executor marks it as SEEN, or DELETED if
+ * <pre>deleteAfterRetrieval</pre> is true. A key is recorded only after the
+ * delegate handled the e-mail; an e-mail whose handling failed is handled
+ * again. Duplicates handled at the same time on different threads are handed
+ * to the delegate only once.
+ *
+ * @author djosifovic
+ */
+public class DeduplicatingEmailHandler implements EmailHandler {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(DeduplicatingEmailHandler.class);
+
+    /**
+     * The default number of keys per filter generation.
+     */
+    public static final long DEFAULT_EXPECTED_MESSAGES = 1_000_000;
+
+    /**
+     * The default false positive rate of the filter.
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * The handler which handles the unique e-mails.
+     */
+    private final EmailHandler delegate;
+
+    /**
+     * The exact set of handled keys or null.
+     */
+    private final SeenMessageStore store;
+
+    /**
+     * The filter of handled keys.
+     */
+    private final MessageKeyFilter filter;
+
+    /**
+     * The keys of e-mails which are being handled.
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A flag indicating that e-mails are identified by the hash of their
+     * content even if they have a Message-ID.
+     */
+    private volatile boolean keyedByContent = false;
+
+    /**
+     * Constructs a new instance without an exact store and with the default
+     * filter size.
+     *
+     * @param delegate the handler which handles the unique e-mails.
+     */
+    public DeduplicatingEmailHandler(EmailHandler delegate) {
+        this(delegate, null, DEFAULT_EXPECTED_MESSAGES, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Constructs a new instance with the given exact store and the default
+     * filter size. The filter is filled with the keys from the store.
+     *
+     * @param delegate the handler which handles the unique e-mails.
+     * @param store    the exact set of handled keys or null.
+     */
+    public DeduplicatingEmailHandler(EmailHandler delegate, SeenMessageStore store) {
+        this(delegate, store, DEFAULT_EXPECTED_MESSAGES, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Constructs a new instance with the given exact store and filter size.
+     * The filter is filled with the keys from the store.
+     *
+     * @param delegate          the handler which handles the unique e-mails.
+     * @param store             the exact set of handled keys or null.
+     * @param expectedMessages  the number of keys per filter generation.
+     * @param falsePositiveRate the false positive rate of the filter.
+     */
+    public DeduplicatingEmailHandler(EmailHandler delegate, SeenMessageStore store, long expectedMessages, double falsePositiveRate) {
+        if (delegate == null)
+            throw new IllegalArgumentException("Delegate e-mail handler must not be null!");
+        if (expectedMessages <= 0)
+            throw new IllegalArgumentException("Expected number of messages must be positive!");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("False positive rate must be between zero and one!");
+        this.delegate = delegate;
+        this.store = store;
+        this.filter = new MessageKeyFilter(expectedMessages, falsePositiveRate);
+        if (store != null) {
+            try {
+                store.keys().forEach(filter::add);
+            } catch (Exception e) {
+                throw new IllegalStateException("Keys can't be read from the seen message store!", e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Hands the e-mail to the delegate handler unless an e-mail with the same
+     * key was already handled or is being handled.
+     *
+     * @param message javax.mail.Message to handle.
+     * @throws Exception if the delegate handler fails or the key can't be
+     *                   read or stored.
+     */
+    @Override
+    public void handleEmail(Message message) throws Exception {
+        String key = getKey(message);
+        if (!inFlight.add(key)) {
+            LOG.debug("Skipping duplicate e-mail {} which is being handled.", key);
+            return;
+        }
+        try {
+            if (isDuplicate(key)) {
+                LOG.debug("Skipping duplicate e-mail {}.", key);
+                return;
+            }
+            delegate.handleEmail(message);
+            filter.add(key);
+            if (store != null)
+                store.add(key);
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    /**
+     * Returns true if e-mails are identified by the hash of their content
+     * even if they have a Message-ID.
+     *
+     * @return true if e-mails are keyed by content, otherwise false.
+     */
+    public boolean isKeyedByContent() {
+        return keyedByContent;
+    }
+
+    /**
+     * Sets whether e-mails are identified by the hash of their content even
+     * if they have a Message-ID.
+     *
+     * @param keyedByContent true to key e-mails by content.
+     */
+    public void setKeyedByContent(boolean keyedByContent) {
+        this.keyedByContent = keyedByContent;
+    }
+
+    /**
+     * Returns the memory used by the filter.
+     *
+     * @return the size of the filter in bytes.
+     */
+    public long getFilterSizeInBytes() {
+        return filter.getSizeInBytes();
+    }
+
+    /**
+     * Returns true if the key was already handled. The store is skipped only
+     * if the filter proves the key was never added.
+     *
+     * @param key the key of the e-mail.
+     * @return true if the e-mail is a duplicate, otherwise false.
+     * @throws Exception if the store can't be read.
+     */
+    private boolean isDuplicate(String key) throws Exception {
+        if (store == null)
+            return filter.mightContain(key);
+        if (!filter.hasForgottenKeys() && !filter.mightContain(key))
+            return false;
+        return store.contains(key);
+    }
+
+    /**
+     * Returns the key of the e-mail, its Message-ID without white space or
+     * the SHA-256 hash of its content.
+     *
+     * @param message the e-mail.
+     * @return the key of the e-mail.
+     * @throws Exception if the e-mail can't be read.
+     */
+    private String getKey(Message message) throws Exception {
+        if (!keyedByContent) {
+            String[] messageIds = message.getHeader("Message-ID");
+            if (messageIds != null && messageIds.length > 0 && !messageIds[0].trim().isEmpty())
+                return messageIds[0].replaceAll("\\s+", "");
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (OutputStream out = new DigestOutputStream(NullOutputStream.INSTANCE, digest)) {
+            message.writeTo(out);
+        }
+        StringBuilder key = new StringBuilder("sha256:");
+        for (byte b : digest.digest())
+            key.append(String.format("%02x", b));
+        return key.toString();
+    }
+
+    /**
+     * An output stream which discards the bytes.
+     */
+    private static final class NullOutputStream extends OutputStream {
+
+        /**
+         * The shared instance.
+         */
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.theparanoidtimes.tabellarium.handlers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A <pre>{@link SeenMessageStore}</pre> implementation that appends the keys
+ * to a file and forgets them after a time to live. The live keys are kept in
+ * memory, which costs about 100 bytes plus the length of the key per key, or
+ * roughly 150 MB per million Message-IDs. To bound it, give the maximum
+ * number of keys; when it is exceeded the keys which expire first are
+ * forgotten early.
+ *
+ * Each line of the file is <pre>&lt;expiry&gt; &lt;key&gt;</pre> where the
+ * expiry is in milliseconds since the epoch. Expired lines are dropped by
+ * rewriting the file through a temporary file once they outnumber the live
+ * ones, so a crash during the rewrite leaves the previous file intact. A
+ * line which was not completely written is ignored.
+ *
+ * @author djosifovic
+ */
+public class FileSeenMessageStore implements SeenMessageStore, AutoCloseable {
+
+    /**
+     * The minimum number of expired lines before the file is rewritten.
+     */
+    private static final int MIN_COMPACTION_LINES = 1024;
+
+    /**
+     * The file with keys.
+     */
+    private final Path file;
+
+    /**
+     * The time to live of a key in milliseconds.
+     */
+    private final long timeToLive;
+
+    /**
+     * The maximum number of live keys.
+     */
+    private final int maxKeys;
+
+    /**
+     * Guards the keys and the file.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The live keys with their expiry, in the order of expiry.
+     */
+    private final Map<String, Long> expiries = new LinkedHashMap<>();
+
+    /**
+     * The writer which appends to the file.
+     */
+    private Writer writer;
+
+    /**
+     * The number of lines in the file with expired keys.
+     */
+    private long expiredLines = 0;
+
+    /**
+     * Opens the store in the given file and reads its keys. The file is
+     * created if it doesn't exist. The number of keys is not bounded.
+     *
+     * @param file       the file with keys.
+     * @param timeToLive the time to live of a key in milliseconds.
+     * @throws IOException if the file can't be read or opened.
+     */
+    public FileSeenMessageStore(Path file, long timeToLive) throws IOException {
+        this(file, timeToLive, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Opens the store in the given file and reads its keys, keeping at most
+     * <pre>maxKeys</pre> of them. The file is created if it doesn't exist.
+     *
+     * @param file       the file with keys.
+     * @param timeToLive the time to live of a key in milliseconds.
+     * @param maxKeys    the maximum number of live keys.
+     * @throws IOException if the file can't be read or opened.
+     */
+    public FileSeenMessageStore(Path file, long timeToLive, int maxKeys) throws IOException {
+        if (timeToLive <= 0)
+            throw new IllegalArgumentException("Time to live must be positive!");
+        if (maxKeys <= 0)
+            throw new IllegalArgumentException("Maximum number of keys must be positive!");
+        this.file = file;
+        this.timeToLive = timeToLive;
+        this.maxKeys = maxKeys;
+        boolean torn = Files.exists(file) && readKeys();
+        if (torn || expiredLines > expiries.size())
+            compact();
+        else
+            this.writer = openWriter();
+    }
+
+    @Override
+    public boolean contains(String key) throws IOException {
+        lock.lock();
+        try {
+            evict();
+            return expiries.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The line is written to the operating system before the method returns,
+     * but it is not forced to disk.
+     */
+    @Override
+    public void add(String key) throws IOException {
+        if (key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0)
+            throw new IllegalArgumentException("Key must not contain line breaks!");
+        lock.lock();
+        try {
+            evict();
+            if (expiries.containsKey(key))
+                return;
+            long expiry = System.currentTimeMillis() + timeToLive;
+            expiries.put(key, expiry);
+            trim();
+            writer.write(expiry + " " + key + "\n");
+            writer.flush();
+            if (expiredLines >= MIN_COMPACTION_LINES && expiredLines > expiries.size())
+                compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<String> keys() throws IOException {
+        lock.lock();
+        try {
+            evict();
+            return new ArrayList<>(expiries.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of live keys.
+     *
+     * @return the number of keys.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            evict();
+            return expiries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            writer.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the keys from the file.
+     *
+     * @return true if the last line was not completely written.
+     * @throws IOException if the file can't be read or is malformed.
+     */
+    private boolean readKeys() throws IOException {
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            String line = content.substring(start, end);
+            start = end + 1;
+            int separator = line.indexOf(' ');
+            if (separator <= 0)
+                throw new IOException("Malformed line '" + line + "' in " + file + "!");
+            long expiry;
+            try {
+                expiry = Long.parseLong(line.substring(0, separator));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed line '" + line + "' in " + file + "!", e);
+            }
+            String key = line.substring(separator + 1);
+            Long previous = expiries.remove(key);
+            if (previous != null)
+                expiredLines++;
+            if (expiry > now)
+                expiries.put(key, expiry);
+            else
+                expiredLines++;
+        }
+        trim();
+        return start < content.length();
+    }
+
+    /**
+     * Drops the expired keys from memory. Called with the lock held.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> iterator = expiries.values().iterator();
+        while (iterator.hasNext() && iterator.next() <= now) {
+            iterator.remove();
+            expiredLines++;
+        }
+    }
+
+    /**
+     * Forgets the keys which expire first while there are more than
+     * <pre>maxKeys</pre> of them. Called with the lock held or from the
+     * constructor.
+     */
+    private void trim() {
+        Iterator<String> iterator = expiries.keySet().iterator();
+        while (expiries.size() > maxKeys) {
+            iterator.next();
+            iterator.remove();
+            expiredLines++;
+        }
+    }
+
+    /**
+     * Rewrites the file with the live keys only, replacing it atomically.
+     * Called with the lock held or from the constructor.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    private void compact() throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : expiries.entrySet())
+                    out.write(entry.getValue() + " " + entry.getKey() + "\n");
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            expiredLines = 0;
+        } finally {
+            Files.deleteIfExists(temporary);
+            if (writer == null)
+                writer = openWriter();
+        }
+    }
+
+    /**
+     * Opens the writer which appends to the file.
+     *
+     * @return the writer.
+     * @throws IOException if the file can't be opened.
+     */
+    private BufferedWriter openWriter() throws IOException {
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
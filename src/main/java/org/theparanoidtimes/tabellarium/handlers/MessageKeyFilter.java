@@ -0,0 +1,198 @@
+package org.theparanoidtimes.tabellarium.handlers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Bloom filter of message keys with bounded memory. It keeps two
+ * generations of bits; when the current generation holds
+ * <pre>expectedKeys</pre> keys it becomes the previous one and the oldest
+ * keys are forgotten. A key is reported as seen if either generation may
+ * contain it, so the filter remembers at least the last
+ * <pre>expectedKeys</pre> keys with a false positive rate of at most about
+ * twice the requested one. Once a generation with keys was dropped,
+ * <pre>{@link #hasForgottenKeys()}</pre> returns true and a negative answer
+ * no longer proves that a key was never added.
+ *
+ * @author djosifovic
+ */
+final class MessageKeyFilter {
+
+    /**
+     * The number of keys per generation.
+     */
+    private final long expectedKeys;
+
+    /**
+     * The number of bits per generation.
+     */
+    private final int bitCount;
+
+    /**
+     * The number of bits set per key.
+     */
+    private final int hashCount;
+
+    /**
+     * Guards switching generations.
+     */
+    private final ReentrantLock generationLock = new ReentrantLock();
+
+    /**
+     * The bits of the current generation.
+     */
+    private volatile AtomicLongArray current;
+
+    /**
+     * The bits of the previous generation.
+     */
+    private volatile AtomicLongArray previous;
+
+    /**
+     * The number of keys added to the current generation.
+     */
+    private long keys = 0;
+
+    /**
+     * The number of generation switches.
+     */
+    private long switches = 0;
+
+    /**
+     * A flag indicating that a generation with keys was dropped.
+     */
+    private volatile boolean forgotten = false;
+
+    /**
+     * Constructs a new filter.
+     *
+     * @param expectedKeys        the number of keys per generation.
+     * @param falsePositiveRate   the false positive rate of a full generation.
+     */
+    MessageKeyFilter(long expectedKeys, double falsePositiveRate) {
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        if (bits > (long) Integer.MAX_VALUE * Long.SIZE)
+            throw new IllegalArgumentException("Expected number of keys is too large for the false positive rate!");
+        this.expectedKeys = expectedKeys;
+        this.bitCount = (int) Math.max(Long.SIZE, ((bits + Long.SIZE - 1) / Long.SIZE));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount * Long.SIZE / expectedKeys * Math.log(2)));
+        this.current = new AtomicLongArray(bitCount);
+        this.previous = new AtomicLongArray(bitCount);
+    }
+
+    /**
+     * Returns true if the key may have been added, false if it certainly was
+     * not added or was forgotten.
+     *
+     * @param key the message key.
+     * @return true if the key may have been added, otherwise false.
+     */
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        return contains(current, hash) || contains(previous, hash);
+    }
+
+    /**
+     * Adds the key, switching generations if the current one is full.
+     *
+     * @param key the message key.
+     */
+    void add(String key) {
+        long hash = hash(key);
+        generationLock.lock();
+        try {
+            if (keys >= expectedKeys) {
+                previous = current;
+                current = new AtomicLongArray(bitCount);
+                keys = 0;
+                if (++switches > 1)
+                    forgotten = true;
+            }
+            keys++;
+            AtomicLongArray bits = current;
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = bitIndex(h1 + i * h2);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                do {
+                    value = bits.get(word);
+                } while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask));
+            }
+        } finally {
+            generationLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if some keys were forgotten, so
+     * <pre>{@link #mightContain(String)}</pre> may return false for a key
+     * which was added.
+     *
+     * @return true if keys were forgotten, otherwise false.
+     */
+    boolean hasForgottenKeys() {
+        return forgotten;
+    }
+
+    /**
+     * Returns the size of the filter.
+     *
+     * @return the number of bytes of both generations.
+     */
+    long getSizeInBytes() {
+        return 2L * bitCount * Long.BYTES;
+    }
+
+    /**
+     * Returns true if all bits of the hash are set.
+     *
+     * @param bits the bits of a generation.
+     * @param hash the hash of the key.
+     * @return true if all bits are set, otherwise false.
+     */
+    private boolean contains(AtomicLongArray bits, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = bitIndex(h1 + i * h2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Maps a combined hash to a bit index.
+     *
+     * @param combined the combined hash.
+     * @return the bit index.
+     */
+    private long bitIndex(int combined) {
+        return (combined & 0xffffffffL) % ((long) bitCount * Long.SIZE);
+    }
+
+    /**
+     * Returns a 64 bit hash of the key, FNV-1a followed by the MurmurHash3
+     * finalizer.
+     *
+     * @param key the message key.
+     * @return the hash.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
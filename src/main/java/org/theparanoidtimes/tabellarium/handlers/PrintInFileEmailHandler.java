@@ -1,7 +1,7 @@
 package org.theparanoidtimes.tabellarium.handlers;
 
 import org.theparanoidtimes.tabellarium.api.EmailHandler;
-import org.theparanoidtimes.tabellarium.api.UnlinkedEmailHandler;
+import org.theparanoidtimes.tabellarium.api.LazyUnlinkedEmailHandler;
 
 import javax.mail.Message;
 import java.io.BufferedOutputStream;
@@ -15,7 +15,7 @@ import java.io.PrintStream;
  *
  * @author djosifovic
  */
-public class PrintInFileEmailHandler extends UnlinkedEmailHandler {
+public class PrintInFileEmailHandler extends LazyUnlinkedEmailHandler {
 
     /**
      * Name of the file in which to print the output.
@@ -1,6 +1,6 @@
 package org.theparanoidtimes.tabellarium.handlers;
 
-import org.theparanoidtimes.tabellarium.api.UnlinkedEmailHandler;
+import org.theparanoidtimes.tabellarium.api.LazyUnlinkedEmailHandler;
 
 import javax.mail.Header;
 import javax.mail.Message;
@@ -15,7 +15,7 @@ import java.util.Enumeration;
  *
  * @author djosifovic
  */
-public class PrintingEmailHandler extends UnlinkedEmailHandler {
+public class PrintingEmailHandler extends LazyUnlinkedEmailHandler {
 
     /**
      * The
@@ -0,0 +1,38 @@
+package org.theparanoidtimes.tabellarium.handlers;
+
+import java.util.Collection;
+
+/**
+ * An exact set of the keys of handled e-mails, used by
+ * <pre>{@link DeduplicatingEmailHandler}</pre> to confirm duplicates reported
+ * by its probabilistic filter and to keep the keys between runs.
+ *
+ * @author djosifovic
+ */
+public interface SeenMessageStore {
+
+    /**
+     * Returns true if the key is in the store.
+     *
+     * @param key the key of the e-mail.
+     * @return true if an e-mail with the key was handled, otherwise false.
+     * @throws Exception if the store can't be read.
+     */
+    boolean contains(String key) throws Exception;
+
+    /**
+     * Adds the key to the store.
+     *
+     * @param key the key of the e-mail.
+     * @throws Exception if the key can't be stored.
+     */
+    void add(String key) throws Exception;
+
+    /**
+     * Returns all keys in the store.
+     *
+     * @return the keys of handled e-mails.
+     * @throws Exception if the store can't be read.
+     */
+    Collection<String> keys() throws Exception;
+}
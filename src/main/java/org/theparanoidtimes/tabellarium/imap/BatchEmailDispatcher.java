@@ -0,0 +1,205 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.BatchEmailHandler;
+import org.theparanoidtimes.tabellarium.api.BatchResult;
+import org.theparanoidtimes.tabellarium.metrics.MessageOutcome;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects messages into chunks and hands each chunk to a
+ * <pre>{@link BatchEmailHandler}</pre>. A chunk is handed over when it reaches
+ * <pre>chunkSize</pre> messages or when <pre>lingerTime</pre> has passed since
+ * its first message was collected. Flag changes of the whole chunk are
+ * applied in bulk after the handler returns.
+ *
+ * @author djosifovic
+ */
+final class BatchEmailDispatcher {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BatchEmailDispatcher.class);
+
+    /**
+     * The executor which provides the retrieval settings.
+     */
+    private final ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The opened folder.
+     */
+    private final Folder folder;
+
+    /**
+     * The maximum number of messages in a chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * The maximum time, in milliseconds, a chunk is collected before it is
+     * handed over. Zero means there is no limit.
+     */
+    private final long lingerTime;
+
+    /**
+     * The progress listener or null.
+     */
+    private final MessageProgress progress;
+
+    /**
+     * The buffer for flag changes.
+     */
+    private final FlagUpdateBuffer flagUpdates;
+
+    /**
+     * Constructs a new dispatcher.
+     *
+     * @param executor   the executor which provides the retrieval settings.
+     * @param folder     the opened folder.
+     * @param chunkSize  the maximum number of messages in a chunk.
+     * @param lingerTime the maximum time a chunk is collected.
+     * @param progress   the progress listener or null.
+     */
+    BatchEmailDispatcher(ImapMailboxFolderTaskExecutor executor, Folder folder, int chunkSize, long lingerTime, MessageProgress progress) {
+        this.executor = executor;
+        this.folder = folder;
+        this.chunkSize = chunkSize;
+        this.lingerTime = lingerTime;
+        this.progress = progress;
+        this.flagUpdates = executor.newFlagUpdateBuffer(folder);
+    }
+
+    /**
+     * Hands the messages which are not skipped to the handler in chunks.
+     *
+     * @param messages          messages to handle.
+     * @param batchEmailHandler handler for each chunk.
+     * @throws MessagingException if messages can't be read or flags changed.
+     */
+    void dispatch(Message[] messages, BatchEmailHandler batchEmailHandler) throws MessagingException {
+        List<Integer> chunk = new ArrayList<>(chunkSize);
+        int tracked = 0;
+        long chunkStart = 0;
+        for (int i = 0; i < messages.length; i++) {
+            executor.prefetchChunk(folder, messages, i, messages.length);
+            if (!executor.skip(messages[i], i)) {
+                if (chunk.isEmpty())
+                    chunkStart = System.currentTimeMillis();
+                chunk.add(i);
+            }
+            if (chunk.size() >= chunkSize || (!chunk.isEmpty() && lingerTime > 0 && System.currentTimeMillis() - chunkStart >= lingerTime)) {
+                handleChunk(messages, chunk, tracked, i + 1, batchEmailHandler);
+                chunk.clear();
+                tracked = i + 1;
+            }
+        }
+        handleChunk(messages, chunk, tracked, messages.length, batchEmailHandler);
+    }
+
+    /**
+     * Hands the chunk to the handler, changes flags according to the result
+     * and notifies the progress listener about all messages up to
+     * <pre>end</pre>, including skipped ones.
+     *
+     * @param messages          messages to handle.
+     * @param chunk             indexes of the chunk messages.
+     * @param start             index of the first message not yet tracked.
+     * @param end               index after the last message to track.
+     * @param batchEmailHandler handler for the chunk.
+     * @throws MessagingException if messages can't be read or flags changed.
+     */
+    private void handleChunk(Message[] messages, List<Integer> chunk, int start, int end, BatchEmailHandler batchEmailHandler) throws MessagingException {
+        BatchResult result = BatchResult.success();
+        if (!chunk.isEmpty()) {
+            List<Message> chunkMessages = new ArrayList<>(chunk.size());
+            for (int index : chunk)
+                chunkMessages.add(executor.getMessageForHandling(folder, messages[index]));
+            LOG.trace("Handling a chunk of {} messages.", chunkMessages.size());
+            result = invokeHandler(batchEmailHandler, chunkMessages, chunk);
+            applyFlags(messages, chunk, result);
+        }
+
+        int position = 0;
+        for (int i = start; i < end; i++) {
+            if (progress == null)
+                break;
+            if (position < chunk.size() && chunk.get(position) == i) {
+                if (result.isFailed(position)) progress.failed();
+                else progress.processed(messages[i]);
+                position++;
+            } else
+                progress.processed(messages[i]);
+        }
+    }
+
+    /**
+     * Invokes the handler on the chunk. An exception thrown by the handler, or
+     * a missing result, fails the whole chunk.
+     *
+     * @param batchEmailHandler handler for the chunk.
+     * @param chunkMessages     messages of the chunk.
+     * @param chunk             indexes of the chunk messages used for logging.
+     * @return the result of the chunk handling.
+     */
+    private BatchResult invokeHandler(BatchEmailHandler batchEmailHandler, List<Message> chunkMessages, List<Integer> chunk) {
+        TaskMetrics.PhaseTimer handle = TaskMetrics.current().start(TaskPhase.HANDLE);
+        try {
+            BatchResult result = batchEmailHandler.handleEmails(chunkMessages);
+            if (result != null)
+                return result;
+            LOG.error("Handler returned no result for the chunk of messages {}!", chunk);
+        } catch (Throwable e) {
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            LOG.error("Error happened while handling the chunk of messages {}!", chunk, e);
+        } finally {
+            handle.stop(chunkMessages.isEmpty() ? 0 : chunkMessages.get(0).getMessageNumber(), -1);
+        }
+        return BatchResult.failure();
+    }
+
+    /**
+     * Marks handled messages as DELETED if <pre>deleteAfterRetrieval</pre> is
+     * true, and reverts SEEN and DELETED flags of failed messages, with one
+     * bulk update for the whole chunk. Handled messages are marked as SEEN by
+     * the server if the handler read their body.
+     *
+     * @param messages messages to handle.
+     * @param chunk    indexes of the chunk messages.
+     * @param result   the result of the chunk handling.
+     * @throws MessagingException if flags can't be changed.
+     */
+    private void applyFlags(Message[] messages, List<Integer> chunk, BatchResult result) throws MessagingException {
+        TaskMetrics taskMetrics = TaskMetrics.current();
+        try {
+            for (int position = 0; position < chunk.size(); position++) {
+                Message message = messages[chunk.get(position)];
+                if (!result.isFailed(position)) {
+                    taskMetrics.message(MessageOutcome.PROCESSED);
+                    taskMetrics.bytes(message.getSize());
+                    if (executor.isDeleteAfterRetrieval())
+                        flagUpdates.update(message, Flags.Flag.DELETED, true);
+                    continue;
+                }
+                taskMetrics.message(MessageOutcome.FAILED);
+                // Handled messages were neither DELETED nor, unless retrieveSeenEmails is true, SEEN before.
+                flagUpdates.update(message, Flags.Flag.DELETED, false);
+                if (!executor.isRetrieveSeenEmails())
+                    flagUpdates.update(message, Flags.Flag.SEEN, false);
+            }
+            flagUpdates.flush();
+        } finally {
+            flagUpdates.flushQuietly();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+/**
+ * How much of each e-mail is downloaded up front. In all modes except
+ * <pre>FULL</pre> copies made by the executor read bodies with
+ * <pre>BODY.PEEK</pre>, so reading them does not mark e-mails as SEEN; e-mails
+ * processed through such copies are marked as SEEN explicitly instead.
+ *
+ * @author djosifovic
+ */
+public enum FetchMode {
+
+    /**
+     * Whole e-mails are downloaded when they are copied.
+     */
+    FULL,
+
+    /**
+     * All headers are prefetched and bodies are downloaded only when they are
+     * read. Copies passed to parallel handlers download the body on first
+     * read. Copies returned by <pre>retrieveEmails</pre> and streams carry
+     * only the headers: reading their body throws a
+     * <pre>MessagingException</pre>.
+     */
+    HEADERS,
+
+    /**
+     * Like <pre>HEADERS</pre>, but the BODYSTRUCTURE is prefetched too, so a
+     * handler of <pre>executeForEachEmail</pre> which reads a single part of a
+     * multipart e-mail downloads only that part.
+     */
+    STRUCTURE
+}
@@ -0,0 +1,107 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A <pre>{@link UidCheckpointStore}</pre> implementation that keeps the
+ * checkpoints in a properties file. The file is rewritten on each save through
+ * a temporary file, so a crash during the save leaves the previous checkpoints
+ * intact.
+ *
+ * @author djosifovic
+ */
+public class FileUidCheckpointStore implements UidCheckpointStore {
+
+    /**
+     * The properties file with checkpoints.
+     */
+    private final Path file;
+
+    /**
+     * Serializes reads and writes of the file.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructs a new instance that keeps checkpoints in the given file. The
+     * file is created on first save.
+     *
+     * @param file the properties file with checkpoints.
+     */
+    public FileUidCheckpointStore(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public UidCheckpoint load(String folderKey) throws IOException {
+        String value;
+        lock.lock();
+        try {
+            value = readProperties().getProperty(folderKey);
+        } finally {
+            lock.unlock();
+        }
+        if (value == null)
+            return null;
+        String[] parts = value.split(":");
+        if (parts.length != 2)
+            throw new IOException("Malformed checkpoint '" + value + "' for " + folderKey + " in " + file + "!");
+        return new UidCheckpoint(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+    }
+
+    @Override
+    public void save(String folderKey, UidCheckpoint checkpoint) throws IOException {
+        lock.lock();
+        try {
+            doSave(folderKey, checkpoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the checkpoint, replacing the file atomically. Called with the
+     * lock held.
+     *
+     * @param folderKey  the key of the mailbox folder.
+     * @param checkpoint the checkpoint to store.
+     * @throws IOException if the file can't be read or written.
+     */
+    private void doSave(String folderKey, UidCheckpoint checkpoint) throws IOException {
+        Properties properties = readProperties();
+        properties.setProperty(folderKey, checkpoint.getUidValidity() + ":" + checkpoint.getLastUid());
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                properties.store(out, "Tabellarium UID checkpoints - <uidvalidity>:<last uid>");
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Reads the checkpoint file.
+     *
+     * @return the properties from the file, empty if the file doesn't exist.
+     * @throws IOException if the file can't be read.
+     */
+    private Properties readProperties() throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,172 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.UIDSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects flag changes of messages in a folder and applies them in bulk. For
+ * each flag and value a single <pre>UID STORE</pre> command is sent for all
+ * collected messages, with the UIDs compacted into ranges. Changes are
+ * applied when <pre>maxPending</pre> of them are collected or when the
+ * buffer is flushed.
+ *
+ * The commands are not <pre>.SILENT</pre>, so the server sends the new flags
+ * back and the folder updates the flags cached by the messages. Checks of
+ * SEEN and DELETED made later on the same messages see the changes. Folders
+ * which are not IMAP folders are updated with
+ * <pre>{@link Folder#setFlags(Message[], Flags, boolean)}</pre>.
+ *
+ * @author djosifovic
+ */
+final class FlagUpdateBuffer {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(FlagUpdateBuffer.class);
+
+    /**
+     * IMAP names of the system flags which can be stored in bulk.
+     */
+    private static final Map<Flags.Flag, String> FLAG_NAMES = new LinkedHashMap<>();
+
+    static {
+        FLAG_NAMES.put(Flags.Flag.ANSWERED, "\\Answered");
+        FLAG_NAMES.put(Flags.Flag.DELETED, "\\Deleted");
+        FLAG_NAMES.put(Flags.Flag.DRAFT, "\\Draft");
+        FLAG_NAMES.put(Flags.Flag.FLAGGED, "\\Flagged");
+        FLAG_NAMES.put(Flags.Flag.SEEN, "\\Seen");
+    }
+
+    /**
+     * The opened folder.
+     */
+    private final Folder folder;
+
+    /**
+     * The number of collected changes after which they are applied.
+     */
+    private final int maxPending;
+
+    /**
+     * Collected changes, the new value of each flag by message.
+     */
+    private final Map<Flags.Flag, Map<Message, Boolean>> updates = new LinkedHashMap<>();
+
+    /**
+     * The number of collected changes.
+     */
+    private int pending = 0;
+
+    /**
+     * Constructs a new buffer.
+     *
+     * @param folder     the opened folder.
+     * @param maxPending the number of collected changes after which they are
+     *                   applied.
+     */
+    FlagUpdateBuffer(Folder folder, int maxPending) {
+        this.folder = folder;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Collects a flag change. A later change of the same flag of the same
+     * message replaces the earlier one.
+     *
+     * @param message the message to change.
+     * @param flag    the flag to change.
+     * @param value   the new value of the flag.
+     * @throws MessagingException if the collected changes are applied and
+     *                            that fails.
+     */
+    void update(Message message, Flags.Flag flag, boolean value) throws MessagingException {
+        Map<Message, Boolean> flagUpdates = updates.get(flag);
+        if (flagUpdates == null) {
+            flagUpdates = new LinkedHashMap<>();
+            updates.put(flag, flagUpdates);
+        }
+        if (flagUpdates.put(message, value) == null)
+            pending++;
+        if (pending >= maxPending)
+            flush();
+    }
+
+    /**
+     * Applies all collected changes. The buffer is emptied even if applying
+     * fails.
+     *
+     * @throws MessagingException if the changes can't be applied.
+     */
+    void flush() throws MessagingException {
+        if (pending == 0)
+            return;
+        LOG.trace("Applying {} flag changes.", pending);
+        List<Map.Entry<Flags.Flag, Map<Message, Boolean>>> toApply = new ArrayList<>(updates.entrySet());
+        updates.clear();
+        pending = 0;
+        for (Map.Entry<Flags.Flag, Map<Message, Boolean>> entry : toApply) {
+            List<Message> set = new ArrayList<>();
+            List<Message> cleared = new ArrayList<>();
+            for (Map.Entry<Message, Boolean> update : entry.getValue().entrySet())
+                (update.getValue() ? set : cleared).add(update.getKey());
+            store(set, entry.getKey(), true);
+            store(cleared, entry.getKey(), false);
+        }
+    }
+
+    /**
+     * Applies all collected changes and logs any error instead of throwing
+     * it. Used on error paths where the connection may already be broken.
+     */
+    void flushQuietly() {
+        try {
+            flush();
+        } catch (MessagingException e) {
+            LOG.debug("Could not apply collected flag changes.", e);
+        }
+    }
+
+    /**
+     * Sets the flag of all passed messages to the value with a single command.
+     *
+     * @param messages messages to change.
+     * @param flag     the flag to change.
+     * @param value    the new value of the flag.
+     * @throws MessagingException if the command fails.
+     */
+    private void store(List<Message> messages, Flags.Flag flag, boolean value) throws MessagingException {
+        if (messages.isEmpty())
+            return;
+        String flagName = FLAG_NAMES.get(flag);
+        if (!(folder instanceof IMAPFolder) || flagName == null) {
+            folder.setFlags(messages.toArray(new Message[messages.size()]), new Flags(flag), value);
+            return;
+        }
+        long[] uids = new long[messages.size()];
+        for (int i = 0; i < uids.length; i++)
+            uids[i] = ((UIDFolder) folder).getUID(messages.get(i));
+        Arrays.sort(uids);
+        String command = "UID STORE " + UIDSet.toString(UIDSet.createUIDSets(uids)) + (value ? " +FLAGS (" : " -FLAGS (") + flagName + ")";
+        ((IMAPFolder) folder).doCommand(protocol -> {
+            Response[] responses = protocol.command(command, null);
+            protocol.notifyResponseHandlers(responses);
+            protocol.handleResult(responses[responses.length - 1]);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,158 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import com.sun.mail.imap.IMAPFolder;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+/**
+ * A connected <pre>{@link Store}</pre> together with the opened mailbox
+ * <pre>{@link Folder}</pre> in which the tasks are executed.
+ *
+ * @author djosifovic
+ */
+final class ImapConnection {
+
+    /**
+     * The connected store.
+     */
+    private final Store store;
+
+    /**
+     * The opened folder from the store.
+     */
+    private final Folder folder;
+
+    /**
+     * The pool which opened this connection or null if it is not pooled.
+     */
+    private volatile ImapConnectionPool pool;
+
+    /**
+     * The time, in milliseconds, when this connection was last used by a task.
+     */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * The time, in milliseconds, when a command was last sent through this
+     * connection, including keep-alive NOOPs.
+     */
+    private volatile long lastActivity = lastUsed;
+
+    /**
+     * Constructs a new instance with given connected store and opened folder.
+     *
+     * @param store  the connected store.
+     * @param folder the opened folder.
+     */
+    ImapConnection(Store store, Folder folder) {
+        this.store = store;
+        this.folder = folder;
+    }
+
+    /**
+     * Returns the connected store.
+     *
+     * @return the store.
+     */
+    Store getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the opened folder.
+     *
+     * @return the folder.
+     */
+    Folder getFolder() {
+        return folder;
+    }
+
+    /**
+     * Returns the pool which opened this connection.
+     *
+     * @return the pool or null if the connection is not pooled.
+     */
+    ImapConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Sets the pool which opened this connection, so it is returned to that
+     * pool even if the executor replaced its pool in the meantime.
+     *
+     * @param pool the pool which opened this connection.
+     */
+    void setPool(ImapConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the time, in milliseconds, when this connection was last used by
+     * a task.
+     *
+     * @return the last usage time.
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Returns the time, in milliseconds, when a command was last sent through
+     * this connection.
+     *
+     * @return the last activity time.
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Marks this connection as used by a task now.
+     */
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+        lastActivity = lastUsed;
+    }
+
+    /**
+     * Sends a NOOP to the server through the folder connection. This keeps
+     * the connection from being dropped by the server and also checks that it
+     * is still usable.
+     *
+     * @return true if the connection is still usable, otherwise false.
+     */
+    boolean keepAlive() {
+        if (!folder.isOpen())
+            return false;
+        try {
+            if (folder instanceof IMAPFolder)
+                ((IMAPFolder) folder).doCommand(protocol -> {
+                    protocol.noop();
+                    return null;
+                });
+            else
+                folder.getMessageCount();
+            lastActivity = System.currentTimeMillis();
+            return true;
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the folder and the store.
+     *
+     * @param expunge if true messages marked as DELETED will be removed upon
+     *                folder closing.
+     * @throws MessagingException if the folder or store can't be closed.
+     */
+    void close(boolean expunge) throws MessagingException {
+        try {
+            if (folder.isOpen()) folder.close(expunge);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of connected and authenticated
+ * <pre>{@link ImapConnection}</pre> instances. Connections are validated
+ * before they are handed out, evicted when they stay idle for too long and
+ * kept alive with NOOP commands while they wait in the pool.
+ *
+ * @author djosifovic
+ */
+final class ImapConnectionPool {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ImapConnectionPool.class);
+
+    /**
+     * Connections that were used less then this number of milliseconds ago are
+     * not validated with a NOOP before they are handed out.
+     */
+    private static final long VALIDATION_INTERVAL = 1000;
+
+    /**
+     * Opens new connections for the pool.
+     */
+    interface ConnectionFactory {
+
+        /**
+         * Opens a new connection.
+         *
+         * @return a new connected connection.
+         * @throws Exception if the connection can't be opened.
+         */
+        ImapConnection open() throws Exception;
+    }
+
+    /**
+     * The factory for new connections.
+     */
+    private final ConnectionFactory connectionFactory;
+
+    /**
+     * The maximum number of connections, both idle and in use.
+     */
+    private final int maxConnections;
+
+    /**
+     * The maximum time, in milliseconds, a connection can stay idle in the
+     * pool before it is closed.
+     */
+    private final long maxIdleTime;
+
+    /**
+     * Idle connections, the most recently used first.
+     */
+    private final Deque<ImapConnection> idleConnections = new ArrayDeque<>();
+
+    /**
+     * The scheduler for eviction and keep-alive runs or null if there is none.
+     */
+    private final ScheduledExecutorService maintenanceScheduler;
+
+    /**
+     * Guards the idle connections and counters. A lock is used instead of the
+     * object monitor, so threads waiting for a connection don't pin the
+     * carrier of a virtual thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a connection is returned or closed, or the pool is
+     * closed.
+     */
+    private final Condition connectionAvailable = lock.newCondition();
+
+    /**
+     * The number of currently open connections, both idle and in use.
+     */
+    private int openConnections = 0;
+
+    /**
+     * A flag indicating if the pool is closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructs a new pool.
+     *
+     * @param connectionFactory the factory for new connections.
+     * @param maxConnections    the maximum number of connections.
+     * @param maxIdleTime       the maximum idle time in milliseconds.
+     * @param keepAliveInterval the interval, in milliseconds, of the eviction
+     *                          and keep-alive runs. If it is zero there are no
+     *                          such runs.
+     */
+    ImapConnectionPool(ConnectionFactory connectionFactory, int maxConnections, long maxIdleTime, long keepAliveInterval) {
+        this.connectionFactory = connectionFactory;
+        this.maxConnections = maxConnections;
+        this.maxIdleTime = maxIdleTime;
+        if (keepAliveInterval > 0) {
+            this.maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tabellarium-imap-connection-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.maintenanceScheduler.scheduleWithFixedDelay(this::maintain, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+        } else
+            this.maintenanceScheduler = null;
+    }
+
+    /**
+     * Returns a usable connection from the pool. If there are no idle
+     * connections a new one is opened, or if the pool is full the call waits
+     * until some connection is returned.
+     *
+     * @return a usable connection.
+     * @throws Exception if a new connection can't be opened or the pool is
+     *                   closed.
+     */
+    ImapConnection borrow() throws Exception {
+        ImapConnection connection;
+        lock.lockInterruptibly();
+        try {
+            while (!closed && idleConnections.isEmpty() && openConnections >= maxConnections)
+                connectionAvailable.await();
+            if (closed)
+                throw new IllegalStateException("The connection pool is closed!");
+            connection = idleConnections.pollFirst();
+            if (connection == null)
+                openConnections++;
+        } finally {
+            lock.unlock();
+        }
+        if (connection != null) {
+            if (isUsable(connection))
+                return connection;
+            LOG.debug("Discarding a pooled connection that is no longer usable.");
+            closeQuietly(connection);
+        }
+        try {
+            connection = connectionFactory.open();
+            connection.setPool(this);
+            return connection;
+        } catch (Exception e) {
+            connectionClosed();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool after a task has finished.
+     *
+     * @param connection connection to return.
+     */
+    void release(ImapConnection connection) {
+        connection.touch();
+        returnIdle(connection);
+    }
+
+    /**
+     * Closes the connection that should not be used any more and frees its
+     * place in the pool.
+     *
+     * @param connection connection to discard.
+     */
+    void invalidate(ImapConnection connection) {
+        closeQuietly(connection);
+        connectionClosed();
+    }
+
+    /**
+     * Closes all idle connections and stops the maintenance runs. Connections
+     * that are in use are closed upon their return.
+     */
+    void close() {
+        List<ImapConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+            connectionAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (maintenanceScheduler != null)
+            maintenanceScheduler.shutdownNow();
+        toClose.forEach(this::invalidate);
+    }
+
+    /**
+     * Returns the connection to the idle connections or closes it if the pool
+     * is closed.
+     *
+     * @param connection connection to return.
+     */
+    private void returnIdle(ImapConnection connection) {
+        lock.lock();
+        try {
+            if (!closed) {
+                idleConnections.addFirst(connection);
+                connectionAvailable.signalAll();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        invalidate(connection);
+    }
+
+    /**
+     * Closes idle connections that exceeded the maximum idle time and sends a
+     * NOOP through the others which have not been active for a while.
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        List<ImapConnection> toCheck = new ArrayList<>();
+        lock.lock();
+        try {
+            Iterator<ImapConnection> iterator = idleConnections.iterator();
+            while (iterator.hasNext()) {
+                ImapConnection connection = iterator.next();
+                if (now - connection.getLastActivity() >= VALIDATION_INTERVAL) {
+                    iterator.remove();
+                    toCheck.add(connection);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (ImapConnection connection : toCheck) {
+            if (maxIdleTime > 0 && now - connection.getLastUsed() > maxIdleTime) {
+                LOG.debug("Evicting a pooled connection that was idle for more then {} ms.", maxIdleTime);
+                invalidate(connection);
+            } else if (connection.keepAlive())
+                returnIdle(connection);
+            else {
+                LOG.debug("Evicting a pooled connection that failed the keep-alive check.");
+                invalidate(connection);
+            }
+        }
+    }
+
+    /**
+     * Checks if the connection can be handed out. Connections that were active
+     * recently are trusted, others are checked with a NOOP.
+     *
+     * @param connection connection to check.
+     * @return true if the connection is usable, otherwise false.
+     */
+    private boolean isUsable(ImapConnection connection) {
+        if (System.currentTimeMillis() - connection.getLastActivity() < VALIDATION_INTERVAL)
+            return connection.getFolder().isOpen();
+        return connection.keepAlive();
+    }
+
+    /**
+     * Frees a place in the pool after a connection was closed.
+     */
+    private void connectionClosed() {
+        lock.lock();
+        try {
+            openConnections--;
+            connectionAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection without expunging and logs any error.
+     *
+     * @param connection connection to close.
+     */
+    private static void closeQuietly(ImapConnection connection) {
+        try {
+            connection.close(false);
+        } catch (MessagingException e) {
+            LOG.debug("Error while closing a pooled connection.", e);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.MailBoxTaskExecutorException;
+import org.theparanoidtimes.tabellarium.api.UncheckedMailBoxTaskExecutorException;
+import org.theparanoidtimes.tabellarium.metrics.MessageOutcome;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor over the e-mails of an
+ * <pre>{@link ImapMailboxFolderTaskExecutor}</pre> folder. The cursor keeps
+ * its connection open until it is closed and copies the e-mails one window at
+ * a time, so at most <pre>windowSize</pre> copies are held by the cursor.
+ *
+ * An e-mail is marked as DELETED, if <pre>deleteAfterRetrieval</pre> is true,
+ * and counted as processed by the UID checkpoint only when it is returned from
+ * <pre>{@link #next()}</pre>. E-mails copied ahead but never returned are
+ * marked as unseen again on close.
+ *
+ * Errors are thrown as <pre>{@link UncheckedMailBoxTaskExecutorException}</pre>.
+ * The cursor is not thread safe.
+ *
+ * @author djosifovic
+ */
+public final class ImapEmailCursor implements Iterator<Message>, AutoCloseable {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ImapEmailCursor.class);
+
+    /**
+     * The executor which provides the connection and the retrieval settings.
+     */
+    private final ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The maximum number of copies held by the cursor.
+     */
+    private final int windowSize;
+
+    /**
+     * The connection held by the cursor.
+     */
+    private final ImapConnection connection;
+
+    /**
+     * The opened folder of the connection.
+     */
+    private final Folder folder;
+
+    /**
+     * The checkpoint tracker or null.
+     */
+    private final UidCheckpointTracker tracker;
+
+    /**
+     * Messages found when the cursor was opened.
+     */
+    private final Message[] messages;
+
+    /**
+     * Number of messages to go through.
+     */
+    private final int count;
+
+    /**
+     * Messages of the current window, in folder order.
+     */
+    private final Deque<WindowEntry> window = new ArrayDeque<>();
+
+    /**
+     * The buffer for flag changes.
+     */
+    private final FlagUpdateBuffer flagUpdates;
+
+    /**
+     * Index of the next message to put into a window.
+     */
+    private int position = 0;
+
+    /**
+     * Number of copies in the current window.
+     */
+    private int copies = 0;
+
+    /**
+     * Number of e-mails returned so far.
+     */
+    private int returned = 0;
+
+    /**
+     * A flag indicating that some operation of the cursor failed.
+     */
+    private boolean failed = false;
+
+    /**
+     * A flag indicating if the cursor is closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The metrics of the cursor, recorded as one task from opening to closing.
+     */
+    private final TaskMetrics taskMetrics;
+
+    /**
+     * The phase of the cursor from opening to closing.
+     */
+    private final TaskMetrics.PhaseTimer task;
+
+    /**
+     * Opens a new cursor. Acquires a connection and finds the messages to go
+     * through.
+     *
+     * @param executor   the executor which provides the connection and the
+     *                   retrieval settings.
+     * @param windowSize the maximum number of copies held by the cursor.
+     * @throws Exception if the connection can't be established or the folder
+     *                   can't be searched.
+     */
+    ImapEmailCursor(ImapMailboxFolderTaskExecutor executor, int windowSize) throws Exception {
+        this.executor = executor;
+        this.windowSize = windowSize;
+        this.taskMetrics = executor.newTaskMetrics("StreamEmailsImapFolderTask");
+        this.task = taskMetrics.start(TaskPhase.TASK);
+        TaskMetrics previous = taskMetrics.enter();
+        try {
+            this.connection = executor.acquireConnection();
+            try {
+                this.folder = connection.getFolder();
+                this.tracker = executor.newUidCheckpointTracker(folder);
+                this.messages = executor.findMessages(folder, tracker);
+                this.count = executor.getRetrieveCount(messages.length);
+                this.flagUpdates = executor.newFlagUpdateBuffer(folder);
+            } catch (Exception e) {
+                executor.releaseConnection(connection, false);
+                throw e;
+            }
+        } finally {
+            TaskMetrics.exit(previous);
+        }
+        LOG.trace("Opened e-mail cursor over {} messages with window size {}.", count, windowSize);
+    }
+
+    /**
+     * Returns true if there are more e-mails. Copies the next window of
+     * e-mails if the current one is used up.
+     *
+     * @return true if there are more e-mails, otherwise false.
+     */
+    @Override
+    public boolean hasNext() {
+        if (closed)
+            return false;
+        TaskMetrics previous = taskMetrics.enter();
+        try {
+            if (copies == 0)
+                fillWindow();
+            skipToNextCopy();
+        } catch (MessagingException e) {
+            throw fail("Error while copying e-mails from the mailbox folder.", e);
+        } finally {
+            TaskMetrics.exit(previous);
+        }
+        return !window.isEmpty();
+    }
+
+    /**
+     * Returns the next e-mail, marking it as SEEN, and as DELETED if
+     * <pre>deleteAfterRetrieval</pre> is true.
+     *
+     * @return a copy of the next e-mail.
+     */
+    @Override
+    public Message next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        WindowEntry entry = window.pollFirst();
+        copies--;
+        try {
+            if (executor.isCopiedWithPeek())
+                executor.markSeen(entry.message, entry.index, flagUpdates);
+            if (executor.isDeleteAfterRetrieval()) {
+                LOG.trace("Marking message {} as DELETED.", entry.index);
+                flagUpdates.update(entry.message, Flags.Flag.DELETED, true);
+            }
+            if (tracker != null) tracker.processed(entry.message);
+        } catch (MessagingException e) {
+            throw fail("Error while marking the e-mail as retrieved.", e);
+        }
+        taskMetrics.message(MessageOutcome.PROCESSED);
+        returned++;
+        return entry.copy;
+    }
+
+    /**
+     * Closes the cursor and releases its connection. E-mails which were copied
+     * but not returned are marked as unseen again, unless
+     * <pre>retrieveSeenEmails</pre> is true. The UID checkpoint, if any, is
+     * saved.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        MailBoxTaskExecutorException error = null;
+        TaskMetrics previous = taskMetrics.enter();
+        try {
+            revertUnreturned();
+            flagUpdates.flush();
+            if (tracker != null) tracker.save();
+        } catch (Exception e) {
+            failed = true;
+            error = new MailBoxTaskExecutorException("Error while closing e-mail cursor.", e);
+        } finally {
+            flagUpdates.flushQuietly();
+            try {
+                executor.releaseConnection(connection, !failed);
+            } catch (MessagingException e) {
+                if (error == null)
+                    error = new MailBoxTaskExecutorException("Error while closing e-mail cursor.", e);
+            }
+            task.stop();
+            TaskMetrics.exit(previous);
+        }
+        LOG.info("Closed e-mail cursor after returning {} e-mails.", returned);
+        if (error != null)
+            throw new UncheckedMailBoxTaskExecutorException(error);
+    }
+
+    /**
+     * Copies the next window of up to <pre>windowSize</pre> e-mails. Skipped
+     * messages are put into the window without a copy, so they are counted as
+     * processed in folder order.
+     *
+     * @throws MessagingException if a message can't be copied.
+     */
+    private void fillWindow() throws MessagingException {
+        while (position < count && copies < windowSize) {
+            executor.prefetchChunk(folder, messages, position, count);
+            Message message = messages[position];
+            if (executor.skip(message, position)) {
+                window.addLast(new WindowEntry(position, message, null));
+            } else {
+                window.addLast(new WindowEntry(position, message, executor.copyFromFolder(folder, message, false)));
+                copies++;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Removes skipped messages from the head of the window and counts them as
+     * processed.
+     *
+     * @throws MessagingException if the UID can't be read.
+     */
+    private void skipToNextCopy() throws MessagingException {
+        while (!window.isEmpty() && window.peekFirst().copy == null) {
+            WindowEntry entry = window.pollFirst();
+            if (tracker != null) tracker.processed(entry.message);
+        }
+    }
+
+    /**
+     * Marks e-mails which were copied but not returned as unseen again.
+     *
+     * @throws MessagingException if flags can't be changed.
+     */
+    private void revertUnreturned() throws MessagingException {
+        if (executor.isRetrieveSeenEmails() || failed)
+            return;
+        for (WindowEntry entry : window) {
+            if (entry.copy != null && entry.message.isSet(Flags.Flag.SEEN)) {
+                LOG.trace("Reverting SEEN flag for message {}...", entry.index);
+                flagUpdates.update(entry.message, Flags.Flag.SEEN, false);
+            }
+        }
+        window.clear();
+    }
+
+    /**
+     * Marks the cursor as failed and wraps the error.
+     *
+     * @param message the error message.
+     * @param cause   the error.
+     * @return the exception to throw.
+     */
+    private UncheckedMailBoxTaskExecutorException fail(String message, Exception cause) {
+        failed = true;
+        if (tracker != null) tracker.failed();
+        return new UncheckedMailBoxTaskExecutorException(new MailBoxTaskExecutorException(message, cause));
+    }
+
+    /**
+     * A message of the current window.
+     */
+    private static final class WindowEntry {
+
+        /**
+         * Index of the message used for logging.
+         */
+        private final int index;
+
+        /**
+         * The message in the folder.
+         */
+        private final Message message;
+
+        /**
+         * The copy of the message or null if the message is skipped.
+         */
+        private final Message copy;
+
+        /**
+         * Constructs a new window entry.
+         *
+         * @param index   index of the message.
+         * @param message the message in the folder.
+         * @param copy    the copy of the message or null.
+         */
+        private WindowEntry(int index, Message message, Message copy) {
+            this.index = index;
+            this.message = message;
+            this.copy = copy;
+        }
+    }
+}
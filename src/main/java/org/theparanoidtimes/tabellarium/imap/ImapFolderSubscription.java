@@ -0,0 +1,457 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.LazyUnlinkedEmailHandler;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.event.MessageChangedEvent;
+import javax.mail.event.MessageChangedListener;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A push-driven subscription to a mailbox folder. The subscription holds its
+ * own connection with the folder open and invokes the handler on each e-mail
+ * as soon as the server reports it, either as a new message (EXISTS) or as a
+ * flag change which makes the message eligible for processing (FLAGS).
+ * <p>
+ * If the server supports IMAP IDLE the folder is kept in IDLE between
+ * notifications. Otherwise the folder is polled with NOOP commands in an
+ * interval that starts at <pre>minPollInterval</pre>, doubles after each poll
+ * without new e-mails up to <pre>maxPollInterval</pre> and drops back to
+ * <pre>minPollInterval</pre> when e-mails arrive.
+ * <p>
+ * E-mails that are already in the folder when the subscription starts are
+ * handled first, the same way
+ * <pre>{@link ImapMailboxFolderTaskExecutor#executeForEachEmail(EmailHandler)}</pre>
+ * handles them. The subscription reconnects if the connection is lost and
+ * runs until it is closed.
+ *
+ * @author djosifovic
+ */
+public final class ImapFolderSubscription implements AutoCloseable {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ImapFolderSubscription.class);
+
+    /**
+     * The interval, in milliseconds, in which IDLE is re-issued. Servers are
+     * allowed to drop connections that are idle for thirty minutes.
+     */
+    private static final long IDLE_REFRESH_INTERVAL = 25 * 60 * 1000;
+
+    /**
+     * The delay, in milliseconds, after which a wake-up is repeated if the
+     * subscription thread entered IDLE right after the previous one.
+     */
+    private static final long WAKE_UP_RECHECK_DELAY = 100;
+
+    /**
+     * The scheduler which periodically interrupts IDLE so it can be re-issued.
+     */
+    private static final ScheduledExecutorService IDLE_REFRESH_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tabellarium-imap-idle-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The executor which provides the connection and the handling logic.
+     */
+    private final ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The handler for each e-mail.
+     */
+    private final EmailHandler emailHandler;
+
+    /**
+     * The minimum poll interval, in milliseconds, when IDLE is not supported.
+     */
+    private final long minPollInterval;
+
+    /**
+     * The maximum poll interval, in milliseconds, when IDLE is not supported.
+     */
+    private final long maxPollInterval;
+
+    /**
+     * Messages reported by the server that are waiting to be handled.
+     */
+    private final ConcurrentLinkedQueue<Message> pendingMessages = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Messages whose handling failed on the current connection. Flag changes
+     * caused by reverting their flags are not treated as notifications.
+     */
+    private final Set<Message> failedMessages = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * The thread which holds the connection and handles the e-mails.
+     */
+    private final Thread subscriptionThread;
+
+    /**
+     * The lock on which the polling thread waits between polls.
+     */
+    private final ReentrantLock pollLock = new ReentrantLock();
+
+    /**
+     * Signalled when the polling thread should wake up.
+     */
+    private final Condition pollWakeUp = pollLock.newCondition();
+
+    /**
+     * The current folder or null when there is no connection.
+     */
+    private volatile Folder currentFolder = null;
+
+    /**
+     * A flag indicating if the subscription thread is currently in IDLE.
+     */
+    private volatile boolean idling = false;
+
+    /**
+     * A flag indicating if the subscription is running.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Constructs and starts a new subscription.
+     *
+     * @param executor        the executor which provides the connection and
+     *                        the handling logic.
+     * @param emailHandler    the handler for each e-mail.
+     * @param minPollInterval the minimum poll interval in milliseconds.
+     * @param maxPollInterval the maximum poll interval in milliseconds.
+     */
+    ImapFolderSubscription(ImapMailboxFolderTaskExecutor executor, EmailHandler emailHandler, long minPollInterval, long maxPollInterval) {
+        this.executor = executor;
+        this.emailHandler = emailHandler;
+        this.minPollInterval = minPollInterval;
+        this.maxPollInterval = maxPollInterval;
+        this.subscriptionThread = executor.newThreadFactory("tabellarium-imap-subscription-" + executor.getFolderName()).newThread(this::run);
+        this.subscriptionThread.start();
+    }
+
+    /**
+     * Returns true if the subscription is running.
+     *
+     * @return true if the subscription is running, otherwise false.
+     */
+    public boolean isRunning() {
+        return running && subscriptionThread.isAlive();
+    }
+
+    /**
+     * Stops the subscription and closes its connection. Waits for the e-mail
+     * that is currently handled, if any, to finish. If interrupted while
+     * waiting, returns without waiting further and keeps the interrupt status
+     * of the thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        wakeUp();
+        try {
+            subscriptionThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connects, handles already existing e-mails and then waits for
+     * notifications until the subscription is closed. Reconnects on errors.
+     */
+    private void run() {
+        executor.newTaskMetrics("SubscriptionImapFolderTask").enter();
+        long reconnectDelay = minPollInterval;
+        while (running) {
+            ImapConnection connection = null;
+            boolean failed = false;
+            try {
+                connection = executor.openConnection();
+                reconnectDelay = minPollInterval;
+                listen(connection);
+            } catch (Exception e) {
+                failed = running;
+                if (failed)
+                    LOG.error("Error in subscription to folder {}, reconnecting in {} ms.", executor.getFolderName(), reconnectDelay, e);
+            } finally {
+                currentFolder = null;
+                pendingMessages.clear();
+                failedMessages.clear();
+                if (connection != null) closeQuietly(connection);
+            }
+            if (failed) {
+                sleep(reconnectDelay);
+                reconnectDelay = Math.min(reconnectDelay * 2, maxPollInterval);
+            }
+        }
+    }
+
+    /**
+     * Handles existing e-mails and then new ones as they are reported, using
+     * IDLE when the server supports it and adaptive polling otherwise.
+     *
+     * @param connection the connection to listen on.
+     * @throws Exception if the connection fails.
+     */
+    private void listen(ImapConnection connection) throws Exception {
+        Folder folder = connection.getFolder();
+        folder.addMessageCountListener(new MessageCountAdapter() {
+            @Override
+            public void messagesAdded(MessageCountEvent event) {
+                Collections.addAll(pendingMessages, event.getMessages());
+                wakeUp();
+            }
+        });
+        currentFolder = folder;
+
+        executor.handleEmailsInFolder(folder, emailHandler);
+        expungeIfNeeded(folder);
+        // Registered after the first pass so the flags it reverts on failed
+        // messages, which the server sends back, don't queue them again.
+        folder.addMessageChangedListener(new FlagsChangedListener());
+
+        boolean idleSupported = folder instanceof IMAPFolder
+                && connection.getStore() instanceof IMAPStore
+                && ((IMAPStore) connection.getStore()).hasCapability("IDLE");
+        LOG.debug("Subscribed to folder {}, IDLE supported: {}.", executor.getFolderName(), idleSupported);
+
+        long pollInterval = minPollInterval;
+        while (running) {
+            boolean handled = handlePendingMessages(folder);
+            if (!running)
+                break;
+            if (idleSupported)
+                idle((IMAPFolder) folder);
+            else {
+                pollInterval = handled ? minPollInterval : Math.min(pollInterval * 2, maxPollInterval);
+                waitForPoll(pollInterval);
+                if (running && pendingMessages.isEmpty())
+                    noop(folder);
+            }
+        }
+    }
+
+    /**
+     * Handles all messages reported by the server since the last call.
+     *
+     * @param folder the opened folder.
+     * @return true if at least one e-mail was handled, otherwise false.
+     * @throws Exception if flags can't be read or changed or the UID
+     *                   checkpoint can't be loaded or stored.
+     */
+    private boolean handlePendingMessages(Folder folder) throws Exception {
+        if (pendingMessages.isEmpty())
+            return false;
+        UidCheckpointTracker tracker = executor.newUidCheckpointTracker(folder);
+        FlagUpdateBuffer flagUpdates = executor.newFlagUpdateBuffer(folder);
+        List<Message> candidates = new ArrayList<>();
+        Message message;
+        while ((message = pendingMessages.poll()) != null) {
+            if (!message.isExpunged() && !failedMessages.contains(message) && (tracker == null || tracker.isNew(message)))
+                candidates.add(message);
+        }
+        Message[] messages = executor.applySearchFilter(folder, candidates.toArray(new Message[candidates.size()]));
+        ProcessingJournal.Session journal = executor.newJournalSession(folder, emailHandler instanceof LazyUnlinkedEmailHandler);
+        boolean handled = false;
+        int index = 0;
+        try {
+            for (int i = 0; i < messages.length && running; i++) {
+                message = messages[i];
+                if (executor.skip(message, index) || executor.isJournaledAsDone(folder, message, index, journal)) {
+                    if (tracker != null) tracker.processed(message);
+                    continue;
+                }
+                if (executor.handleEmail(folder, message, index++, emailHandler, flagUpdates, journal)) {
+                    if (tracker != null) tracker.processed(message);
+                } else {
+                    failedMessages.add(message);
+                    if (tracker != null) tracker.failed();
+                }
+                handled = true;
+            }
+            flagUpdates.flush();
+            if (tracker != null)
+                tracker.save();
+        } catch (Exception e) {
+            if (journal != null) journal.abandon();
+            throw e;
+        } finally {
+            flagUpdates.flushQuietly();
+        }
+        if (journal != null) journal.finish();
+        if (handled)
+            expungeIfNeeded(folder);
+        return handled;
+    }
+
+    /**
+     * Issues IDLE and returns after the first notification from the server or
+     * when IDLE is interrupted.
+     *
+     * @param folder the opened folder.
+     * @throws MessagingException if IDLE fails.
+     */
+    private void idle(IMAPFolder folder) throws MessagingException {
+        ScheduledFuture<?> refresh = IDLE_REFRESH_SCHEDULER.schedule(this::wakeUp, IDLE_REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+        idling = true;
+        try {
+            if (pendingMessages.isEmpty())
+                folder.idle(true);
+        } finally {
+            idling = false;
+            refresh.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for the poll interval or until new messages are reported.
+     *
+     * @param pollInterval poll interval in milliseconds.
+     */
+    private void waitForPoll(long pollInterval) {
+        pollLock.lock();
+        try {
+            if (running && pendingMessages.isEmpty())
+                pollWakeUp.await(pollInterval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the subscription thread, either by interrupting IDLE with a
+     * NOOP or by notifying the waiting poller.
+     */
+    private void wakeUp() {
+        pollLock.lock();
+        try {
+            pollWakeUp.signalAll();
+        } finally {
+            pollLock.unlock();
+        }
+        Folder folder = currentFolder;
+        if (idling && folder != null) {
+            noop(folder);
+            IDLE_REFRESH_SCHEDULER.schedule(this::recheckWakeUp, WAKE_UP_RECHECK_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Repeats the wake-up if the subscription thread is still in IDLE although
+     * there are pending messages or the subscription is closed.
+     */
+    private void recheckWakeUp() {
+        if (idling && (!running || !pendingMessages.isEmpty()))
+            wakeUp();
+    }
+
+    /**
+     * Sends a NOOP through the folder connection which makes the server send
+     * pending notifications. If the folder is in IDLE, IDLE is ended first.
+     *
+     * @param folder the opened folder.
+     */
+    private void noop(Folder folder) {
+        try {
+            if (folder instanceof IMAPFolder)
+                ((IMAPFolder) folder).doCommand(protocol -> {
+                    protocol.noop();
+                    return null;
+                });
+            else
+                folder.getMessageCount();
+        } catch (MessagingException | IllegalStateException e) {
+            LOG.debug("NOOP in folder {} failed.", executor.getFolderName(), e);
+        }
+    }
+
+    /**
+     * Expunges the folder if e-mails are deleted after retrieval, so the
+     * deleted e-mails do not pile up in a long-lived connection.
+     *
+     * @param folder the opened folder.
+     * @throws MessagingException if the folder can't be expunged.
+     */
+    private void expungeIfNeeded(Folder folder) throws MessagingException {
+        if (executor.isDeleteAfterRetrieval())
+            folder.expunge();
+    }
+
+    /**
+     * Sleeps for the given time, stopping the subscription if interrupted.
+     *
+     * @param millis time to sleep in milliseconds.
+     */
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * Closes the connection without expunging and logs any error.
+     *
+     * @param connection connection to close.
+     */
+    private void closeQuietly(ImapConnection connection) {
+        try {
+            connection.close(false);
+        } catch (MessagingException e) {
+            LOG.debug("Error while closing subscription connection.", e);
+        }
+    }
+
+    /**
+     * Queues messages whose flags changed in a way that makes them eligible
+     * for processing, for example when another client marks them as unseen.
+     */
+    private class FlagsChangedListener implements MessageChangedListener {
+
+        @Override
+        public void messageChanged(MessageChangedEvent event) {
+            if (event.getMessageChangeType() != MessageChangedEvent.FLAGS_CHANGED)
+                return;
+            Message message = event.getMessage();
+            try {
+                if (failedMessages.contains(message) || message.isSet(Flag.DELETED) || message.isSet(Flag.SEEN))
+                    return;
+            } catch (MessagingException e) {
+                return;
+            }
+            pendingMessages.add(message);
+            wakeUp();
+        }
+    }
+}
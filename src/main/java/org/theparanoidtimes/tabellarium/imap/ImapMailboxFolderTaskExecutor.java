@@ -1,20 +1,44 @@
 package org.theparanoidtimes.tabellarium.imap;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import org.theparanoidtimes.tabellarium.api.BatchEmailHandler;
+import org.theparanoidtimes.tabellarium.api.DetachedMimeMessage;
 import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.LazyUnlinkedEmailHandler;
 import org.theparanoidtimes.tabellarium.api.MailBoxTaskExecutorException;
 import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+import org.theparanoidtimes.tabellarium.api.MessageSpool;
+import org.theparanoidtimes.tabellarium.api.UncheckedMailBoxTaskExecutorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.metrics.MailboxMetrics;
+import org.theparanoidtimes.tabellarium.metrics.MessageOutcome;
+import org.theparanoidtimes.tabellarium.metrics.NoopMailboxMetrics;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
 
 import javax.mail.*;
 import javax.mail.Flags.Flag;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.AndTerm;
 import javax.mail.search.FlagTerm;
-import javax.mail.search.OrTerm;
 import javax.mail.search.SearchTerm;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A Tabellarium implementation for IMAP(S) protocol mailboxes. This
@@ -22,9 +46,14 @@ import java.util.Properties;
  * that all tasks are executed in the specified folder and have no knowledge of
  * other folders in the mailbox.
  *
+ * By default every task opens its own connection to the mailbox. When
+ * <pre>maxPooledConnections</pre> is greater then zero, connections are kept
+ * in a pool and reused between tasks, and the executor should be closed when
+ * it is no longer needed.
+ *
  * @author djosifovic
  */
-public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor {
+public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor, AutoCloseable {
 
     /**
      * Log instance.
@@ -92,11 +121,202 @@ public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor {
      */
     private boolean secure = true;
 
+    /**
+     * The maximum number of pooled connections. Zero means that connections
+     * are not pooled and each task opens and closes its own connection.
+     */
+    private int maxPooledConnections = DEFAULT_MAX_POOLED_CONNECTIONS;
+
+    /**
+     * The maximum time, in milliseconds, a pooled connection can stay idle
+     * before it is closed. Zero means no limit.
+     */
+    private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+
+    /**
+     * The interval, in milliseconds, in which idle pooled connections are
+     * kept alive with a NOOP and checked for eviction. Zero disables it.
+     */
+    private long keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+
+    /**
+     * The minimum interval, in milliseconds, in which subscriptions poll the
+     * folder when the server doesn't support IDLE.
+     */
+    private long minPollInterval = DEFAULT_MIN_POLL_INTERVAL;
+
+    /**
+     * The maximum interval, in milliseconds, in which subscriptions poll the
+     * folder when the server doesn't support IDLE.
+     */
+    private long maxPollInterval = DEFAULT_MAX_POLL_INTERVAL;
+
+    /**
+     * The number of messages whose envelope, flags, UID and size are fetched
+     * from the server in one command before they are processed. Zero disables
+     * prefetching.
+     */
+    private int prefetchSize = DEFAULT_PREFETCH_SIZE;
+
+    /**
+     * Names of additional headers to prefetch.
+     */
+    private String[] prefetchHeaders = new String[0];
+
+    /**
+     * The executor on which handlers are invoked. When null, handlers are
+     * invoked on the calling thread.
+     */
+    private ExecutorService handlerExecutor = null;
+
+    /**
+     * The maximum number of downloaded messages waiting for or being handled
+     * on the <pre>handlerExecutor</pre>.
+     */
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * The number of connections over which retrieval and handling are split.
+     */
+    private int shardCount = DEFAULT_SHARD_COUNT;
+
+    /**
+     * The ordering of e-mails retrieved over multiple connections.
+     */
+    private ShardOrdering shardOrdering = ShardOrdering.FOLDER_ORDER;
+
+    /**
+     * The maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * The maximum time, in milliseconds, a chunk is collected before it is
+     * handed to a <pre>{@link BatchEmailHandler}</pre>. Zero means there is no
+     * limit.
+     */
+    private long chunkLingerTime = DEFAULT_CHUNK_LINGER_TIME;
+
+    /**
+     * The maximum number of e-mails copied ahead by cursors and streams.
+     */
+    private int streamWindowSize = DEFAULT_STREAM_WINDOW_SIZE;
+
+    /**
+     * The store for UID checkpoints. When set, tasks process only messages
+     * added after the stored checkpoint.
+     */
+    private UidCheckpointStore uidCheckpointStore = null;
+
+    /**
+     * The journal of e-mail handling or null.
+     */
+    private ProcessingJournal processingJournal = null;
+
+    /**
+     * The metrics to which all tasks record their measurements.
+     */
+    private MailboxMetrics metrics = NoopMailboxMetrics.INSTANCE;
+
+    /**
+     * The spool which holds the content of message copies.
+     */
+    private MessageSpool messageSpool = MessageSpool.IN_MEMORY;
+
+    /**
+     * How much of each e-mail is downloaded up front.
+     */
+    private FetchMode fetchMode = FetchMode.FULL;
+
+    /**
+     * The additional search term which e-mails must match or null if there is
+     * none.
+     */
+    private SearchTerm searchFilter = null;
+
+    /**
+     * The connection pool or null if it is not created yet.
+     */
+    private ImapConnectionPool connectionPool = null;
+
+    /**
+     * Guards creation and closing of the connection pool.
+     */
+    private final ReentrantLock connectionPoolLock = new ReentrantLock();
+
+    /**
+     * A flag indicating if shard and subscription threads are virtual.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * The executor which invokes handlers on virtual threads when
+     * <pre>virtualThreads</pre> is true and no <pre>handlerExecutor</pre> is
+     * set, otherwise null.
+     */
+    private ExecutorService virtualHandlerExecutor = null;
+
     /**
      * A default connection timeout - infinite timeout.
      */
     private static final int DEFAULT_CONNECTION_TIMEOUT = -1;
 
+    /**
+     * A default maximum number of pooled connections - no pooling.
+     */
+    private static final int DEFAULT_MAX_POOLED_CONNECTIONS = 0;
+
+    /**
+     * A default maximum idle time of pooled connections - five minutes.
+     */
+    private static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000;
+
+    /**
+     * A default keep-alive interval of pooled connections - one minute.
+     */
+    private static final long DEFAULT_KEEP_ALIVE_INTERVAL = 60 * 1000;
+
+    /**
+     * A default prefetch size - one hundred messages.
+     */
+    private static final int DEFAULT_PREFETCH_SIZE = 100;
+
+    /**
+     * A default maximum number of messages handled in parallel.
+     */
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    /**
+     * A default shard count - a single connection.
+     */
+    private static final int DEFAULT_SHARD_COUNT = 1;
+
+    /**
+     * A default chunk size - fifty e-mails.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * A default chunk linger time - no limit.
+     */
+    private static final long DEFAULT_CHUNK_LINGER_TIME = 0;
+
+    /**
+     * A default stream window size - ten e-mails.
+     */
+    private static final int DEFAULT_STREAM_WINDOW_SIZE = 10;
+
+    /**
+     * A default minimum poll interval of subscriptions - one second.
+     */
+    private static final long DEFAULT_MIN_POLL_INTERVAL = 1000;
+
+    /**
+     * A default maximum poll interval of subscriptions - one minute.
+     */
+    private static final long DEFAULT_MAX_POLL_INTERVAL = 60 * 1000;
+
     /**
      * A default batch size - all e-mails.
      */
@@ -192,21 +412,14 @@ public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor {
             return doImapTask(new ImapFolderTask<List<Message>>() {
                 @Override
                 public List<Message> doTaskInFolder(Folder folder) throws Exception {
-                    List<Message> retrievedEmails = new LinkedList<>();
-                    Message[] messages = folder.search(getSearchTerm());
+                    UidCheckpointTracker tracker = newUidCheckpointTracker(folder);
+                    Message[] messages = findMessages(folder, tracker);
                     int retrieveCount = getRetrieveCount(messages.length);
 
-                    for (int i = 0; i < retrieveCount; i++) {
-                        if (messages[i].isSet(Flag.DELETED) || (!retrieveSeenEmails && messages[i].isSet(Flag.SEEN))) {
-                            LOG.trace("Skipping message {} because it is marked as DELETED or SEEN and retrieveSeenEmails is false!", i);
-                            continue;
-                        }
-                        retrievedEmails.add(copyOf(folder.getMessage(messages[i].getMessageNumber())));
-                        if (deleteAfterRetrieval) {
-                            LOG.trace("Marking message {} as DELETED.", i);
-                            messages[i].setFlag(Flags.Flag.DELETED, true);
-                        }
-                    }
+                    List<Message> retrievedEmails = new LinkedList<>();
+                    for (List<Message> shardEmails : runSharded(folder, messages, retrieveCount, tracker, ImapMailboxFolderTaskExecutor.this::retrieveMessages))
+                        retrievedEmails.addAll(shardEmails);
+                    if (tracker != null) tracker.save();
                     return retrievedEmails;
                 }
 
@@ -220,6 +433,64 @@ public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor {
         }
     }
 
+    /**
+     * Opens a cursor over the e-mails in the folder. The cursor keeps the
+     * connection open and copies at most <pre>streamWindowSize</pre> e-mails
+     * at a time, so memory use does not depend on the number of e-mails in
+     * the folder. The same e-mails as in <pre>{@link #retrieveEmails()}</pre>
+     * are returned, and each e-mail is marked as DELETED when it is returned
+     * if <pre>deleteAfterRetrieval</pre> is true.
+     *
+     * The cursor must be closed, which releases the connection.
+     *
+     * @return an open cursor.
+     * @throws MailBoxTaskExecutorException if the connection can't be
+     *                                      established or the folder can't be
+     *                                      searched.
+     */
+    public ImapEmailCursor openEmailCursor() throws MailBoxTaskExecutorException {
+        try {
+            return new ImapEmailCursor(this, streamWindowSize);
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while opening e-mail cursor on the mailbox folder.", ex);
+        }
+    }
+
+    /**
+     * Returns a stream over the e-mails in the folder, backed by
+     * <pre>{@link #openEmailCursor()}</pre>. The stream must be closed, for
+     * example with try-with-resources, which releases the connection. Errors
+     * while reading the stream are thrown as
+     * <pre>{@link UncheckedMailBoxTaskExecutorException}</pre>.
+     *
+     * @return a sequential stream of e-mails.
+     * @throws MailBoxTaskExecutorException if the connection can't be
+     *                                      established or the folder can't be
+     *                                      searched.
+     */
+    public Stream<Message> streamEmails() throws MailBoxTaskExecutorException {
+        ImapEmailCursor cursor = openEmailCursor();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cursor::close);
+    }
+
+    /**
+     * Returns a publisher of the e-mails in the folder. Each subscriber gets
+     * its own connection, opened on its first request, and e-mails are copied
+     * only as they are requested. An e-mail is marked as SEEN, and as DELETED
+     * if <pre>deleteAfterRetrieval</pre> is true, when the subscriber
+     * acknowledges it through its <pre>{@link ImapMessageSubscription}</pre>.
+     *
+     * @param deliveryExecutor the executor on which e-mails are fetched and
+     *                         delivered to subscribers.
+     * @return a new publisher.
+     */
+    public ImapMessagePublisher publishEmails(Executor deliveryExecutor) {
+        if (deliveryExecutor == null)
+            throw new IllegalArgumentException("Delivery executor must not be null!");
+        return new ImapMessagePublisher(this, deliveryExecutor);
+    }
+
     /**
      * {@inheritDoc}
      * Returns true if there are more e-mails in the folder, otherwise false.
@@ -236,7 +507,16 @@ public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor {
             return doImapTask(new ImapFolderTask<Boolean>() {
                 @Override
                 public Boolean doTaskInFolder(Folder folder) throws Exception {
-                    return folder.search(getSearchTerm()).length > 0;
+                    UidCheckpointTracker tracker = newUidCheckpointTracker(folder);
+                    Message[] messages = findMessages(folder, tracker);
+                    if (tracker == null)
+                        return messages.length > 0;
+                    for (int i = 0; i < messages.length; i++) {
+                        prefetchChunk(folder, messages, i, messages.length);
+                        if (!isSkipped(messages[i]))
+                            return true;
+                    }
+                    return false;
                 }
 
                 @Override
@@ -268,33 +548,7 @@ public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor {
             doImapTask(new ImapFolderTask<Void>() {
                 @Override
                 public Void doTaskInFolder(Folder folder) throws Exception {
-                    Message[] messages = folder.search(getSearchTerm());
-                    int retrieveCount = getRetrieveCount(messages.length);
-
-                    for (int i = 0; i < retrieveCount; i++) {
-                        Message message = messages[i];
-                        if (message.isSet(Flag.DELETED) || (!retrieveSeenEmails && message.isSet(Flag.SEEN))) {
-                            LOG.trace("Skipping message {} because it is marked as DELETED or SEEN and retrieveSeenEmails is false!", i);
-                            continue;
-                        }
-                        try {
-                            emailHandler.handleEmail(folder.getMessage(message.getMessageNumber()));
-                            if (deleteAfterRetrieval) {
-                                LOG.trace("Marking message {} as DELETED.", i);
-                                message.setFlag(Flags.Flag.DELETED, true);
-                            }
-                        } catch (Throwable e) {
-                            LOG.error("Error happened while handling e-mail message {}!", i, e);
-                            if (!retrieveSeenEmails && message.getFlags().contains(Flag.SEEN)) {
-                                LOG.trace("Reverting SEEN flag for message {}...", i);
-                                message.setFlag(Flags.Flag.SEEN, false);
-                            }
-                            if (message.getFlags().contains(Flag.DELETED)) {
-                                LOG.trace("Reverting DELETED flag for message {}...", i);
-                                message.setFlag(Flags.Flag.DELETED, false);
-                            }
-                        }
-                    }
+                    handleEmailsInFolder(folder, emailHandler);
                     return null;
                 }
 
@@ -309,153 +563,1462 @@ public class ImapMailboxFolderTaskExecutor implements MailboxTaskExecutor {
     }
 
     /**
-     * Returns a <pre>{@link SearchTerm}</pre> to be used when retrieving messages.
-     * Default term is only for unseen emails, but when retrieveSeenEmails is
-     * set to true it returns a union of terms for both unseen and seen messages.
+     * {@inheritDoc}
+     * The handler is invoked on chunks of up to <pre>chunkSize</pre> e-mails.
+     * A chunk is handed over early if <pre>chunkLingerTime</pre> passes while
+     * it is collected. Handled e-mails of a chunk are marked as DELETED, if
+     * <pre>deleteAfterRetrieval</pre> is true, and flags of failed e-mails
+     * are reverted, for the whole chunk at once. The handler is always
+     * invoked on the calling thread.
      *
-     * @return a search term to be used for message retrieval.
+     * @param batchEmailHandler handler for each chunk of e-mails.
+     * @throws MailBoxTaskExecutorException if some error happened during
+     *                                      execution.
      */
-    private SearchTerm getSearchTerm() {
-        Flags seenFlag = new Flags(Flag.SEEN);
-        FlagTerm unseenFlagTerm = new FlagTerm(seenFlag, false);
-        if (retrieveSeenEmails) {
-            FlagTerm seenFlagTerm = new FlagTerm(seenFlag, true);
-            return new OrTerm(unseenFlagTerm, seenFlagTerm);
+    @Override
+    public void executeForEachBatch(final BatchEmailHandler batchEmailHandler) throws MailBoxTaskExecutorException {
+        try {
+            doImapTask(new ImapFolderTask<Void>() {
+                @Override
+                public Void doTaskInFolder(Folder folder) throws Exception {
+                    UidCheckpointTracker tracker = newUidCheckpointTracker(folder);
+                    Message[] messages = findMessages(folder, tracker);
+                    int retrieveCount = getRetrieveCount(messages.length);
+
+                    runSharded(folder, messages, retrieveCount, tracker, (shardFolder, shardMessages, progress) -> {
+                        new BatchEmailDispatcher(ImapMailboxFolderTaskExecutor.this, shardFolder, chunkSize, chunkLingerTime, progress)
+                                .dispatch(shardMessages, batchEmailHandler);
+                        return null;
+                    });
+                    if (tracker != null) tracker.save();
+                    return null;
+                }
+
+                @Override
+                public String getTaskName() {
+                    return "ExecuteForEachBatchImapFolderTask";
+                }
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while executing task in folder.", ex);
         }
-        return unseenFlagTerm;
     }
 
     /**
-     * Returns a copy of passed message as a instance of
-     * <pre>{@link MimeMessage}</pre>.
+     * Subscribes the handler to the folder. The returned subscription keeps
+     * its own connection open and invokes the handler on each e-mail as soon
+     * as the server reports it, using IMAP IDLE when the server supports it
+     * and polling between <pre>minPollInterval</pre> and
+     * <pre>maxPollInterval</pre> otherwise. The same flag handling as in
+     * <pre>{@link #executeForEachEmail(EmailHandler)}</pre> applies.
      *
-     * @param message a message to copy.
-     * @return a copy of the message.
-     * @throws MessagingException if passed message failed to copy.
+     * The subscription runs until it is closed.
+     *
+     * @param emailHandler handler for each e-mail.
+     * @return the running subscription.
      */
-    private Message copyOf(Message message) throws MessagingException {
-        return new MimeMessage((MimeMessage) message);
+    public ImapFolderSubscription subscribe(EmailHandler emailHandler) {
+        return new ImapFolderSubscription(this, emailHandler, minPollInterval, maxPollInterval);
     }
 
     /**
-     * Returns the number of messages to retrieve depending on the set
-     * <pre>batchSize</pre> and the current number of messages in the folder.
-     *
-     * If batch size is set to 0, the number of messages in the folder will be
-     * returned. If
-     * <pre>batchSize</pre> is greater than 0 and number of messages is greater
-     * than
-     * <pre>batchSize</pre> number will be returned. If
-     * <pre>batchSize</pre> is greater then zero and number of messages is
-     * smaller than
-     * <pre>batchSize</pre>, the number of messages in folder will be returned.
+     * Searches the folder and invokes the handler on each found e-mail, up to
+     * <pre>batchSize</pre> e-mails.
      *
-     * @param numberOfMessages number of messages in the folder.
-     * @return the number of messages that should be retrieved.
+     * @param folder       the opened folder.
+     * @param emailHandler handler for each e-mail.
+     * @throws MessagingException if the folder can't be searched or flags
+     *                            can't be changed.
      */
-    private int getRetrieveCount(int numberOfMessages) {
-        return batchSize == 0 ? numberOfMessages
-                : numberOfMessages < batchSize ? numberOfMessages : batchSize;
+    void handleEmailsInFolder(Folder folder, EmailHandler emailHandler) throws Exception {
+        UidCheckpointTracker tracker = newUidCheckpointTracker(folder);
+        ProcessingJournal.Session journal = newJournalSession(folder, emailHandler instanceof LazyUnlinkedEmailHandler || (getEffectiveHandlerExecutor() != null && isCopiedWithPeek()));
+        try {
+            Message[] messages = findMessages(folder, tracker);
+            int retrieveCount = getRetrieveCount(messages.length);
+
+            runSharded(folder, messages, retrieveCount, tracker, (shardFolder, shardMessages, progress) -> {
+                handleMessages(shardFolder, shardMessages, emailHandler, progress, journal);
+                return null;
+            });
+            if (tracker != null) tracker.save();
+        } catch (Exception e) {
+            if (journal != null) journal.abandon();
+            throw e;
+        }
+        if (journal != null) journal.finish();
     }
 
     /**
-     * The common skeleton for all tasks. Handles the connection to the IMAP
-     * mailbox.
+     * Copies each message which is not skipped and marks it as DELETED if
+     * <pre>deleteAfterRetrieval</pre> is true.
      *
-     * @param <T>      return type of the <pre>ImapFolderTask</pre>.
-     * @param imapTask task to execute.
-     * @return the result of task execution.
-     * @throws Exception if the connection can't be established successfully or
-     *                   the task fails.
+     * @param folder   the opened folder.
+     * @param messages messages to retrieve.
+     * @param progress the progress listener or null.
+     * @return copies of the retrieved messages.
+     * @throws MessagingException if a message can't be copied or flagged.
      */
-    private <T> T doImapTask(final ImapFolderTask<T> imapTask) throws Exception {
-        Folder folder = null;
-        Store store = null;
-
+    private List<Message> retrieveMessages(Folder folder, Message[] messages, MessageProgress progress) throws MessagingException {
+        List<Message> retrievedEmails = new ArrayList<>(messages.length);
+        FlagUpdateBuffer flagUpdates = newFlagUpdateBuffer(folder);
         try {
-            Properties properties = configureSessionProperties();
-            Session session = Session.getInstance(properties);
-            store = getAndConnectStore(session);
-
-            folder = store.getFolder(folderName);
-            if (!folder.exists()) {
-                throw new IllegalArgumentException("The specified folder doesn't exist!");
+            for (int i = 0; i < messages.length; i++) {
+                prefetchChunk(folder, messages, i, messages.length);
+                if (!skip(messages[i], i)) {
+                    retrievedEmails.add(copyFromFolder(folder, messages[i], false));
+                    if (isCopiedWithPeek())
+                        markSeen(messages[i], i, flagUpdates);
+                    if (deleteAfterRetrieval) {
+                        LOG.trace("Marking message {} as DELETED.", i);
+                        flagUpdates.update(messages[i], Flags.Flag.DELETED, true);
+                    }
+                    TaskMetrics.current().message(MessageOutcome.PROCESSED);
+                }
+                if (progress != null) progress.processed(messages[i]);
             }
-            folder.open(Folder.READ_WRITE);
+            flagUpdates.flush();
+        } finally {
+            flagUpdates.flushQuietly();
+        }
+        return retrievedEmails;
+    }
 
-            LOG.trace("Starting {} with retrieveSeenEmails set to {} and deleteAfterRetrieval set to {}.", imapTask.getTaskName(), retrieveSeenEmails, deleteAfterRetrieval);
-            long startTime = System.currentTimeMillis();
-            T result = imapTask.doTaskInFolder(folder);
-            long endTime = System.currentTimeMillis();
+    /**
+     * Invokes the handler on each message which is not skipped, either on the
+     * calling thread or on the handler executor.
+     *
+     * @param folder       the opened folder.
+     * @param messages     messages to handle.
+     * @param emailHandler handler for each e-mail.
+     * @param progress     the progress listener or null.
+     * @param journal      the journal session or null.
+     * @throws Exception if messages can't be handled or flagged.
+     */
+    private void handleMessages(Folder folder, Message[] messages, EmailHandler emailHandler, MessageProgress progress, ProcessingJournal.Session journal) throws Exception {
+        ExecutorService executor = getEffectiveHandlerExecutor();
+        if (executor != null) {
+            new ParallelEmailDispatcher(this, folder, executor, maxInFlight, progress, journal)
+                    .dispatch(messages, messages.length, emailHandler);
+            return;
+        }
 
-            LOG.info("Finished task {}, with result {} in {} seconds", imapTask.getTaskName(), result, (endTime - startTime) / 1000);
-            return result;
-        } catch (Exception e) {
-            expunge = false;
-            LOG.error("Error happened while executing task {}!", imapTask.getTaskName(), e);
-            throw new MailBoxTaskExecutorException("Error while retrieving e-mails.", e);
+        FlagUpdateBuffer flagUpdates = newFlagUpdateBuffer(folder);
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                prefetchChunk(folder, messages, i, messages.length);
+                Message message = messages[i];
+                if (skip(message, i) || isJournaledAsDone(folder, message, i, journal)) {
+                    if (progress != null) progress.processed(message);
+                    continue;
+                }
+                boolean handled = handleEmail(folder, message, i, emailHandler, flagUpdates, journal);
+                if (progress != null) {
+                    if (handled) progress.processed(message);
+                    else progress.failed();
+                }
+            }
+            flagUpdates.flush();
         } finally {
-            if (folder != null && folder.isOpen()) folder.close(expunge);
-            if (store != null) store.close();
+            flagUpdates.flushQuietly();
         }
     }
 
     /**
-     * Retrieves a <pre>{@link Store}</pre> from passed <pre>{@link Session}</pre>
-     * object and connects to it using <pre>imapHostAddress</pre>, <pre>username</pre>,
-     * <pre>password</pre> and, if defined, <pre>port</pre>.
+     * Runs the shard task on the first <pre>count</pre> messages. If
+     * <pre>shardCount</pre> is greater then one, the messages are split into
+     * contiguous UID ranges and each range is processed over its own
+     * connection in parallel; the first range is processed in the given
+     * folder. Otherwise all messages are processed in the given folder.
      *
-     * @param session session from which to get the <pre>{@link Store}</pre>.
-     * @return a new and connected <pre>{@link Store}</pre> from passed
-     * <pre>Session</pre>.
-     * @throws Exception if <pre>Store</pre> can't be retrieved and/ot connected to.
+     * @param folder    the opened folder.
+     * @param messages  messages to process.
+     * @param count     number of messages to process.
+     * @param tracker   the checkpoint tracker or null.
+     * @param shardTask the task to run for each shard.
+     * @param <T>       the result type of the shard task.
+     * @return results of the shards, ordered by <pre>shardOrdering</pre>.
+     * @throws Exception if some shard fails.
      */
-    private Store getAndConnectStore(Session session) throws Exception {
-        Store store = session.getStore();
-        if (port == null)
-            store.connect(imapHostAddress, username, password);
-        else
-            store.connect(imapHostAddress, port, username, password);
-        return store;
+    private <T> List<T> runSharded(Folder folder, Message[] messages, int count, UidCheckpointTracker tracker, ShardTask<T> shardTask) throws Exception {
+        int shards = Math.min(shardCount, count);
+        if (getConnectionPool() != null)
+            shards = Math.min(shards, maxPooledConnections);
+        if (shards <= 1 || !(folder instanceof UIDFolder))
+            return Collections.singletonList(shardTask.run(folder, Arrays.copyOf(messages, count), tracker));
+        return new ShardedExecution<>(this, folder, shardTask, shardOrdering).run(messages, count, shards, tracker);
     }
 
     /**
-     * Configures IMAP session properties based on <pre>secure</pre> and
-     * <pre>connectionTimeout</pre> values.
+     * A task which processes one shard of messages.
      *
-     * @return IMAP session properties.
+     * @param <T> the result type.
      */
-    private Properties configureSessionProperties() {
-        Properties properties = new Properties();
-        properties.setProperty("mail.imap.connectiontimeout", String.valueOf(connectionTimeout));
-        if (secure) {
-            properties.setProperty("mail.store.protocol", "imaps");
-            properties.setProperty("mail.imap.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
-            properties.setProperty("mail.imap.socketFactory.fallback", "false");
-        } else
-            properties.setProperty("mail.store.protocol", "imap");
-        return properties;
+    interface ShardTask<T> {
+
+        /**
+         * Processes the messages of one shard.
+         *
+         * @param folder   the opened folder of the shard connection.
+         * @param messages messages of the shard.
+         * @param progress the progress listener or null.
+         * @return the result of the shard.
+         * @throws Exception if processing fails.
+         */
+        T run(Folder folder, Message[] messages, MessageProgress progress) throws Exception;
     }
 
     /**
-     * Returns the current connection timeout.
+     * Returns the messages to process. Without a UID checkpoint store the
+     * folder is searched with <pre>{@link #getSearchTerm()}</pre>, otherwise
+     * only the messages added after the stored checkpoint which match the
+     * search filter are returned.
      *
-     * @return connection timeout.
+     * @param folder  the opened folder.
+     * @param tracker the checkpoint tracker or null if there is no UID
+     *                checkpoint store.
+     * @return messages to process.
+     * @throws MessagingException if the messages can't be found.
      */
-    public int getConnectionTimeout() {
-        return connectionTimeout;
+    Message[] findMessages(Folder folder, UidCheckpointTracker tracker) throws MessagingException {
+        TaskMetrics.PhaseTimer search = TaskMetrics.current().start(TaskPhase.SEARCH);
+        Message[] messages = tracker == null ? folder.search(getSearchTerm()) : applySearchFilter(folder, tracker.findNewMessages());
+        search.stop();
+        return messages;
     }
 
     /**
-     * Sets the connection timeout for IMAP connection. Timeout bust be positive
-     * or it can be -1 which means infinite timeout (no timeout).
+     * Prefetches the next chunk of <pre>prefetchSize</pre> messages when the
+     * processing reaches the start of the chunk. The envelope, flags, UID, size
+     * and <pre>prefetchHeaders</pre> of all messages in the chunk are fetched
+     * with a single command, so reading them while processing does not need
+     * a round trip to the server for each message.
      *
-     * @param connectionTimeout timeout to set.
+     * Every processing loop calls this before each message, so it is also
+     * where a task whose thread was interrupted, for example by cancelling
+     * an asynchronous task, stops.
+     *
+     * @param folder   the opened folder.
+     * @param messages messages to process.
+     * @param index    index of the message which is about to be processed.
+     * @param count    number of messages which will be processed.
+     * @throws MessagingException if the messages can't be fetched or the
+     *                            thread was interrupted.
      */
-    public void setConnectionTimeout(int connectionTimeout) {
-        if (connectionTimeout < -1)
-            throw new IllegalArgumentException("Connection timeout must be greater then or equal to -1!");
-        this.connectionTimeout = connectionTimeout;
+    void prefetchChunk(Folder folder, Message[] messages, int index, int count) throws MessagingException {
+        if (Thread.currentThread().isInterrupted())
+            throw new MessagingException("The task was interrupted before message " + index + "!", new InterruptedException());
+        if (prefetchSize == 0 || index % prefetchSize != 0)
+            return;
+        Message[] chunk = Arrays.copyOfRange(messages, index, Math.min(count, index + prefetchSize));
+        LOG.trace("Prefetching messages {} to {}.", index, index + chunk.length - 1);
+        TaskMetrics.PhaseTimer fetch = TaskMetrics.current().start(TaskPhase.FETCH);
+        folder.fetch(chunk, getFetchProfile(folder));
+        fetch.stop(chunk[0].getMessageNumber(), -1);
+    }
+
+    /**
+     * Returns the <pre>{@link FetchProfile}</pre> used for prefetching.
+     *
+     * @param folder the opened folder.
+     * @return the fetch profile.
+     */
+    private FetchProfile getFetchProfile(Folder folder) {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+        if (folder instanceof UIDFolder)
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        if (folder instanceof IMAPFolder)
+            fetchProfile.add(IMAPFolder.FetchProfileItem.SIZE);
+        if (fetchMode != FetchMode.FULL && folder instanceof IMAPFolder)
+            fetchProfile.add(IMAPFolder.FetchProfileItem.HEADERS);
+        if (fetchMode == FetchMode.STRUCTURE)
+            fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        for (String header : prefetchHeaders)
+            fetchProfile.add(header);
+        return fetchProfile;
+    }
+
+    /**
+     * Returns a new tracker for the task in the given folder, or null if the
+     * UID checkpoint store is not set.
+     *
+     * @param folder the opened folder.
+     * @return a new tracker or null.
+     * @throws Exception if the checkpoint can't be loaded.
+     */
+    UidCheckpointTracker newUidCheckpointTracker(Folder folder) throws Exception {
+        if (uidCheckpointStore == null)
+            return null;
+        if (!(folder instanceof UIDFolder))
+            throw new IllegalStateException("Incremental processing requires a folder with UID support!");
+        return new UidCheckpointTracker(uidCheckpointStore, getFolderKey(), (UIDFolder) folder);
+    }
+
+    /**
+     * Invokes the handler on a single e-mail. If the handling succeeds and
+     * <pre>deleteAfterRetrieval</pre> is true the message is marked as
+     * DELETED. The server marks the message as SEEN when the handler reads its
+     * body; it is marked explicitly only for an
+     * <pre>{@link LazyUnlinkedEmailHandler}</pre>, whose copy may not download the
+     * body. If the handling fails, flags set during the handling are
+     * reverted. With a journal session the handling is recorded before the
+     * handler is invoked and after it returns.
+     *
+     * @param folder       the opened folder.
+     * @param message      the message to handle.
+     * @param index        index of the message used for logging.
+     * @param emailHandler handler for the e-mail.
+     * @param flagUpdates  the buffer for flag changes.
+     * @param journal      the journal session or null.
+     * @return true if the e-mail was handled successfully, otherwise false.
+     * @throws MessagingException if flags can't be changed or the journal
+     *                            can't be written.
+     */
+    boolean handleEmail(Folder folder, Message message, int index, EmailHandler emailHandler, FlagUpdateBuffer flagUpdates, ProcessingJournal.Session journal) throws MessagingException {
+        long uid = journal == null ? -1 : ((UIDFolder) folder).getUID(message);
+        try {
+            if (journal != null) journal.begun(uid);
+        } catch (IOException e) {
+            throw new MessagingException("Could not write the processing journal.", e);
+        }
+        TaskMetrics taskMetrics = TaskMetrics.current();
+        TaskMetrics.PhaseTimer handle = taskMetrics.start(TaskPhase.HANDLE);
+        try {
+            emailHandler.handleEmail(getMessageForHandling(folder, message));
+        } catch (Throwable e) {
+            handle.stop(message);
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            emailHandlingFailed(message, index, e, flagUpdates);
+            journalFinished(journal, uid, false);
+            return false;
+        }
+        handle.stop(message);
+        taskMetrics.bytes(message.getSize());
+        emailHandled(message, index, emailHandler instanceof LazyUnlinkedEmailHandler, flagUpdates);
+        journalFinished(journal, uid, true);
+        return true;
+    }
+
+    /**
+     * Records in the journal that handling of the message completed or
+     * failed.
+     *
+     * @param journal the journal session or null.
+     * @param uid     the UID of the message.
+     * @param handled true if the handling completed, false if it failed.
+     * @throws MessagingException if the journal can't be written.
+     */
+    void journalFinished(ProcessingJournal.Session journal, long uid, boolean handled) throws MessagingException {
+        if (journal == null)
+            return;
+        try {
+            journal.finished(uid, handled);
+        } catch (IOException e) {
+            throw new MessagingException("Could not write the processing journal.", e);
+        }
+    }
+
+    /**
+     * Returns true if the journal recorded that handling of the message
+     * completed in a task which did not finish.
+     *
+     * @param folder  the opened folder.
+     * @param message message to check.
+     * @param index   index of the message used for logging.
+     * @param journal the journal session or null.
+     * @return true if the message must not be handled again, otherwise false.
+     * @throws MessagingException if the UID can't be read.
+     */
+    boolean isJournaledAsDone(Folder folder, Message message, int index, ProcessingJournal.Session journal) throws MessagingException {
+        if (journal == null || !journal.isDone(((UIDFolder) folder).getUID(message)))
+            return false;
+        LOG.trace("Skipping message {} because the journal recorded it as handled.", index);
+        TaskMetrics.current().message(MessageOutcome.SKIPPED);
+        return true;
+    }
+
+    /**
+     * Returns a new journal session for a task in the given folder, or null
+     * if the processing journal is not set. Records left by tasks which did
+     * not finish are replayed: completed messages are marked as SEEN, if
+     * <pre>forceSeen</pre> is true, and as DELETED if
+     * <pre>deleteAfterRetrieval</pre> is true, and messages which were being
+     * handled or failed are marked as unseen and not deleted.
+     *
+     * @param folder    the opened folder.
+     * @param forceSeen true if the task marks handled messages as SEEN
+     *                  itself, see <pre>{@link #markSeen}</pre>.
+     * @return a new journal session or null.
+     * @throws MessagingException if the flags can't be changed.
+     */
+    ProcessingJournal.Session newJournalSession(Folder folder, boolean forceSeen) throws MessagingException {
+        if (processingJournal == null)
+            return null;
+        if (!(folder instanceof UIDFolder))
+            throw new IllegalStateException("The processing journal requires a folder with UID support!");
+        UIDFolder uidFolder = (UIDFolder) folder;
+        ProcessingJournal.Session journal = processingJournal.begin(getFolderKey(), uidFolder.getUIDValidity());
+        FlagUpdateBuffer flagUpdates = newFlagUpdateBuffer(folder);
+        try {
+            for (Map.Entry<Long, Character> recovered : journal.getRecovered().entrySet()) {
+                Message message = uidFolder.getMessageByUID(recovered.getKey());
+                if (message == null)
+                    continue;
+                if (recovered.getValue() == ProcessingJournal.DONE) {
+                    LOG.debug("Replaying completed handling of message with UID {}.", recovered.getKey());
+                    if (forceSeen)
+                        markSeen(message, message.getMessageNumber(), flagUpdates);
+                    if (deleteAfterRetrieval)
+                        flagUpdates.update(message, Flags.Flag.DELETED, true);
+                } else {
+                    LOG.debug("Reverting interrupted handling of message with UID {}.", recovered.getKey());
+                    if (!retrieveSeenEmails && message.isSet(Flag.SEEN))
+                        flagUpdates.update(message, Flags.Flag.SEEN, false);
+                    if (message.isSet(Flag.DELETED))
+                        flagUpdates.update(message, Flags.Flag.DELETED, false);
+                }
+            }
+            flagUpdates.flush();
+        } catch (MessagingException | RuntimeException e) {
+            journal.abandon();
+            throw e;
+        } finally {
+            flagUpdates.flushQuietly();
+        }
+        return journal;
+    }
+
+    /**
+     * Returns the key which identifies the mailbox folder in UID checkpoints
+     * and the processing journal.
+     *
+     * @return the folder key.
+     */
+    private String getFolderKey() {
+        return username + "@" + imapHostAddress + "/" + folderName;
+    }
+
+    /**
+     * Marks the successfully handled message as SEEN, if <pre>forceSeen</pre>
+     * is true, and as DELETED if <pre>deleteAfterRetrieval</pre> is true.
+     *
+     * @param message     the handled message.
+     * @param index       index of the message used for logging.
+     * @param forceSeen   true if the handler was given a copy whose body may
+     *                    not have been read without <pre>BODY.PEEK</pre>.
+     * @param flagUpdates the buffer for flag changes.
+     * @throws MessagingException if the flag can't be set.
+     */
+    void emailHandled(Message message, int index, boolean forceSeen, FlagUpdateBuffer flagUpdates) throws MessagingException {
+        TaskMetrics.current().message(MessageOutcome.PROCESSED);
+        if (forceSeen)
+            markSeen(message, index, flagUpdates);
+        if (deleteAfterRetrieval) {
+            LOG.trace("Marking message {} as DELETED.", index);
+            flagUpdates.update(message, Flags.Flag.DELETED, true);
+        }
+    }
+
+    /**
+     * Marks the processed message as SEEN, unless <pre>retrieveSeenEmails</pre>
+     * is true or it is SEEN already. The server marks a message as SEEN when
+     * its body is read, so this is only needed for messages processed through
+     * copies whose body was not read, or was read with <pre>BODY.PEEK</pre>.
+     * Messages handed to handlers directly are never marked this way, so flag
+     * changes made by the handler are kept.
+     *
+     * @param message     the processed message.
+     * @param index       index of the message used for logging.
+     * @param flagUpdates the buffer for flag changes.
+     * @throws MessagingException if the flag can't be read or set.
+     */
+    void markSeen(Message message, int index, FlagUpdateBuffer flagUpdates) throws MessagingException {
+        if (!retrieveSeenEmails && !message.isSet(Flag.SEEN)) {
+            LOG.trace("Marking message {} as SEEN.", index);
+            flagUpdates.update(message, Flags.Flag.SEEN, true);
+        }
+    }
+
+    /**
+     * Reverts the SEEN and DELETED flags set while handling the message.
+     *
+     * @param message     the message whose handling failed.
+     * @param index       index of the message used for logging.
+     * @param error       the handling error.
+     * @param flagUpdates the buffer for flag changes.
+     * @throws MessagingException if flags can't be reverted.
+     */
+    void emailHandlingFailed(Message message, int index, Throwable error, FlagUpdateBuffer flagUpdates) throws MessagingException {
+        LOG.error("Error happened while handling e-mail message {}!", index, error);
+        TaskMetrics.current().message(MessageOutcome.FAILED);
+        Flags flags = message.getFlags();
+        if (!retrieveSeenEmails && flags.contains(Flag.SEEN)) {
+            LOG.trace("Reverting SEEN flag for message {}...", index);
+            flagUpdates.update(message, Flags.Flag.SEEN, false);
+        }
+        if (flags.contains(Flag.DELETED)) {
+            LOG.trace("Reverting DELETED flag for message {}...", index);
+            flagUpdates.update(message, Flags.Flag.DELETED, false);
+        }
+    }
+
+    /**
+     * Returns a new buffer for flag changes in the folder. Changes are
+     * applied in chunks of <pre>prefetchSize</pre> messages.
+     *
+     * @param folder the opened folder.
+     * @return a new flag update buffer.
+     */
+    FlagUpdateBuffer newFlagUpdateBuffer(Folder folder) {
+        return new FlagUpdateBuffer(folder, prefetchSize > 0 ? prefetchSize : DEFAULT_PREFETCH_SIZE);
+    }
+
+    /**
+     * Returns true if the message should not be processed because it is
+     * marked as DELETED, or it is marked as SEEN and
+     * <pre>retrieveSeenEmails</pre> is false.
+     *
+     * @param message message to check.
+     * @return true if the message should be skipped, otherwise false.
+     * @throws MessagingException if message flags can't be read.
+     */
+    boolean isSkipped(Message message) throws MessagingException {
+        return message.isSet(Flag.DELETED) || (!retrieveSeenEmails && message.isSet(Flag.SEEN));
+    }
+
+    /**
+     * Returns true if the message should be skipped, and records it as
+     * skipped.
+     *
+     * @param message message to check.
+     * @param index   index of the message used for logging.
+     * @return true if the message should be skipped, otherwise false.
+     * @throws MessagingException if message flags can't be read.
+     * @see #isSkipped(Message)
+     */
+    boolean skip(Message message, int index) throws MessagingException {
+        if (!isSkipped(message))
+            return false;
+        LOG.trace("Skipping message {} because it is marked as DELETED or SEEN and retrieveSeenEmails is false!", index);
+        TaskMetrics.current().message(MessageOutcome.SKIPPED);
+        return true;
+    }
+
+    /**
+     * Returns a <pre>{@link SearchTerm}</pre> to be used when retrieving messages.
+     * The term matches messages which are not deleted and, unless
+     * retrieveSeenEmails is set to true, not seen. If the search filter is set
+     * it is combined with them, so the server does all the filtering in a
+     * single SEARCH.
+     *
+     * @return a search term to be used for message retrieval.
+     */
+    private SearchTerm getSearchTerm() {
+        Flags excludedFlags = new Flags(Flag.DELETED);
+        if (!retrieveSeenEmails)
+            excludedFlags.add(Flag.SEEN);
+        FlagTerm flagTerm = new FlagTerm(excludedFlags, false);
+        return searchFilter == null ? flagTerm : new AndTerm(flagTerm, searchFilter);
+    }
+
+    /**
+     * Returns the messages which match the search filter, searching only
+     * among the given messages on the server. If the search filter is not set
+     * the messages are returned as they are.
+     *
+     * @param folder   the opened folder.
+     * @param messages messages to filter.
+     * @return the matching messages.
+     * @throws MessagingException if the folder can't be searched.
+     */
+    Message[] applySearchFilter(Folder folder, Message[] messages) throws MessagingException {
+        if (searchFilter == null || messages.length == 0)
+            return messages;
+        return folder.search(searchFilter, messages);
+    }
+
+    /**
+     * Returns a factory of the threads the executor starts itself, virtual
+     * ones if <pre>virtualThreads</pre> is true and daemon platform threads
+     * otherwise.
+     *
+     * @param name the name of the threads.
+     * @return a new thread factory.
+     */
+    ThreadFactory newThreadFactory(String name) {
+        if (virtualThreads)
+            return VirtualThreads.newThreadFactory(name);
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns the executor on which handlers are invoked, the
+     * <pre>handlerExecutor</pre> if it is set and the virtual thread one if
+     * <pre>virtualThreads</pre> is true.
+     *
+     * @return the executor or null if handlers are invoked on the calling
+     * thread.
+     */
+    private ExecutorService getEffectiveHandlerExecutor() {
+        if (handlerExecutor != null)
+            return handlerExecutor;
+        return virtualHandlerExecutor;
+    }
+
+    /**
+     * Returns a copy of passed message as a instance of
+     * <pre>{@link MimeMessage}</pre>. The content of the copy is held by the
+     * <pre>messageSpool</pre>.
+     *
+     * @param message a message to copy.
+     * @return a copy of the message.
+     * @throws MessagingException if passed message failed to copy.
+     */
+    Message copyOf(Message message) throws MessagingException {
+        return messageSpool.copyOf((MimeMessage) message);
+    }
+
+    /**
+     * Returns true if copies of messages are read with <pre>BODY.PEEK</pre>,
+     * which happens unless <pre>fetchMode</pre> is <pre>FULL</pre>, so the
+     * server doesn't mark their messages as SEEN.
+     *
+     * @return true if copies are read with <pre>BODY.PEEK</pre>, otherwise
+     * false.
+     */
+    boolean isCopiedWithPeek() {
+        return fetchMode != FetchMode.FULL;
+    }
+
+    /**
+     * Returns the message of the folder prepared for a handler. Its body is
+     * read without <pre>BODY.PEEK</pre>, even if an earlier copy in the same
+     * folder set it, so the server marks the message as SEEN when the handler
+     * reads the body.
+     *
+     * @param folder  the opened folder.
+     * @param message a message to handle.
+     * @return the message of the folder.
+     * @throws MessagingException if the message can't be found.
+     */
+    Message getMessageForHandling(Folder folder, Message message) throws MessagingException {
+        Message folderMessage = folder.getMessage(message.getMessageNumber());
+        if (folderMessage instanceof IMAPMessage)
+            ((IMAPMessage) folderMessage).setPeek(false);
+        return folderMessage;
+    }
+
+    /**
+     * Returns the message of the folder prepared for copying. If
+     * <pre>peek</pre> is true its body is read with <pre>BODY.PEEK</pre>, so
+     * reading it does not mark it as SEEN, otherwise without it, even if an
+     * earlier copy in the same folder set it.
+     *
+     * @param folder  the opened folder.
+     * @param message a message to read.
+     * @param peek    true if the body is read with <pre>BODY.PEEK</pre>.
+     * @return the message of the folder.
+     * @throws MessagingException if the message can't be found.
+     */
+    Message getMessageForReading(Folder folder, Message message, boolean peek) throws MessagingException {
+        Message folderMessage = folder.getMessage(message.getMessageNumber());
+        if (folderMessage instanceof IMAPMessage)
+            ((IMAPMessage) folderMessage).setPeek(peek);
+        return folderMessage;
+    }
+
+    /**
+     * Downloads and copies the message from the folder, recording the fetch
+     * time and the message size. Unless <pre>fetchMode</pre> is
+     * <pre>FULL</pre> only the headers are copied. The body of such a copy is
+     * downloaded on first read if <pre>onDemand</pre> is true, otherwise the
+     * copy is unlinked from the folder and reading its body throws a
+     * <pre>MessagingException</pre>.
+     *
+     * @param folder   the opened folder.
+     * @param message  a message to copy.
+     * @param onDemand true if the copy is read only while the folder is open.
+     * @return a copy of the message.
+     * @throws MessagingException if the message failed to copy.
+     * @see #isCopiedWithPeek()
+     */
+    Message copyFromFolder(Folder folder, Message message, boolean onDemand) throws MessagingException {
+        return copyFromFolder(folder, message, onDemand, isCopiedWithPeek());
+    }
+
+    /**
+     * Downloads and copies the message from the folder like
+     * <pre>{@link #copyFromFolder(Folder, Message, boolean)}</pre>, reading
+     * its body with <pre>BODY.PEEK</pre> if <pre>peek</pre> is true,
+     * regardless of <pre>fetchMode</pre>.
+     *
+     * @param folder   the opened folder.
+     * @param message  a message to copy.
+     * @param onDemand true if the copy is read only while the folder is open.
+     * @param peek     true if the body is read with <pre>BODY.PEEK</pre>.
+     * @return a copy of the message.
+     * @throws MessagingException if the message failed to copy.
+     */
+    Message copyFromFolder(Folder folder, Message message, boolean onDemand, boolean peek) throws MessagingException {
+        TaskMetrics taskMetrics = TaskMetrics.current();
+        TaskMetrics.PhaseTimer fetch = taskMetrics.start(TaskPhase.FETCH);
+        Message source = getMessageForReading(folder, message, peek);
+        Message copy;
+        if (fetchMode == FetchMode.FULL)
+            copy = copyOf(source);
+        else {
+            DetachedMimeMessage detached = new DetachedMimeMessage((MimeMessage) source, messageSpool);
+            if (!onDemand)
+                detached.unlink();
+            copy = detached;
+        }
+        fetch.stop(message);
+        taskMetrics.bytes(message.getSize());
+        return copy;
+    }
+
+    /**
+     * Returns the number of messages to retrieve depending on the set
+     * <pre>batchSize</pre> and the current number of messages in the folder.
+     *
+     * If batch size is set to 0, the number of messages in the folder will be
+     * returned. If
+     * <pre>batchSize</pre> is greater than 0 and number of messages is greater
+     * than
+     * <pre>batchSize</pre> number will be returned. If
+     * <pre>batchSize</pre> is greater then zero and number of messages is
+     * smaller than
+     * <pre>batchSize</pre>, the number of messages in folder will be returned.
+     *
+     * @param numberOfMessages number of messages in the folder.
+     * @return the number of messages that should be retrieved.
+     */
+    int getRetrieveCount(int numberOfMessages) {
+        return batchSize == 0 ? numberOfMessages
+                : numberOfMessages < batchSize ? numberOfMessages : batchSize;
+    }
+
+    /**
+     * The common skeleton for all tasks. Handles the connection to the IMAP
+     * mailbox.
+     *
+     * @param <T>      return type of the <pre>ImapFolderTask</pre>.
+     * @param imapTask task to execute.
+     * @return the result of task execution.
+     * @throws Exception if the connection can't be established successfully or
+     *                   the task fails.
+     */
+    private <T> T doImapTask(final ImapFolderTask<T> imapTask) throws Exception {
+        ImapConnection connection = null;
+        boolean succeeded = false;
+        TaskMetrics taskMetrics = newTaskMetrics(imapTask.getTaskName());
+        TaskMetrics previous = taskMetrics.enter();
+        TaskMetrics.PhaseTimer task = taskMetrics.start(TaskPhase.TASK);
+
+        try {
+            connection = acquireConnection();
+            Folder folder = connection.getFolder();
+
+            LOG.trace("Starting {} with retrieveSeenEmails set to {} and deleteAfterRetrieval set to {}.", imapTask.getTaskName(), retrieveSeenEmails, deleteAfterRetrieval);
+            T result = imapTask.doTaskInFolder(folder);
+
+            LOG.info("Finished task {}, with result {} in {} ms", imapTask.getTaskName(), result, task.getElapsedMillis());
+            succeeded = true;
+            return result;
+        } catch (Exception e) {
+            expunge = false;
+            LOG.error("Error happened while executing task {}!", imapTask.getTaskName(), e);
+            throw new MailBoxTaskExecutorException("Error while retrieving e-mails.", e);
+        } finally {
+            try {
+                if (connection != null) releaseConnection(connection, succeeded);
+            } finally {
+                task.stop();
+                TaskMetrics.exit(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns new task metrics for the task, tagged with the task name and
+     * <pre>folderName</pre>.
+     *
+     * @param taskName the name of the task.
+     * @return new task metrics.
+     */
+    TaskMetrics newTaskMetrics(String taskName) {
+        return new TaskMetrics(metrics, taskName, folderName);
+    }
+
+    /**
+     * Returns a connection with the opened folder. The connection is taken
+     * from the pool if pooling is enabled, otherwise a new one is opened.
+     *
+     * @return a connection with the opened folder.
+     * @throws Exception if the connection can't be established.
+     */
+    ImapConnection acquireConnection() throws Exception {
+        ImapConnectionPool pool = getConnectionPool();
+        return pool == null ? openConnection() : pool.borrow();
+    }
+
+    /**
+     * Releases the connection after a task. The folder is expunged only if
+     * the task succeeded. Without pooling the connection is closed. With
+     * pooling the connection is returned to the pool which opened it if the
+     * task succeeded, otherwise it is discarded. That pool may already be
+     * replaced by a new one if settings changed during the task; a closed
+     * pool closes the returned connection.
+     *
+     * @param connection connection to release.
+     * @param succeeded  true if the task succeeded.
+     * @throws MessagingException if the folder can't be closed or expunged.
+     */
+    void releaseConnection(ImapConnection connection, boolean succeeded) throws MessagingException {
+        ImapConnectionPool pool = connection.getPool();
+        if (pool == null) {
+            connection.close(expunge && succeeded);
+            return;
+        }
+        if (!succeeded) {
+            pool.invalidate(connection);
+            return;
+        }
+        try {
+            if (expunge) connection.getFolder().expunge();
+        } catch (MessagingException e) {
+            pool.invalidate(connection);
+            throw e;
+        }
+        pool.release(connection);
+    }
+
+    /**
+     * Opens a new connection to the mailbox and opens the folder in it.
+     *
+     * @return a new connection with the opened folder.
+     * @throws Exception if the connection can't be established or the folder
+     *                   doesn't exist.
+     */
+    ImapConnection openConnection() throws Exception {
+        Properties properties = configureSessionProperties();
+        Session session = Session.getInstance(properties);
+        TaskMetrics taskMetrics = TaskMetrics.current();
+        TaskMetrics.PhaseTimer connect = taskMetrics.start(TaskPhase.CONNECT);
+        Store store = getAndConnectStore(session);
+        connect.stop();
+
+        try {
+            TaskMetrics.PhaseTimer folderOpen = taskMetrics.start(TaskPhase.FOLDER_OPEN);
+            Folder folder = store.getFolder(folderName);
+            if (!folder.exists()) {
+                throw new IllegalArgumentException("The specified folder doesn't exist!");
+            }
+            folder.open(Folder.READ_WRITE);
+            folderOpen.stop();
+            return new ImapConnection(store, folder);
+        } catch (Exception e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the connection pool, creating it on first use, or null if
+     * pooling is disabled.
+     *
+     * @return the connection pool or null.
+     */
+    private ImapConnectionPool getConnectionPool() {
+        connectionPoolLock.lock();
+        try {
+            if (connectionPool == null && maxPooledConnections > 0)
+                connectionPool = new ImapConnectionPool(this::openConnection, maxPooledConnections, maxIdleTime, keepAliveInterval);
+            return connectionPool;
+        } finally {
+            connectionPoolLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current connection pool, if any, so the next task creates one
+     * with the current settings.
+     */
+    private void resetConnectionPool() {
+        connectionPoolLock.lock();
+        try {
+            if (connectionPool != null) {
+                connectionPool.close();
+                connectionPool = null;
+            }
+        } finally {
+            connectionPoolLock.unlock();
+        }
+    }
+
+    /**
+     * Closes all pooled connections. Tasks executed after this will open a new
+     * pool, so closing is only needed when the executor is no longer used.
+     */
+    @Override
+    public void close() {
+        resetConnectionPool();
+    }
+
+    /**
+     * Retrieves a <pre>{@link Store}</pre> from passed <pre>{@link Session}</pre>
+     * object and connects to it using <pre>imapHostAddress</pre>, <pre>username</pre>,
+     * <pre>password</pre> and, if defined, <pre>port</pre>.
+     *
+     * @param session session from which to get the <pre>{@link Store}</pre>.
+     * @return a new and connected <pre>{@link Store}</pre> from passed
+     * <pre>Session</pre>.
+     * @throws Exception if <pre>Store</pre> can't be retrieved and/ot connected to.
+     */
+    private Store getAndConnectStore(Session session) throws Exception {
+        Store store = session.getStore();
+        if (port == null)
+            store.connect(imapHostAddress, username, password);
+        else
+            store.connect(imapHostAddress, port, username, password);
+        return store;
+    }
+
+    /**
+     * Configures IMAP session properties based on <pre>secure</pre> and
+     * <pre>connectionTimeout</pre> values.
+     *
+     * @return IMAP session properties.
+     */
+    private Properties configureSessionProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("mail.imap.connectiontimeout", String.valueOf(connectionTimeout));
+        if (secure) {
+            properties.setProperty("mail.store.protocol", "imaps");
+            properties.setProperty("mail.imap.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
+            properties.setProperty("mail.imap.socketFactory.fallback", "false");
+        } else
+            properties.setProperty("mail.store.protocol", "imap");
+        return properties;
+    }
+
+    /**
+     * Returns the current connection timeout.
+     *
+     * @return connection timeout.
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Sets the connection timeout for IMAP connection. Timeout bust be positive
+     * or it can be -1 which means infinite timeout (no timeout).
+     *
+     * @param connectionTimeout timeout to set.
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        if (connectionTimeout < -1)
+            throw new IllegalArgumentException("Connection timeout must be greater then or equal to -1!");
+        this.connectionTimeout = connectionTimeout;
+        resetConnectionPool();
+    }
+
+    /**
+     * Returns the maximum number of pooled connections.
+     *
+     * @return the maximum number of pooled connections.
+     */
+    public int getMaxPooledConnections() {
+        return maxPooledConnections;
+    }
+
+    /**
+     * Sets the maximum number of pooled connections. Zero disables pooling so
+     * each task opens and closes its own connection.
+     *
+     * @param maxPooledConnections the maximum number of pooled connections.
+     */
+    public void setMaxPooledConnections(int maxPooledConnections) {
+        if (maxPooledConnections < 0)
+            throw new IllegalArgumentException("Maximum number of pooled connections must be either zero or positive!");
+        this.maxPooledConnections = maxPooledConnections;
+        resetConnectionPool();
+    }
+
+    /**
+     * Returns the maximum idle time of pooled connections in milliseconds.
+     *
+     * @return the maximum idle time.
+     */
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, a pooled connection can stay
+     * idle before it is closed. Zero means no limit.
+     *
+     * @param maxIdleTime the maximum idle time to set.
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        if (maxIdleTime < 0)
+            throw new IllegalArgumentException("Maximum idle time must be either zero or positive!");
+        this.maxIdleTime = maxIdleTime;
+        resetConnectionPool();
+    }
+
+    /**
+     * Returns the keep-alive interval of pooled connections in milliseconds.
+     *
+     * @return the keep-alive interval.
+     */
+    public long getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, in which idle pooled connections are
+     * kept alive with a NOOP and evicted if they are idle for too long. Zero
+     * disables both.
+     *
+     * @param keepAliveInterval the keep-alive interval to set.
+     */
+    public void setKeepAliveInterval(long keepAliveInterval) {
+        if (keepAliveInterval < 0)
+            throw new IllegalArgumentException("Keep-alive interval must be either zero or positive!");
+        this.keepAliveInterval = keepAliveInterval;
+        resetConnectionPool();
+    }
+
+    /**
+     * Returns the minimum poll interval of subscriptions in milliseconds.
+     *
+     * @return the minimum poll interval.
+     */
+    public long getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    /**
+     * Returns the maximum poll interval of subscriptions in milliseconds.
+     *
+     * @return the maximum poll interval.
+     */
+    public long getMaxPollInterval() {
+        return maxPollInterval;
+    }
+
+    /**
+     * Sets the minimum and maximum interval, in milliseconds, in which
+     * subscriptions poll the folder when the server doesn't support IDLE. The
+     * interval starts at the minimum, doubles after each poll without new
+     * e-mails up to the maximum and drops back to the minimum when e-mails
+     * arrive. Applies only to subscriptions created after this call.
+     *
+     * @param minPollInterval the minimum poll interval to set.
+     * @param maxPollInterval the maximum poll interval to set.
+     */
+    public void setPollInterval(long minPollInterval, long maxPollInterval) {
+        if (minPollInterval <= 0 || maxPollInterval < minPollInterval)
+            throw new IllegalArgumentException("Poll intervals must be positive and the maximum must not be less then the minimum!");
+        this.minPollInterval = minPollInterval;
+        this.maxPollInterval = maxPollInterval;
+    }
+
+    /**
+     * Returns the prefetch size.
+     *
+     * @return the prefetch size.
+     */
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    /**
+     * Sets the number of messages whose envelope, flags, UID, size and
+     * <pre>prefetchHeaders</pre> are fetched with a single command before the
+     * messages are processed. Zero disables prefetching so message data is
+     * loaded on first access, one message at a time.
+     *
+     * @param prefetchSize the prefetch size to set.
+     */
+    public void setPrefetchSize(int prefetchSize) {
+        if (prefetchSize < 0)
+            throw new IllegalArgumentException("Prefetch size must be either zero or positive!");
+        this.prefetchSize = prefetchSize;
+    }
+
+    /**
+     * Returns the names of additional headers which are prefetched.
+     *
+     * @return the header names.
+     */
+    public String[] getPrefetchHeaders() {
+        return prefetchHeaders.clone();
+    }
+
+    /**
+     * Sets the names of additional headers which are prefetched together with
+     * the envelope. Useful when handlers read headers that are not part of the
+     * envelope, like <pre>List-Id</pre> or <pre>X-Priority</pre>.
+     *
+     * @param prefetchHeaders the header names to set.
+     */
+    public void setPrefetchHeaders(String... prefetchHeaders) {
+        this.prefetchHeaders = prefetchHeaders.clone();
+    }
+
+    /**
+     * Returns the executor on which handlers are invoked.
+     *
+     * @return the handler executor or null if handlers are invoked on the
+     * calling thread.
+     */
+    public ExecutorService getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * Sets the executor on which handlers are invoked by
+     * <pre>{@link #executeForEachEmail(EmailHandler)}</pre>. Messages are still
+     * downloaded on the calling thread, which holds the connection, and each
+     * handler receives a copy of the message, so handlers can't change the
+     * message state on the server. Flag changes and the rollback on failure
+     * are applied on the calling thread once the handler completes. The
+     * handler must be thread-safe.
+     *
+     * @param handlerExecutor the executor to set, or null to invoke handlers on
+     *                        the calling thread.
+     */
+    public void setHandlerExecutor(ExecutorService handlerExecutor) {
+        this.handlerExecutor = handlerExecutor;
+    }
+
+    /**
+     * Returns the maximum number of messages handled in parallel.
+     *
+     * @return the maximum number of messages in flight.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of downloaded messages that are waiting for or
+     * being handled on the <pre>handlerExecutor</pre>. When the limit is
+     * reached the download waits for some handler to complete, which bounds
+     * the memory used by message copies.
+     *
+     * @param maxInFlight the maximum number of messages in flight.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("Maximum number of messages in flight must be positive!");
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Returns the number of connections over which tasks are split.
+     *
+     * @return the shard count.
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Sets the number of connections over which
+     * <pre>{@link #retrieveEmails()}</pre> and
+     * <pre>{@link #executeForEachEmail(EmailHandler)}</pre> are split. The
+     * found messages are divided into contiguous UID ranges, and each range is
+     * retrieved or handled over its own connection in parallel, with the same
+     * flag handling as over a single connection. Handlers must be thread-safe
+     * when the shard count is greater then one.
+     *
+     * When connections are pooled, the number of shards is limited by
+     * <pre>maxPooledConnections</pre>.
+     *
+     * @param shardCount the shard count to set, one disables sharding.
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount <= 0)
+            throw new IllegalArgumentException("Shard count must be positive!");
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Returns the ordering of e-mails retrieved over multiple connections.
+     *
+     * @return the shard ordering.
+     */
+    public ShardOrdering getShardOrdering() {
+        return shardOrdering;
+    }
+
+    /**
+     * Sets the ordering of e-mails returned by
+     * <pre>{@link #retrieveEmails()}</pre> when they are retrieved over
+     * multiple connections. Handlers invoked by
+     * <pre>{@link #executeForEachEmail(EmailHandler)}</pre> are always invoked
+     * in folder order within a shard, but shards run concurrently.
+     *
+     * @param shardOrdering the shard ordering to set.
+     */
+    public void setShardOrdering(ShardOrdering shardOrdering) {
+        if (shardOrdering == null)
+            throw new IllegalArgumentException("Shard ordering must not be null!");
+        this.shardOrdering = shardOrdering;
+    }
+
+    /**
+     * Returns the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @return the chunk size.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @param chunkSize the chunk size to set.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive!");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the maximum time, in milliseconds, a chunk is collected before
+     * it is handed to a <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @return the chunk linger time.
+     */
+    public long getChunkLingerTime() {
+        return chunkLingerTime;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, a chunk is collected before it
+     * is handed to a <pre>{@link BatchEmailHandler}</pre>. Zero means that
+     * chunks are handed over only when they are full or there are no more
+     * e-mails.
+     *
+     * @param chunkLingerTime the chunk linger time to set.
+     */
+    public void setChunkLingerTime(long chunkLingerTime) {
+        if (chunkLingerTime < 0)
+            throw new IllegalArgumentException("Chunk linger time must be either zero or positive!");
+        this.chunkLingerTime = chunkLingerTime;
+    }
+
+    /**
+     * Returns the maximum number of e-mails copied ahead by cursors and
+     * streams.
+     *
+     * @return the stream window size.
+     */
+    public int getStreamWindowSize() {
+        return streamWindowSize;
+    }
+
+    /**
+     * Sets the maximum number of e-mails copied ahead by cursors and streams.
+     *
+     * @param streamWindowSize the stream window size to set.
+     */
+    public void setStreamWindowSize(int streamWindowSize) {
+        if (streamWindowSize <= 0)
+            throw new IllegalArgumentException("Stream window size must be positive!");
+        this.streamWindowSize = streamWindowSize;
+    }
+
+    /**
+     * Returns the metrics to which all tasks record their measurements.
+     *
+     * @return the metrics.
+     */
+    public MailboxMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics to which all tasks record their measurements. Each
+     * measurement is tagged with the task name and <pre>folderName</pre>. By
+     * default measurements are discarded.
+     *
+     * @param metrics the metrics to set.
+     */
+    public void setMetrics(MailboxMetrics metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("Metrics must not be null!");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the message spool.
+     *
+     * @return the message spool.
+     */
+    public MessageSpool getMessageSpool() {
+        return messageSpool;
+    }
+
+    /**
+     * Sets the spool which holds the content of message copies returned by
+     * <pre>retrieveEmails</pre>, streams and publishers and handed to
+     * parallel handlers. By default all content is kept on the heap, a spool
+     * with a spill threshold keeps large messages in temporary files instead.
+     * A temporary file stays open until its copy is released with
+     * <pre>{@link MessageSpool#release(Message)}</pre>, which is done when a
+     * parallel handler returns, so callers should release the copies they
+     * get from the other methods once they are done with them.
+     *
+     * @param messageSpool the message spool to set.
+     */
+    public void setMessageSpool(MessageSpool messageSpool) {
+        if (messageSpool == null)
+            throw new IllegalArgumentException("Message spool must not be null!");
+        this.messageSpool = messageSpool;
+    }
+
+    /**
+     * Returns the fetch mode.
+     *
+     * @return the fetch mode.
+     */
+    public FetchMode getFetchMode() {
+        return fetchMode;
+    }
+
+    /**
+     * Sets how much of each e-mail is downloaded up front. By default whole
+     * e-mails are downloaded, see <pre>{@link FetchMode}</pre> for the
+     * header-only modes.
+     *
+     * @param fetchMode the fetch mode to set.
+     */
+    public void setFetchMode(FetchMode fetchMode) {
+        if (fetchMode == null)
+            throw new IllegalArgumentException("Fetch mode must not be null!");
+        this.fetchMode = fetchMode;
+    }
+
+    /**
+     * Returns true if shard and subscription threads are virtual.
+     *
+     * @return true if shard and subscription threads are virtual, otherwise
+     * false.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets if the executor runs on virtual threads. Shard and subscription
+     * threads are then virtual and, unless a <pre>handlerExecutor</pre> is
+     * set, each handler invocation runs on its own virtual thread, bounded by
+     * <pre>maxInFlight</pre>, so the handler must be thread-safe. Virtual
+     * threads require Java 21 or newer. To run the tasks themselves on
+     * virtual threads use
+     * <pre>{@link VirtualThreads#newAsyncAdapter(MailboxTaskExecutor)}</pre>.
+     *
+     * @param virtualThreads a boolean value.
+     * @throws UnsupportedOperationException if virtual threads are not
+     *                                       supported.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported())
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer!");
+        this.virtualThreads = virtualThreads;
+        this.virtualHandlerExecutor = virtualThreads ? VirtualThreads.newExecutor() : null;
+    }
+
+    /**
+     * Returns the search filter.
+     *
+     * @return the search filter or null if it is not set.
+     */
+    public SearchTerm getSearchFilter() {
+        return searchFilter;
+    }
+
+    /**
+     * Sets the search term which e-mails must match to be processed, for
+     * example a date range, sender, subject, size or keyword term. The term
+     * is evaluated by the server, combined with the flag conditions into a
+     * single SEARCH, or searched among the new messages when the UID
+     * checkpoint store is set. Null removes the filter.
+     *
+     * @param searchFilter the search filter to set or null.
+     */
+    public void setSearchFilter(SearchTerm searchFilter) {
+        this.searchFilter = searchFilter;
+    }
+
+    /**
+     * Returns the UID checkpoint store.
+     *
+     * @return the UID checkpoint store or null if incremental processing is
+     * disabled.
+     */
+    public UidCheckpointStore getUidCheckpointStore() {
+        return uidCheckpointStore;
+    }
+
+    /**
+     * Sets the UID checkpoint store which enables incremental processing.
+     * Each task then requests only messages with a UID greater then the UID
+     * of the last processed message, and stores the new checkpoint together
+     * with the folder UIDVALIDITY when it finishes. If UIDVALIDITY changes,
+     * all messages are processed again.
+     *
+     * Seen messages are still skipped unless <pre>retrieveSeenEmails</pre> is
+     * true, but skipped messages also advance the checkpoint. With
+     * <pre>retrieveSeenEmails</pre> set to true each message is therefore
+     * processed once regardless of its SEEN flag. The checkpoint does not
+     * advance past a message whose handling failed.
+     *
+     * @param uidCheckpointStore the store to set or null to disable
+     *                           incremental processing.
+     */
+    public void setUidCheckpointStore(UidCheckpointStore uidCheckpointStore) {
+        this.uidCheckpointStore = uidCheckpointStore;
+    }
+
+    /**
+     * Returns the processing journal.
+     *
+     * @return the processing journal or null if it is not set.
+     */
+    public ProcessingJournal getProcessingJournal() {
+        return processingJournal;
+    }
+
+    /**
+     * Sets the journal in which <pre>executeForEachEmail</pre> and
+     * subscriptions record the handling of each e-mail, so a task which did
+     * not finish, for example because the JVM crashed, is resumed by the next
+     * task in the folder without handling completed e-mails again. Only
+     * e-mails which were being handled at the time are handled again.
+     *
+     * @param processingJournal the journal to set or null to disable
+     *                          journaling.
+     */
+    public void setProcessingJournal(ProcessingJournal processingJournal) {
+        this.processingJournal = processingJournal;
     }
 
     /**
@@ -0,0 +1,57 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import javax.mail.Message;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * A <pre>{@link Flow.Publisher}</pre> of the e-mails in an
+ * <pre>{@link ImapMailboxFolderTaskExecutor}</pre> folder. Each subscriber
+ * gets its own <pre>{@link ImapMessageSubscription}</pre>, which holds a
+ * connection and copies an e-mail from the server only when the subscriber
+ * has requested it, so a slow subscriber throttles the fetching.
+ *
+ * Subscribers acknowledge or reject each e-mail through the subscription
+ * passed to <pre>onSubscribe</pre>.
+ *
+ * @author djosifovic
+ */
+public final class ImapMessagePublisher implements Flow.Publisher<Message> {
+
+    /**
+     * The executor which provides the connections and the retrieval settings.
+     */
+    private final ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The executor on which e-mails are fetched and delivered.
+     */
+    private final Executor deliveryExecutor;
+
+    /**
+     * Constructs a new publisher.
+     *
+     * @param executor         the executor which provides the connections and
+     *                         the retrieval settings.
+     * @param deliveryExecutor the executor on which e-mails are fetched and
+     *                         delivered.
+     */
+    ImapMessagePublisher(ImapMailboxFolderTaskExecutor executor, Executor deliveryExecutor) {
+        this.executor = executor;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The subscriber receives an <pre>{@link ImapMessageSubscription}</pre>.
+     * The connection is opened on the first request.
+     *
+     * @param subscriber the subscriber.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("Subscriber must not be null!");
+        subscriber.onSubscribe(new ImapMessageSubscription(executor, deliveryExecutor, subscriber));
+    }
+}
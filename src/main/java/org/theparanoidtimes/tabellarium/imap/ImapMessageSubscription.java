@@ -0,0 +1,493 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.MailBoxTaskExecutorException;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The subscription of one subscriber of an
+ * <pre>{@link ImapMessagePublisher}</pre>. It holds a connection from the
+ * first request until it is terminated and copies e-mails one at a time, only
+ * while there is outstanding demand. All work with the folder, and all
+ * signals to the subscriber, happen on the delivery executor, one task at a
+ * time.
+ *
+ * E-mails are always read with <pre>BODY.PEEK</pre>, so publishing doesn't
+ * mark them as SEEN. Each published e-mail has to be acknowledged or
+ * rejected. Acknowledged e-mails are marked as SEEN, and as DELETED if
+ * <pre>deleteAfterRetrieval</pre> is true. Rejected e-mails are marked as
+ * unseen again. The UID checkpoint, if any, advances over acknowledged
+ * e-mails in folder order and stops at the first rejected one.
+ *
+ * The subscription completes once every e-mail is published and settled.
+ * E-mails which are not settled when it is cancelled are marked as unseen
+ * again.
+ *
+ * @author djosifovic
+ */
+public final class ImapMessageSubscription implements Flow.Subscription {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ImapMessageSubscription.class);
+
+    /**
+     * The state of a published e-mail which is neither acknowledged nor
+     * rejected.
+     */
+    private static final int PENDING = 0;
+
+    /**
+     * The state of an acknowledged or skipped e-mail.
+     */
+    private static final int ACKNOWLEDGED = 1;
+
+    /**
+     * The state of a rejected e-mail.
+     */
+    private static final int REJECTED = 2;
+
+    /**
+     * The executor which provides the connection and the retrieval settings.
+     */
+    private final ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The executor on which e-mails are fetched and delivered.
+     */
+    private final Executor deliveryExecutor;
+
+    /**
+     * The subscriber.
+     */
+    private final Flow.Subscriber<? super Message> subscriber;
+
+    /**
+     * The metrics of the subscription, recorded as one task from the first
+     * request to termination.
+     */
+    private final TaskMetrics taskMetrics;
+
+    /**
+     * The number of requested e-mails which were not published yet.
+     */
+    private final AtomicLong demand = new AtomicLong();
+
+    /**
+     * The number of drain requests. The drain runs while it is not zero.
+     */
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    /**
+     * Published e-mails which are not settled, by their copy.
+     */
+    private final Map<Message, Entry> published = new ConcurrentHashMap<>();
+
+    /**
+     * Entries which were settled since the last drain.
+     */
+    private final Queue<Entry> settled = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Entries whose progress was not recorded yet, in folder order.
+     */
+    private final Deque<Entry> progress = new ArrayDeque<>();
+
+    /**
+     * A flag indicating that the subscription was cancelled.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * An error of a request to signal to the subscriber or null.
+     */
+    private volatile Throwable requestError;
+
+    /**
+     * A flag indicating that the subscription is terminated and its
+     * connection released.
+     */
+    private volatile boolean terminated = false;
+
+    /**
+     * The connection or null before the first request.
+     */
+    private ImapConnection connection;
+
+    /**
+     * The opened folder of the connection.
+     */
+    private Folder folder;
+
+    /**
+     * The checkpoint tracker or null.
+     */
+    private UidCheckpointTracker tracker;
+
+    /**
+     * The buffer for flag changes.
+     */
+    private FlagUpdateBuffer flagUpdates;
+
+    /**
+     * Messages found when the connection was opened.
+     */
+    private Message[] messages;
+
+    /**
+     * Number of messages to go through.
+     */
+    private int count;
+
+    /**
+     * Index of the next message to publish.
+     */
+    private int position = 0;
+
+    /**
+     * The phase of the subscription from the first request to termination.
+     */
+    private TaskMetrics.PhaseTimer task;
+
+    /**
+     * Constructs a new subscription.
+     *
+     * @param executor         the executor which provides the connection and
+     *                         the retrieval settings.
+     * @param deliveryExecutor the executor on which e-mails are fetched and
+     *                         delivered.
+     * @param subscriber       the subscriber.
+     */
+    ImapMessageSubscription(ImapMailboxFolderTaskExecutor executor, Executor deliveryExecutor, Flow.Subscriber<? super Message> subscriber) {
+        this.executor = executor;
+        this.deliveryExecutor = deliveryExecutor;
+        this.subscriber = subscriber;
+        this.taskMetrics = executor.newTaskMetrics("PublishEmailsImapFolderTask");
+    }
+
+    /**
+     * {@inheritDoc}
+     * E-mails are copied from the server only to satisfy the demand.
+     *
+     * @param n the number of e-mails to add to the demand.
+     */
+    @Override
+    public void request(long n) {
+        if (n <= 0)
+            requestError = new IllegalArgumentException("Number of requested e-mails must be positive!");
+        else
+            demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+        drain();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The connection is released and e-mails which are not settled are marked
+     * as unseen again.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        drain();
+    }
+
+    /**
+     * Acknowledges the published e-mail. It is marked as SEEN, and as DELETED
+     * if <pre>deleteAfterRetrieval</pre> is true.
+     *
+     * @param message the e-mail passed to <pre>onNext</pre>.
+     * @throws IllegalArgumentException if the e-mail was not published by this
+     *                                  subscription or it is already settled.
+     *                                  E-mails settled after termination are
+     *                                  ignored.
+     */
+    public void acknowledge(Message message) {
+        settle(message, ACKNOWLEDGED, null);
+    }
+
+    /**
+     * Rejects the published e-mail. It is marked as unseen again and the UID
+     * checkpoint does not advance past it.
+     *
+     * @param message the e-mail passed to <pre>onNext</pre>.
+     * @param reason  the reason of the rejection, used for logging.
+     * @throws IllegalArgumentException if the e-mail was not published by this
+     *                                  subscription or it is already settled.
+     *                                  E-mails settled after termination are
+     *                                  ignored.
+     */
+    public void reject(Message message, Throwable reason) {
+        settle(message, REJECTED, reason);
+    }
+
+    /**
+     * Sets the final state of the published e-mail and schedules the flag
+     * changes.
+     *
+     * @param message the e-mail passed to <pre>onNext</pre>.
+     * @param state   the final state.
+     * @param reason  the reason of the rejection or null.
+     */
+    private void settle(Message message, int state, Throwable reason) {
+        Entry entry = message == null ? null : published.remove(message);
+        if (entry == null && terminated)
+            return;
+        if (entry == null || !entry.state.compareAndSet(PENDING, state))
+            throw new IllegalArgumentException("E-mail was not published by this subscription or it is already settled!");
+        entry.reason = reason;
+        settled.add(entry);
+        drain();
+    }
+
+    /**
+     * Schedules the drain on the delivery executor unless it is running
+     * already. If the delivery executor rejects it the subscription is
+     * terminated with the rejection on the calling thread.
+     */
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0)
+            return;
+        try {
+            deliveryExecutor.execute(this::runDrain);
+        } catch (RejectedExecutionException e) {
+            requestError = e;
+            runDrain();
+        }
+    }
+
+    /**
+     * Runs the drain until no more drain requests are pending.
+     */
+    private void runDrain() {
+        int missed = 1;
+        TaskMetrics previous = taskMetrics.enter();
+        try {
+            do {
+                if (!terminated)
+                    drainOnce();
+                missed = drainRequests.addAndGet(-missed);
+            } while (missed != 0);
+        } finally {
+            TaskMetrics.exit(previous);
+        }
+    }
+
+    /**
+     * Applies settled e-mails, publishes e-mails while there is demand and
+     * terminates the subscription when it is done.
+     */
+    private void drainOnce() {
+        if (requestError != null) {
+            terminate(requestError);
+            return;
+        }
+        if (cancelled) {
+            terminate(null);
+            return;
+        }
+        try {
+            if (connection == null)
+                open();
+            applySettled();
+            while (position < count && demand.get() > 0 && !cancelled) {
+                publishNext();
+                applySettled();
+            }
+            flagUpdates.flush();
+        } catch (Exception e) {
+            terminate(new MailBoxTaskExecutorException("Error while publishing e-mails from the mailbox folder.", e));
+            return;
+        }
+        if (cancelled)
+            terminate(null);
+        else if (position == count && progress.isEmpty() && terminate(null))
+            subscriber.onComplete();
+    }
+
+    /**
+     * Acquires the connection and finds the messages to publish.
+     *
+     * @throws Exception if the connection can't be established or the folder
+     *                   can't be searched.
+     */
+    private void open() throws Exception {
+        task = taskMetrics.start(TaskPhase.TASK);
+        connection = executor.acquireConnection();
+        folder = connection.getFolder();
+        tracker = executor.newUidCheckpointTracker(folder);
+        messages = executor.findMessages(folder, tracker);
+        count = executor.getRetrieveCount(messages.length);
+        flagUpdates = executor.newFlagUpdateBuffer(folder);
+        LOG.trace("Opened e-mail subscription over {} messages.", count);
+    }
+
+    /**
+     * Copies the next message and passes it to the subscriber, or records it
+     * as skipped.
+     *
+     * @throws MessagingException if the message can't be copied.
+     */
+    private void publishNext() throws MessagingException {
+        executor.prefetchChunk(folder, messages, position, count);
+        int index = position++;
+        Message message = messages[index];
+        if (executor.skip(message, index)) {
+            Entry entry = new Entry(index, message);
+            entry.state.set(ACKNOWLEDGED);
+            progress.addLast(entry);
+            return;
+        }
+        Message copy = executor.copyFromFolder(folder, message, false, true);
+        Entry entry = new Entry(index, message);
+        progress.addLast(entry);
+        published.put(copy, entry);
+        demand.decrementAndGet();
+        subscriber.onNext(copy);
+    }
+
+    /**
+     * Changes flags of settled e-mails and records the progress of the
+     * e-mails at the head of the folder order which are settled.
+     *
+     * @throws MessagingException if flags can't be changed.
+     */
+    private void applySettled() throws MessagingException {
+        Entry entry;
+        while ((entry = settled.poll()) != null) {
+            if (entry.state.get() == ACKNOWLEDGED)
+                executor.emailHandled(entry.message, entry.index, true, flagUpdates);
+            else
+                executor.emailHandlingFailed(entry.message, entry.index, entry.reason, flagUpdates);
+        }
+        while (!progress.isEmpty() && progress.peekFirst().state.get() != PENDING) {
+            entry = progress.pollFirst();
+            if (tracker == null)
+                continue;
+            if (entry.state.get() == ACKNOWLEDGED)
+                tracker.processed(entry.message);
+            else
+                tracker.failed();
+        }
+    }
+
+    /**
+     * Releases the connection. E-mails which are not settled are marked as
+     * unseen again, also when the subscription fails, and the UID checkpoint,
+     * if any, is saved unless it fails. The subscriber is notified of the
+     * error, or of an error while terminating, unless the subscription was
+     * cancelled.
+     *
+     * @param error the error which terminates the subscription or null.
+     * @return true if the subscription terminated without an error, otherwise
+     * false.
+     */
+    private boolean terminate(Throwable error) {
+        terminated = true;
+        boolean failed = error != null;
+        if (connection != null) {
+            try {
+                if (flagUpdates != null) {
+                    revertUnsettled();
+                    flagUpdates.flush();
+                }
+                if (!failed && tracker != null) tracker.save();
+            } catch (Exception e) {
+                if (failed)
+                    LOG.debug("Could not revert unsettled e-mails of a failed subscription.", e);
+                else {
+                    failed = true;
+                    error = new MailBoxTaskExecutorException("Error while closing e-mail subscription.", e);
+                }
+            } finally {
+                if (flagUpdates != null) flagUpdates.flushQuietly();
+                try {
+                    executor.releaseConnection(connection, !failed);
+                } catch (MessagingException e) {
+                    if (error == null)
+                        error = new MailBoxTaskExecutorException("Error while closing e-mail subscription.", e);
+                }
+            }
+            LOG.info("Closed e-mail subscription after publishing {} e-mails.", position);
+        }
+        if (task != null) task.stop();
+        published.clear();
+        if (error == null)
+            return true;
+        if (!cancelled)
+            subscriber.onError(error);
+        return false;
+    }
+
+    /**
+     * Marks e-mails which were published but not settled as unseen again.
+     *
+     * @throws MessagingException if flags can't be changed.
+     */
+    private void revertUnsettled() throws MessagingException {
+        applySettled();
+        if (executor.isRetrieveSeenEmails())
+            return;
+        for (Entry entry : progress) {
+            if (entry.state.get() == PENDING && entry.message.isSet(Flags.Flag.SEEN)) {
+                LOG.trace("Reverting SEEN flag for message {}...", entry.index);
+                flagUpdates.update(entry.message, Flags.Flag.SEEN, false);
+            }
+        }
+        progress.clear();
+    }
+
+    /**
+     * A message which was published or skipped.
+     */
+    private static final class Entry {
+
+        /**
+         * Index of the message used for logging.
+         */
+        private final int index;
+
+        /**
+         * The message in the folder.
+         */
+        private final Message message;
+
+        /**
+         * The state of the message.
+         */
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /**
+         * The reason of the rejection or null.
+         */
+        private volatile Throwable reason;
+
+        /**
+         * Constructs a new entry.
+         *
+         * @param index   index of the message.
+         * @param message the message in the folder.
+         */
+        private Entry(int index, Message message) {
+            this.index = index;
+            this.message = message;
+        }
+    }
+}
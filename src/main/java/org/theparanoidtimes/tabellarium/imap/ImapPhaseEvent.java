@@ -0,0 +1,103 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+
+/**
+ * A Java Flight Recorder event which covers one phase of an IMAP task, like
+ * connecting to the mailbox, searching, fetching or handling an e-mail. The
+ * event is recorded by any running recording unless its settings disable it,
+ * and costs next to nothing when no recording is running.
+ *
+ * This class is loaded only when the JFR API is present, see
+ * <pre>{@link TaskMetrics}</pre>.
+ *
+ * @author djosifovic
+ */
+@Name(ImapPhaseEvent.NAME)
+@Label("IMAP Task Phase")
+@Category({"Tabellarium", "IMAP"})
+@Description("A phase of an IMAP task: connecting, opening the folder, searching, fetching or handling e-mails.")
+@StackTrace(false)
+final class ImapPhaseEvent extends Event {
+
+    /**
+     * The name of the event type.
+     */
+    static final String NAME = "org.theparanoidtimes.tabellarium.ImapPhase";
+
+    /**
+     * The name of the task.
+     */
+    @Label("Task")
+    String taskName;
+
+    /**
+     * The name of the folder.
+     */
+    @Label("Folder")
+    String folderName;
+
+    /**
+     * The name of the phase.
+     */
+    @Label("Phase")
+    String phase;
+
+    /**
+     * The number of the processed message or zero if the phase is not related
+     * to a single message.
+     */
+    @Label("Message Number")
+    int messageNumber;
+
+    /**
+     * The size of the processed message or -1 if it is unknown.
+     */
+    @Label("Message Size")
+    @DataAmount
+    long messageSize;
+
+    /**
+     * Begins a new event if it is enabled.
+     *
+     * @return the begun event or null if the event is disabled.
+     */
+    static Object start() {
+        ImapPhaseEvent event = new ImapPhaseEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event begun by <pre>{@link #start()}</pre> and commits it if it
+     * passes the recording thresholds.
+     *
+     * @param started       the begun event.
+     * @param taskName      the name of the task.
+     * @param folderName    the name of the folder.
+     * @param phase         the phase.
+     * @param messageNumber the number of the processed message or zero.
+     * @param messageSize   the size of the processed message or -1.
+     */
+    static void finish(Object started, String taskName, String folderName, TaskPhase phase, int messageNumber, long messageSize) {
+        ImapPhaseEvent event = (ImapPhaseEvent) started;
+        event.end();
+        if (!event.shouldCommit())
+            return;
+        event.taskName = taskName;
+        event.folderName = folderName;
+        event.phase = phase.name();
+        event.messageNumber = messageNumber;
+        event.messageSize = messageSize;
+        event.commit();
+    }
+}
@@ -0,0 +1,28 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <pre>{@link UidCheckpointStore}</pre> implementation that keeps the
+ * checkpoints in memory. Checkpoints are lost when the application stops.
+ *
+ * @author djosifovic
+ */
+public class InMemoryUidCheckpointStore implements UidCheckpointStore {
+
+    /**
+     * Checkpoints by folder key.
+     */
+    private final Map<String, UidCheckpoint> checkpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public UidCheckpoint load(String folderKey) {
+        return checkpoints.get(folderKey);
+    }
+
+    @Override
+    public void save(String folderKey, UidCheckpoint checkpoint) {
+        checkpoints.put(folderKey, checkpoint);
+    }
+}
@@ -0,0 +1,25 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Receives the outcome of each message as it is processed, in message order.
+ *
+ * @author djosifovic
+ */
+interface MessageProgress {
+
+    /**
+     * Marks the message as processed, either handled or intentionally skipped.
+     *
+     * @param message processed message.
+     * @throws MessagingException if the message can't be read.
+     */
+    void processed(Message message) throws MessagingException;
+
+    /**
+     * Marks that processing of a message failed.
+     */
+    void failed();
+}
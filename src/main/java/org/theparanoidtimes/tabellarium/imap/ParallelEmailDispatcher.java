@@ -0,0 +1,300 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.MessageSpool;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.io.IOException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Dispatches handling of messages to an <pre>{@link ExecutorService}</pre>.
+ * Messages are downloaded and copied on the calling thread which holds the
+ * connection, and at most <pre>maxInFlight</pre> copies wait for or are being
+ * handled at any time. Flag changes are collected on the calling thread as
+ * handlers complete and applied in bulk.
+ *
+ * @author djosifovic
+ */
+final class ParallelEmailDispatcher {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelEmailDispatcher.class);
+
+    /**
+     * Outcome of a message that is not processed yet.
+     */
+    private static final byte PENDING = 0;
+
+    /**
+     * Outcome of a message that was handled or skipped.
+     */
+    private static final byte PROCESSED = 1;
+
+    /**
+     * Outcome of a message whose handling failed.
+     */
+    private static final byte FAILED = 2;
+
+    /**
+     * Outcome of a message which was submitted and is still being handled.
+     */
+    private static final byte IN_FLIGHT = 3;
+
+    /**
+     * The executor which provides the flag handling logic.
+     */
+    private final ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The opened folder.
+     */
+    private final Folder folder;
+
+    /**
+     * Handlers are completed through this service.
+     */
+    private final CompletionService<HandlingResult> completionService;
+
+    /**
+     * The maximum number of messages in flight.
+     */
+    private final int maxInFlight;
+
+    /**
+     * The progress listener or null.
+     */
+    private final MessageProgress progress;
+
+    /**
+     * The buffer for flag changes.
+     */
+    private final FlagUpdateBuffer flagUpdates;
+
+    /**
+     * The journal session or null.
+     */
+    private final ProcessingJournal.Session journal;
+
+    /**
+     * Constructs a new dispatcher.
+     *
+     * @param executor        the executor which provides the flag handling
+     *                        logic.
+     * @param folder          the opened folder.
+     * @param handlerExecutor the executor on which handlers are invoked.
+     * @param maxInFlight     the maximum number of messages in flight.
+     * @param progress        the progress listener or null.
+     * @param journal         the journal session or null.
+     */
+    ParallelEmailDispatcher(ImapMailboxFolderTaskExecutor executor, Folder folder, ExecutorService handlerExecutor, int maxInFlight, MessageProgress progress, ProcessingJournal.Session journal) {
+        this.executor = executor;
+        this.folder = folder;
+        this.completionService = new ExecutorCompletionService<>(handlerExecutor);
+        this.maxInFlight = maxInFlight;
+        this.progress = progress;
+        this.flagUpdates = executor.newFlagUpdateBuffer(folder);
+        this.journal = journal;
+    }
+
+    /**
+     * Handles the first <pre>count</pre> messages and waits for all handlers
+     * to complete. The progress listener is notified in message order, so a
+     * message that completes early is not reported before one that is still
+     * being handled.
+     *
+     * @param messages     messages to handle.
+     * @param count        number of messages to handle.
+     * @param emailHandler handler for each e-mail.
+     * @throws Exception if messages can't be downloaded or flags changed, or
+     *                   if interrupted while waiting for handlers.
+     */
+    void dispatch(Message[] messages, int count, EmailHandler emailHandler) throws Exception {
+        byte[] outcomes = new byte[count];
+        int inFlight = 0;
+        int tracked = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                executor.prefetchChunk(folder, messages, i, count);
+                if (executor.skip(messages[i], i) || executor.isJournaledAsDone(folder, messages[i], i, journal)) {
+                    outcomes[i] = PROCESSED;
+                } else {
+                    submit(messages, i, emailHandler, outcomes);
+                    inFlight++;
+                }
+                while (inFlight >= maxInFlight) {
+                    complete(messages, outcomes);
+                    inFlight--;
+                }
+                tracked = track(messages, outcomes, tracked);
+            }
+            while (inFlight > 0) {
+                complete(messages, outcomes);
+                inFlight--;
+                tracked = track(messages, outcomes, tracked);
+            }
+            flagUpdates.flush();
+        } finally {
+            if (inFlight > 0)
+                abandon(messages, outcomes);
+            flagUpdates.flushQuietly();
+        }
+    }
+
+    /**
+     * Copies the message and submits its handling. With a journal session the
+     * handling is recorded first, and the handler waits until the record is
+     * on disk, so records of messages submitted together are forced together.
+     * The copy is released once the handler returns.
+     *
+     * @param messages     messages to handle.
+     * @param index        index of the message to submit.
+     * @param emailHandler handler for the e-mail.
+     * @param outcomes     outcomes of the messages.
+     * @throws MessagingException if the message can't be copied.
+     */
+    private void submit(Message[] messages, int index, EmailHandler emailHandler, byte[] outcomes) throws MessagingException {
+        Message copy;
+        try {
+            copy = executor.copyFromFolder(folder, messages[index], true);
+        } catch (MessagingException e) {
+            executor.emailHandlingFailed(messages[index], index, e, flagUpdates);
+            throw e;
+        }
+        long journalPosition = 0;
+        if (journal != null) {
+            try {
+                journalPosition = journal.begin(((UIDFolder) folder).getUID(messages[index]));
+            } catch (IOException e) {
+                MessageSpool.release(copy);
+                throw new MessagingException("Could not write the processing journal.", e);
+            }
+        }
+        outcomes[index] = IN_FLIGHT;
+        TaskMetrics taskMetrics = TaskMetrics.current();
+        int messageNumber = messages[index].getMessageNumber();
+        long messageSize = messages[index].getSize();
+        long awaitedPosition = journalPosition;
+        completionService.submit(() -> {
+            TaskMetrics.PhaseTimer handle = taskMetrics.start(TaskPhase.HANDLE);
+            try {
+                if (journal != null)
+                    journal.await(awaitedPosition);
+                emailHandler.handleEmail(copy);
+                return new HandlingResult(index, null);
+            } catch (Throwable e) {
+                return new HandlingResult(index, e);
+            } finally {
+                MessageSpool.release(copy);
+                handle.stop(messageNumber, messageSize);
+            }
+        });
+    }
+
+    /**
+     * Waits for the next handler to complete and applies the flag changes.
+     *
+     * @param messages messages to handle.
+     * @param outcomes outcomes of the messages.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws ExecutionException   if the handling task could not run.
+     * @throws MessagingException   if flags can't be changed.
+     */
+    private void complete(Message[] messages, byte[] outcomes) throws InterruptedException, ExecutionException, MessagingException {
+        HandlingResult result = completionService.take().get();
+        int index = result.index;
+        if (result.error == null) {
+            executor.emailHandled(messages[index], index, executor.isCopiedWithPeek(), flagUpdates);
+            outcomes[index] = PROCESSED;
+        } else {
+            executor.emailHandlingFailed(messages[index], index, result.error, flagUpdates);
+            outcomes[index] = FAILED;
+        }
+        if (journal != null)
+            executor.journalFinished(journal, ((UIDFolder) folder).getUID(messages[index]), result.error == null);
+    }
+
+    /**
+     * Notifies the progress listener about consecutive messages whose outcome
+     * is known.
+     *
+     * @param messages messages to handle.
+     * @param outcomes outcomes of the messages.
+     * @param tracked  number of messages already tracked.
+     * @return the new number of tracked messages.
+     * @throws MessagingException if the UID can't be read.
+     */
+    private int track(Message[] messages, byte[] outcomes, int tracked) throws MessagingException {
+        while (tracked < outcomes.length && (outcomes[tracked] == PROCESSED || outcomes[tracked] == FAILED)) {
+            if (progress != null) {
+                if (outcomes[tracked] == PROCESSED) progress.processed(messages[tracked]);
+                else progress.failed();
+            }
+            tracked++;
+        }
+        return tracked;
+    }
+
+    /**
+     * Reverts the SEEN flag of messages whose handlers did not complete
+     * because the dispatch was aborted, so they are processed again in the
+     * next run. This is done on a best effort basis since the connection may
+     * be broken.
+     *
+     * @param messages messages to handle.
+     * @param outcomes outcomes of the messages.
+     */
+    private void abandon(Message[] messages, byte[] outcomes) {
+        if (executor.isRetrieveSeenEmails())
+            return;
+        for (int i = 0; i < outcomes.length; i++) {
+            if (outcomes[i] != IN_FLIGHT)
+                continue;
+            try {
+                if (messages[i].isSet(Flags.Flag.SEEN))
+                    flagUpdates.update(messages[i], Flags.Flag.SEEN, false);
+            } catch (MessagingException e) {
+                LOG.debug("Could not revert SEEN flag of message {}.", i, e);
+            }
+        }
+    }
+
+    /**
+     * The result of handling a single message.
+     */
+    private static final class HandlingResult {
+
+        /**
+         * Index of the handled message.
+         */
+        private final int index;
+
+        /**
+         * The handling error or null if the handling succeeded.
+         */
+        private final Throwable error;
+
+        /**
+         * Constructs a new result.
+         *
+         * @param index index of the handled message.
+         * @param error the handling error or null.
+         */
+        private HandlingResult(int index, Throwable error) {
+            this.index = index;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only local journal of e-mail handling, which makes
+ * <pre>executeForEachEmail</pre> safe to resume after a crash. The UID of
+ * each message is recorded, with the UIDVALIDITY of its folder, before its
+ * handler is invoked and again when the handling completed or failed.
+ *
+ * A record which starts the handling is forced to disk before the handler is
+ * invoked. Records of messages handled at the same time are forced together,
+ * and the records of completed handling are forced along with the next one,
+ * so there is at most one forced write per handled message.
+ *
+ * When a task in a folder starts, the records left by tasks which did not
+ * finish are replayed. Completed messages are marked as SEEN, and as DELETED
+ * if <pre>deleteAfterRetrieval</pre> is true, and they are not handled again.
+ * Messages which were being handled, or whose handling failed, are marked as
+ * unseen again and are handled again. When a task finishes its records are
+ * dropped and the file is rewritten with the records which are left, through
+ * a temporary file which replaces it atomically, or truncated if none are
+ * left. Records of a folder whose tasks keep failing don't hold back the
+ * records of other folders.
+ *
+ * Each line of the file is <pre>&lt;state&gt; &lt;uidvalidity&gt; &lt;uid&gt;
+ * &lt;folder key&gt;</pre> where the state is <pre>B</pre> for begun,
+ * <pre>D</pre> for done and <pre>F</pre> for failed. A journal file must not
+ * be shared between processes.
+ *
+ * @author djosifovic
+ */
+public class ProcessingJournal implements AutoCloseable {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessingJournal.class);
+
+    /**
+     * The state of a message whose handling has begun.
+     */
+    static final char BEGUN = 'B';
+
+    /**
+     * The state of a message whose handling completed.
+     */
+    static final char DONE = 'D';
+
+    /**
+     * The state of a message whose handling failed.
+     */
+    static final char FAILED = 'F';
+
+    /**
+     * The journal file.
+     */
+    private final Path file;
+
+    /**
+     * Appends to the file. A <pre>{@link java.nio.channels.FileChannel}</pre>
+     * is not used because it is closed when a thread using it is interrupted,
+     * which would make the journal unusable after a handler is interrupted or
+     * a task is cancelled. It is reopened when the file is compacted.
+     */
+    private RandomAccessFile output;
+
+    /**
+     * Guards appending to the file and the records.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * Serializes forcing the file to disk.
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    /**
+     * Records which belong to no finished task, by folder key.
+     */
+    private final Map<String, FolderRecords> records = new HashMap<>();
+
+    /**
+     * The number of bytes appended to the file.
+     */
+    private volatile long written;
+
+    /**
+     * The number of bytes which are forced to disk.
+     */
+    private volatile long synced;
+
+    /**
+     * Opens the journal in the given file and reads its records. The file is
+     * created if it doesn't exist.
+     *
+     * @param file the journal file.
+     * @throws IOException if the file can't be read or opened.
+     */
+    public ProcessingJournal(Path file) throws IOException {
+        this.file = file;
+        long complete = Files.exists(file) ? readRecords() : 0;
+        this.output = new RandomAccessFile(file.toFile(), "rw");
+        if (output.length() > complete) {
+            output.setLength(complete);
+            output.getFD().sync();
+        }
+        output.seek(complete);
+        this.written = complete;
+        this.synced = complete;
+    }
+
+    /**
+     * Closes the journal file.
+     *
+     * @throws IOException if the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+
+    /**
+     * Returns the journal file.
+     *
+     * @return the journal file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Starts a task in the folder. The records left in the folder by tasks
+     * which did not finish are taken over by the new task; records with a
+     * different UIDVALIDITY are dropped.
+     *
+     * @param folderKey   the key of the mailbox folder.
+     * @param uidValidity the current UIDVALIDITY of the folder.
+     * @return the session of the task.
+     */
+    Session begin(String folderKey, long uidValidity) {
+        appendLock.lock();
+        try {
+            FolderRecords folderRecords = records.get(folderKey);
+            if (folderRecords != null && folderRecords.uidValidity != uidValidity) {
+                LOG.warn("UIDVALIDITY of {} changed from {} to {}, dropping its journal records.", folderKey, folderRecords.uidValidity, uidValidity);
+                folderRecords = null;
+            }
+            if (folderRecords == null) {
+                folderRecords = new FolderRecords(uidValidity);
+                records.put(folderKey, folderRecords);
+            }
+            Map<Long, Character> recovered = new LinkedHashMap<>(folderRecords.states);
+            recovered.keySet().removeAll(folderRecords.owned);
+            folderRecords.owned.addAll(recovered.keySet());
+            folderRecords.sessions++;
+            return new Session(folderKey, folderRecords, recovered);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param session the session of the record.
+     * @param state   the state of the message.
+     * @param uid     the UID of the message.
+     * @return the position in the file after the record.
+     * @throws IOException if the record can't be written.
+     */
+    private long append(Session session, char state, long uid) throws IOException {
+        byte[] line = (state + " " + session.folderRecords.uidValidity + " " + uid + " " + session.folderKey + "\n").getBytes(StandardCharsets.UTF_8);
+        appendLock.lock();
+        try {
+            output.write(line);
+            written = output.getFilePointer();
+            session.folderRecords.states.put(uid, state);
+            session.folderRecords.owned.add(uid);
+            session.uids.add(uid);
+            return written;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the file to disk up to the given position. Callers which wait
+     * while another caller forces the file are covered by the same write if
+     * their records were appended before it started.
+     *
+     * @param position the position in the file.
+     * @throws IOException if the file can't be forced.
+     */
+    private void sync(long position) throws IOException {
+        if (synced >= position)
+            return;
+        syncLock.lock();
+        try {
+            if (synced >= position)
+                return;
+            long target = written;
+            output.getFD().sync();
+            synced = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Ends the session. The records of a finished session are dropped and the
+     * file is compacted, or truncated if no records are left. The records of
+     * an abandoned session are left for the next session in the folder.
+     *
+     * @param session  the session to end.
+     * @param finished true if the session finished, false if it is abandoned.
+     * @throws IOException if the file can't be compacted or truncated.
+     */
+    private void end(Session session, boolean finished) throws IOException {
+        appendLock.lock();
+        try {
+            FolderRecords folderRecords = session.folderRecords;
+            folderRecords.owned.removeAll(session.uids);
+            folderRecords.sessions--;
+            if (!finished)
+                return;
+            folderRecords.states.keySet().removeAll(session.uids);
+            if (folderRecords.sessions == 0 && folderRecords.states.isEmpty() && records.get(session.folderKey) == folderRecords)
+                records.remove(session.folderKey);
+            if (written == 0)
+                return;
+            syncLock.lock();
+            try {
+                if (records.isEmpty()) {
+                    output.setLength(0);
+                    output.getFD().sync();
+                    written = 0;
+                    synced = 0;
+                } else
+                    compact();
+            } finally {
+                syncLock.unlock();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the file with the records which are left, replacing it
+     * atomically, so a crash during the rewrite leaves the previous file
+     * intact. The file is left as it is if it holds only those records.
+     * Called with the append and sync locks held.
+     *
+     * @throws IOException if the file can't be rewritten.
+     */
+    private void compact() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, FolderRecords> folder : records.entrySet()) {
+            FolderRecords folderRecords = folder.getValue();
+            for (Map.Entry<Long, Character> state : folderRecords.states.entrySet())
+                lines.append(state.getValue()).append(' ').append(folderRecords.uidValidity).append(' ')
+                        .append(state.getKey()).append(' ').append(folder.getKey()).append('\n');
+        }
+        byte[] content = lines.toString().getBytes(StandardCharsets.UTF_8);
+        if (content.length == written)
+            return;
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (RandomAccessFile out = new RandomAccessFile(temporary.toFile(), "rw")) {
+                out.write(content);
+                out.getFD().sync();
+            }
+            output.close();
+            boolean moved = false;
+            try {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                moved = true;
+            } finally {
+                output = new RandomAccessFile(file.toFile(), "rw");
+                if (moved) {
+                    written = content.length;
+                    synced = content.length;
+                }
+                output.seek(written);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Reads the records from the file. A partially written last line, left by
+     * a crash, is ignored.
+     *
+     * @return the length of the complete lines in bytes.
+     * @throws IOException if the file can't be read or is malformed.
+     */
+    private long readRecords() throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        int complete = content.length;
+        while (complete > 0 && content[complete - 1] != '\n')
+            complete--;
+        if (complete < content.length)
+            LOG.warn("Ignoring incomplete last record in {}.", file);
+        for (String line : new String(content, 0, complete, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isEmpty())
+                continue;
+            String[] parts = line.split(" ", 4);
+            if (parts.length != 4 || parts[0].length() != 1)
+                throw new IOException("Malformed record '" + line + "' in " + file + "!");
+            long uidValidity;
+            long uid;
+            try {
+                uidValidity = Long.parseLong(parts[1]);
+                uid = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed record '" + line + "' in " + file + "!", e);
+            }
+            FolderRecords folderRecords = records.get(parts[3]);
+            if (folderRecords == null || folderRecords.uidValidity != uidValidity) {
+                folderRecords = new FolderRecords(uidValidity);
+                records.put(parts[3], folderRecords);
+            }
+            folderRecords.states.put(uid, parts[0].charAt(0));
+        }
+        return complete;
+    }
+
+    /**
+     * The records of a folder.
+     */
+    private static final class FolderRecords {
+
+        /**
+         * The UIDVALIDITY of the records.
+         */
+        private final long uidValidity;
+
+        /**
+         * The last state of each message, by UID.
+         */
+        private final Map<Long, Character> states = new LinkedHashMap<>();
+
+        /**
+         * UIDs of the messages recorded or taken over by running sessions.
+         */
+        private final Set<Long> owned = new HashSet<>();
+
+        /**
+         * The number of running sessions in the folder.
+         */
+        private int sessions = 0;
+
+        /**
+         * Constructs new folder records.
+         *
+         * @param uidValidity the UIDVALIDITY of the records.
+         */
+        private FolderRecords(long uidValidity) {
+            this.uidValidity = uidValidity;
+        }
+    }
+
+    /**
+     * The journal of one task in a folder. It is safe to use from the
+     * connection thread and from handler threads at once.
+     */
+    final class Session {
+
+        /**
+         * The key of the mailbox folder.
+         */
+        private final String folderKey;
+
+        /**
+         * The records of the folder.
+         */
+        private final FolderRecords folderRecords;
+
+        /**
+         * The states of messages left by tasks which did not finish, by UID.
+         */
+        private final Map<Long, Character> recovered;
+
+        /**
+         * UIDs of the messages recorded by this session, guarded by the append
+         * lock.
+         */
+        private final Set<Long> uids = new HashSet<>();
+
+        /**
+         * Constructs a new session.
+         *
+         * @param folderKey     the key of the mailbox folder.
+         * @param folderRecords the records of the folder.
+         * @param recovered     the states left by tasks which did not finish.
+         */
+        private Session(String folderKey, FolderRecords folderRecords, Map<Long, Character> recovered) {
+            this.folderKey = folderKey;
+            this.folderRecords = folderRecords;
+            this.recovered = Collections.unmodifiableMap(recovered);
+            this.uids.addAll(recovered.keySet());
+        }
+
+        /**
+         * Returns the states of messages left by tasks which did not finish.
+         *
+         * @return the states by UID.
+         */
+        Map<Long, Character> getRecovered() {
+            return recovered;
+        }
+
+        /**
+         * Returns true if handling of the message completed in a task which
+         * did not finish, so it must not be handled again.
+         *
+         * @param uid the UID of the message.
+         * @return true if the handling completed, otherwise false.
+         */
+        boolean isDone(long uid) {
+            Character state = recovered.get(uid);
+            return state != null && state == DONE;
+        }
+
+        /**
+         * Records that handling of the message begins and waits until the
+         * record is on disk.
+         *
+         * @param uid the UID of the message.
+         * @throws IOException if the record can't be written.
+         */
+        void begun(long uid) throws IOException {
+            sync(append(this, BEGUN, uid));
+        }
+
+        /**
+         * Records that handling of the message begins, without waiting for
+         * the record to reach the disk.
+         *
+         * @param uid the UID of the message.
+         * @return the position to wait for with <pre>{@link #await(long)}</pre>.
+         * @throws IOException if the record can't be written.
+         */
+        long begin(long uid) throws IOException {
+            return append(this, BEGUN, uid);
+        }
+
+        /**
+         * Waits until the file is on disk up to the position.
+         *
+         * @param position the position returned by <pre>{@link #begin(long)}</pre>.
+         * @throws IOException if the file can't be forced.
+         */
+        void await(long position) throws IOException {
+            sync(position);
+        }
+
+        /**
+         * Records that handling of the message completed or failed. The record
+         * reaches the disk with the next forced one.
+         *
+         * @param uid     the UID of the message.
+         * @param handled true if the handling completed, false if it failed.
+         * @throws IOException if the record can't be written.
+         */
+        void finished(long uid, boolean handled) throws IOException {
+            append(this, handled ? DONE : FAILED, uid);
+        }
+
+        /**
+         * Finishes the session after its flag changes were applied, dropping
+         * its records.
+         *
+         * @throws IOException if the file can't be truncated.
+         */
+        void finish() throws IOException {
+            end(this, true);
+        }
+
+        /**
+         * Ends the session of a task which failed. Its records are left for
+         * the next task in the folder.
+         */
+        void abandon() {
+            try {
+                end(this, false);
+            } catch (IOException e) {
+                // Abandoning doesn't touch the file.
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+/**
+ * The ordering of e-mails retrieved by multiple connections in parallel.
+ *
+ * @author djosifovic
+ */
+public enum ShardOrdering {
+
+    /**
+     * E-mails are returned in folder order, as if they were retrieved over a
+     * single connection.
+     */
+    FOLDER_ORDER,
+
+    /**
+     * E-mails of each shard are kept together in folder order, but shards are
+     * returned in the order in which they completed.
+     */
+    COMPLETION_ORDER
+}
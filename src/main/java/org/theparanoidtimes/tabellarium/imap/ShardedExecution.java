@@ -0,0 +1,335 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs a shard task over multiple connections in parallel. Messages are split
+ * into contiguous UID ranges, the first range is processed in the folder of
+ * the calling task and each other range over its own connection.
+ *
+ * The shard connections are released only after all shards complete. They
+ * are expunged only if every shard succeeded, otherwise all of them are
+ * closed without expunging, so messages marked as DELETED by a shard are not
+ * removed when the task fails.
+ *
+ * @param <T> the result type of the shard task.
+ * @author djosifovic
+ */
+final class ShardedExecution<T> {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedExecution.class);
+
+    /**
+     * The executor which provides the connections.
+     */
+    private final ImapMailboxFolderTaskExecutor executor;
+
+    /**
+     * The opened folder of the calling task.
+     */
+    private final Folder folder;
+
+    /**
+     * The task to run for each shard.
+     */
+    private final ImapMailboxFolderTaskExecutor.ShardTask<T> shardTask;
+
+    /**
+     * The ordering of shard results.
+     */
+    private final ShardOrdering shardOrdering;
+
+    /**
+     * Counts completed shards, used for ordering by completion.
+     */
+    private final AtomicInteger completions = new AtomicInteger();
+
+    /**
+     * Constructs a new sharded execution.
+     *
+     * @param executor      the executor which provides the connections.
+     * @param folder        the opened folder of the calling task.
+     * @param shardTask     the task to run for each shard.
+     * @param shardOrdering the ordering of shard results.
+     */
+    ShardedExecution(ImapMailboxFolderTaskExecutor executor, Folder folder, ImapMailboxFolderTaskExecutor.ShardTask<T> shardTask, ShardOrdering shardOrdering) {
+        this.executor = executor;
+        this.folder = folder;
+        this.shardTask = shardTask;
+        this.shardOrdering = shardOrdering;
+    }
+
+    /**
+     * Splits the first <pre>count</pre> messages into shards, runs the shard
+     * task for each of them and waits for all shards to complete. The
+     * progress of shards is reported to the tracker in message order, up to
+     * the first failed message or shard. The shard connections are released
+     * once all shards complete, with expunging only if all of them succeeded.
+     *
+     * @param messages messages to process.
+     * @param count    number of messages to process.
+     * @param shards   number of shards.
+     * @param tracker  the checkpoint tracker or null.
+     * @return results of the shards, ordered by <pre>shardOrdering</pre>.
+     * @throws Exception if some shard fails.
+     */
+    List<T> run(Message[] messages, int count, int shards, UidCheckpointTracker tracker) throws Exception {
+        UIDFolder uidFolder = (UIDFolder) folder;
+        Message[] toProcess = Arrays.copyOf(messages, count);
+        FetchProfile uidProfile = new FetchProfile();
+        uidProfile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(toProcess, uidProfile);
+
+        int shardSize = (count + shards - 1) / shards;
+        List<ShardResult> results = new ArrayList<>(shards);
+        for (int start = 0; start < count; start += shardSize) {
+            Message[] shardMessages = Arrays.copyOfRange(toProcess, start, Math.min(count, start + shardSize));
+            long[] uids = new long[shardMessages.length];
+            for (int i = 0; i < uids.length; i++)
+                uids[i] = uidFolder.getUID(shardMessages[i]);
+            results.add(new ShardResult(shardMessages, uids));
+        }
+        LOG.debug("Processing {} messages in {} shards of up to {} messages.", count, results.size(), shardSize);
+
+        ExecutorService shardExecutor = Executors.newFixedThreadPool(results.size() - 1, executor.newThreadFactory("tabellarium-imap-shard"));
+        Exception error = null;
+        try {
+            TaskMetrics taskMetrics = TaskMetrics.current();
+            List<Future<?>> futures = new ArrayList<>();
+            for (ShardResult result : results.subList(1, results.size()))
+                futures.add(shardExecutor.submit(() -> {
+                    taskMetrics.enter();
+                    runOverNewConnection(result);
+                }));
+            runInFolder(results.get(0));
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOG.trace("Shard failed.", e.getCause());
+                }
+            }
+
+            for (ShardResult result : results) {
+                if (result.error == null)
+                    continue;
+                if (error == null)
+                    error = result.error;
+                else
+                    error.addSuppressed(result.error);
+            }
+            reportProgress(results, tracker);
+        } catch (Exception e) {
+            if (error == null)
+                error = e;
+            else
+                error.addSuppressed(e);
+        } finally {
+            shardExecutor.shutdownNow();
+        }
+        error = releaseConnections(results, error);
+        if (error != null)
+            throw error;
+
+        if (shardOrdering == ShardOrdering.COMPLETION_ORDER)
+            results.sort((a, b) -> Integer.compare(a.completion, b.completion));
+        List<T> values = new ArrayList<>(results.size());
+        for (ShardResult result : results)
+            values.add(result.value);
+        return values;
+    }
+
+    /**
+     * Runs the shard task for the first shard in the folder of the calling
+     * task.
+     *
+     * @param result the shard to run.
+     */
+    private void runInFolder(ShardResult result) {
+        try {
+            result.value = shardTask.run(folder, result.messages, result);
+        } catch (Exception e) {
+            result.error = e;
+        } finally {
+            result.completion = completions.getAndIncrement();
+        }
+    }
+
+    /**
+     * Runs the shard task for a shard over a connection of its own. The
+     * shard messages are looked up by their UIDs in the new connection, which
+     * is kept open until all shards complete.
+     *
+     * @param result the shard to run.
+     */
+    private void runOverNewConnection(ShardResult result) {
+        try {
+            ImapConnection connection = executor.acquireConnection();
+            result.connection = connection;
+            Message[] found = ((UIDFolder) connection.getFolder()).getMessagesByUID(result.uids);
+            List<Message> shardMessages = new ArrayList<>(found.length);
+            for (Message message : found) {
+                if (message != null)
+                    shardMessages.add(message);
+            }
+            result.value = shardTask.run(connection.getFolder(), shardMessages.toArray(new Message[shardMessages.size()]), result);
+        } catch (Exception e) {
+            result.error = e;
+        } finally {
+            result.completion = completions.getAndIncrement();
+        }
+    }
+
+    /**
+     * Releases the connections of all shards. They are expunged only if no
+     * shard failed, otherwise they are closed without expunging. An error of
+     * releasing a connection fails the execution.
+     *
+     * @param results the shards.
+     * @param error   the error of the shards or null if all succeeded.
+     * @return the error of the execution or null if it succeeded.
+     */
+    private Exception releaseConnections(List<ShardResult> results, Exception error) {
+        boolean succeeded = error == null;
+        for (ShardResult result : results) {
+            if (result.connection == null)
+                continue;
+            try {
+                executor.releaseConnection(result.connection, succeeded);
+            } catch (MessagingException e) {
+                if (error == null) {
+                    result.error = e;
+                    error = e;
+                } else
+                    error.addSuppressed(e);
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Reports processed messages of consecutive shards to the tracker, until
+     * the first shard which did not process all of its messages.
+     *
+     * @param results  the shards in message order.
+     * @param tracker  the checkpoint tracker or null.
+     * @throws MessagingException if the UID can't be read.
+     */
+    private void reportProgress(List<ShardResult> results, UidCheckpointTracker tracker) throws MessagingException {
+        if (tracker == null)
+            return;
+        for (ShardResult result : results) {
+            Map<Long, Message> messagesByUid = new HashMap<>();
+            for (int i = 0; i < result.uids.length; i++)
+                messagesByUid.put(result.uids[i], result.messages[i]);
+            for (Long uid : result.processedUids)
+                tracker.processed(messagesByUid.get(uid));
+            if (result.failed || result.error != null) {
+                tracker.failed();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The messages, progress and result of one shard.
+     */
+    private final class ShardResult implements MessageProgress {
+
+        /**
+         * Messages of the shard in the folder of the calling task.
+         */
+        private final Message[] messages;
+
+        /**
+         * UIDs of the shard messages.
+         */
+        private final long[] uids;
+
+        /**
+         * UIDs of messages processed before the first failure.
+         */
+        private final List<Long> processedUids = new ArrayList<>();
+
+        /**
+         * Guards the processed UIDs.
+         */
+        private final ReentrantLock processedLock = new ReentrantLock();
+
+        /**
+         * A flag indicating that processing of some message failed.
+         */
+        private volatile boolean failed = false;
+
+        /**
+         * The result of the shard task.
+         */
+        private volatile T value;
+
+        /**
+         * The error of the shard task or null if it succeeded.
+         */
+        private volatile Exception error;
+
+        /**
+         * The connection of the shard or null if it runs in the folder of the
+         * calling task.
+         */
+        private volatile ImapConnection connection;
+
+        /**
+         * The order in which this shard completed.
+         */
+        private volatile int completion;
+
+        /**
+         * Constructs a new shard.
+         *
+         * @param messages messages of the shard.
+         * @param uids     UIDs of the shard messages.
+         */
+        private ShardResult(Message[] messages, long[] uids) {
+            this.messages = messages;
+            this.uids = uids;
+        }
+
+        @Override
+        public void processed(Message message) throws MessagingException {
+            if (failed)
+                return;
+            long uid = ((UIDFolder) message.getFolder()).getUID(message);
+            processedLock.lock();
+            try {
+                processedUids.add(uid);
+            } finally {
+                processedLock.unlock();
+            }
+        }
+
+        @Override
+        public void failed() {
+            failed = true;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.theparanoidtimes.tabellarium.metrics.MailboxMetrics;
+import org.theparanoidtimes.tabellarium.metrics.MessageOutcome;
+import org.theparanoidtimes.tabellarium.metrics.NoopMailboxMetrics;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records measurements of one task to <pre>{@link MailboxMetrics}</pre>,
+ * tagged with the task name and folder name. The task which runs on a thread
+ * is made current for that thread, so connection, search and fetch code
+ * shared by all tasks records to the right task.
+ *
+ * @author djosifovic
+ */
+final class TaskMetrics {
+
+    /**
+     * Measurements recorded on a thread without a current task are discarded.
+     */
+    private static final TaskMetrics NONE = new TaskMetrics(NoopMailboxMetrics.INSTANCE, null, null);
+
+    /**
+     * The current task of each thread.
+     */
+    private static final ThreadLocal<TaskMetrics> CURRENT = new ThreadLocal<>();
+
+    /**
+     * A flag indicating that the Java Flight Recorder API is present in the
+     * running JVM. Events are not emitted otherwise, which keeps runtimes
+     * without it supported.
+     */
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    /**
+     * The metrics to record to.
+     */
+    private final MailboxMetrics metrics;
+
+    /**
+     * The name of the task.
+     */
+    private final String taskName;
+
+    /**
+     * The name of the folder.
+     */
+    private final String folderName;
+
+    /**
+     * Constructs new task metrics.
+     *
+     * @param metrics    the metrics to record to.
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     */
+    TaskMetrics(MailboxMetrics metrics, String taskName, String folderName) {
+        this.metrics = metrics;
+        this.taskName = taskName;
+        this.folderName = folderName;
+    }
+
+    /**
+     * Returns the current task of this thread.
+     *
+     * @return the current task metrics, never null.
+     */
+    static TaskMetrics current() {
+        TaskMetrics current = CURRENT.get();
+        return current == null ? NONE : current;
+    }
+
+    /**
+     * Makes this task current for this thread.
+     *
+     * @return the previously current task, to be passed to
+     * <pre>{@link #exit(TaskMetrics)}</pre>.
+     */
+    TaskMetrics enter() {
+        TaskMetrics previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * Restores the previously current task of this thread.
+     *
+     * @param previous the task returned by <pre>{@link #enter()}</pre>.
+     */
+    static void exit(TaskMetrics previous) {
+        if (previous == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(previous);
+    }
+
+    /**
+     * Starts measuring a phase of the task. Besides the latency recorded to
+     * the metrics, a <pre>{@link ImapPhaseEvent}</pre> is emitted to Java
+     * Flight Recorder when it is available and the event is enabled.
+     *
+     * @param phase the measured phase.
+     * @return the started phase, to be stopped when the phase ends.
+     */
+    PhaseTimer start(TaskPhase phase) {
+        return new PhaseTimer(phase, JFR_AVAILABLE ? ImapPhaseEvent.start() : null);
+    }
+
+    /**
+     * Records the outcome of processing a message.
+     *
+     * @param outcome the outcome.
+     */
+    void message(MessageOutcome outcome) {
+        metrics.recordMessage(taskName, folderName, outcome);
+    }
+
+    /**
+     * Records the size of a retrieved or handled message.
+     *
+     * @param bytes the size reported by the server, ignored if unknown.
+     */
+    void bytes(long bytes) {
+        if (bytes > 0)
+            metrics.recordBytes(taskName, folderName, bytes);
+    }
+
+    /**
+     * Checks if the Java Flight Recorder API can be loaded.
+     *
+     * @return true if JFR events can be emitted, otherwise false.
+     */
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, TaskMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A started phase of the task.
+     */
+    final class PhaseTimer {
+
+        /**
+         * The measured phase.
+         */
+        private final TaskPhase phase;
+
+        /**
+         * The start of the phase, from <pre>{@link System#nanoTime()}</pre>.
+         */
+        private final long startNanos = System.nanoTime();
+
+        /**
+         * The started JFR event or null if it is not emitted. Kept untyped so
+         * the event class is never loaded without JFR.
+         */
+        private final Object event;
+
+        /**
+         * Constructs a new started phase.
+         *
+         * @param phase the measured phase.
+         * @param event the started JFR event or null.
+         */
+        private PhaseTimer(TaskPhase phase, Object event) {
+            this.phase = phase;
+            this.event = event;
+        }
+
+        /**
+         * Returns the time elapsed since the phase started.
+         *
+         * @return the elapsed time in milliseconds.
+         */
+        long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Stops the phase which is not related to a single message.
+         */
+        void stop() {
+            stop(0, -1);
+        }
+
+        /**
+         * Stops the phase of processing the message. The size is read from
+         * the message and is reported as unknown if it can't be read.
+         *
+         * @param message the processed message.
+         */
+        void stop(Message message) {
+            long size;
+            try {
+                size = message.getSize();
+            } catch (MessagingException e) {
+                size = -1;
+            }
+            stop(message.getMessageNumber(), size);
+        }
+
+        /**
+         * Stops the phase, records its latency and commits the JFR event.
+         *
+         * @param messageNumber the number of the processed message or zero if
+         *                      the phase is not related to a single message.
+         * @param messageSize   the size of the processed message or -1 if it
+         *                      is unknown.
+         */
+        void stop(int messageNumber, long messageSize) {
+            metrics.recordLatency(taskName, folderName, phase, System.nanoTime() - startNanos);
+            if (event != null)
+                ImapPhaseEvent.finish(event, taskName, folderName, phase, messageNumber, messageSize);
+        }
+    }
+}
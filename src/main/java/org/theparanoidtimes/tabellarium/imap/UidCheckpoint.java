@@ -0,0 +1,70 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+/**
+ * The progress of incremental processing of an IMAP folder. Holds the UID of
+ * the last processed message together with the UIDVALIDITY of the folder at
+ * the time of processing. UIDs are only comparable while UIDVALIDITY stays the
+ * same.
+ *
+ * @author djosifovic
+ */
+public final class UidCheckpoint {
+
+    /**
+     * The UIDVALIDITY of the folder.
+     */
+    private final long uidValidity;
+
+    /**
+     * The UID of the last processed message.
+     */
+    private final long lastUid;
+
+    /**
+     * Constructs a new checkpoint.
+     *
+     * @param uidValidity the UIDVALIDITY of the folder.
+     * @param lastUid     the UID of the last processed message, or zero if no
+     *                    message was processed.
+     */
+    public UidCheckpoint(long uidValidity, long lastUid) {
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+    }
+
+    /**
+     * Returns the UIDVALIDITY of the folder.
+     *
+     * @return the UIDVALIDITY.
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * Returns the UID of the last processed message.
+     *
+     * @return the last processed UID or zero.
+     */
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        UidCheckpoint that = (UidCheckpoint) o;
+        return uidValidity == that.uidValidity && lastUid == that.lastUid;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(uidValidity) + Long.hashCode(lastUid);
+    }
+
+    @Override
+    public String toString() {
+        return "UidCheckpoint{uidValidity=" + uidValidity + ", lastUid=" + lastUid + '}';
+    }
+}
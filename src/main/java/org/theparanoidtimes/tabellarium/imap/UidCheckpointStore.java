@@ -0,0 +1,28 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+/**
+ * Storage for <pre>{@link UidCheckpoint}</pre> instances. Checkpoints are
+ * stored under a key which identifies the mailbox folder.
+ *
+ * @author djosifovic
+ */
+public interface UidCheckpointStore {
+
+    /**
+     * Returns the checkpoint stored under the given key.
+     *
+     * @param folderKey the key of the mailbox folder.
+     * @return the stored checkpoint or null if there is none.
+     * @throws Exception if the checkpoint can't be loaded.
+     */
+    UidCheckpoint load(String folderKey) throws Exception;
+
+    /**
+     * Stores the checkpoint under the given key, replacing the previous one.
+     *
+     * @param folderKey  the key of the mailbox folder.
+     * @param checkpoint the checkpoint to store.
+     * @throws Exception if the checkpoint can't be stored.
+     */
+    void save(String folderKey, UidCheckpoint checkpoint) throws Exception;
+}
@@ -0,0 +1,158 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the progress of one incremental task. Loads the stored
+ * <pre>{@link UidCheckpoint}</pre>, finds the messages added after it and
+ * advances it as messages are processed. The checkpoint is not advanced past
+ * the first message whose processing failed, so that message is found again
+ * in the next run.
+ *
+ * @author djosifovic
+ */
+final class UidCheckpointTracker implements MessageProgress {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(UidCheckpointTracker.class);
+
+    /**
+     * The store with checkpoints.
+     */
+    private final UidCheckpointStore store;
+
+    /**
+     * The key of the mailbox folder.
+     */
+    private final String folderKey;
+
+    /**
+     * The opened folder.
+     */
+    private final UIDFolder folder;
+
+    /**
+     * The current UIDVALIDITY of the folder.
+     */
+    private final long uidValidity;
+
+    /**
+     * The UID of the last processed message when the task started.
+     */
+    private final long startUid;
+
+    /**
+     * The UID of the last processed message.
+     */
+    private long lastUid;
+
+    /**
+     * A flag indicating that processing of some message failed.
+     */
+    private boolean blocked = false;
+
+    /**
+     * A flag indicating that the stored checkpoint was discarded because
+     * UIDVALIDITY changed.
+     */
+    private final boolean reset;
+
+    /**
+     * Constructs a new tracker and loads the stored checkpoint. If the stored
+     * checkpoint has a different UIDVALIDITY all messages in the folder are
+     * treated as new.
+     *
+     * @param store     the store with checkpoints.
+     * @param folderKey the key of the mailbox folder.
+     * @param folder    the opened folder.
+     * @throws Exception if the checkpoint can't be loaded or UIDVALIDITY can't
+     *                   be read.
+     */
+    UidCheckpointTracker(UidCheckpointStore store, String folderKey, UIDFolder folder) throws Exception {
+        this.store = store;
+        this.folderKey = folderKey;
+        this.folder = folder;
+        this.uidValidity = folder.getUIDValidity();
+        UidCheckpoint checkpoint = store.load(folderKey);
+        if (checkpoint != null && checkpoint.getUidValidity() != uidValidity) {
+            LOG.warn("UIDVALIDITY of {} changed from {} to {}, all messages will be processed again.", folderKey, checkpoint.getUidValidity(), uidValidity);
+            checkpoint = null;
+            this.reset = true;
+        } else
+            this.reset = false;
+        this.startUid = checkpoint == null ? 0 : checkpoint.getLastUid();
+        this.lastUid = startUid;
+    }
+
+    /**
+     * Returns the messages added after the checkpoint, in UID order. Only the
+     * range after the checkpoint is requested from the server.
+     *
+     * @return the new messages.
+     * @throws MessagingException if the messages can't be fetched.
+     */
+    Message[] findNewMessages() throws MessagingException {
+        Message[] candidates = folder.getMessagesByUID(startUid + 1, UIDFolder.LASTUID);
+        List<Message> newMessages = new ArrayList<>(candidates.length);
+        for (Message candidate : candidates) {
+            // "UID n:*" always includes the last message, even when its UID is lower than n.
+            if (candidate != null && folder.getUID(candidate) > startUid)
+                newMessages.add(candidate);
+        }
+        return newMessages.toArray(new Message[newMessages.size()]);
+    }
+
+    /**
+     * Returns true if the message was added after the checkpoint.
+     *
+     * @param message message to check.
+     * @return true if the message is new, otherwise false.
+     * @throws MessagingException if the UID can't be read.
+     */
+    boolean isNew(Message message) throws MessagingException {
+        return folder.getUID(message) > lastUid;
+    }
+
+    /**
+     * Marks the message as processed, either handled or intentionally skipped.
+     *
+     * @param message processed message.
+     * @throws MessagingException if the UID can't be read.
+     */
+    @Override
+    public void processed(Message message) throws MessagingException {
+        if (!blocked)
+            lastUid = Math.max(lastUid, folder.getUID(message));
+    }
+
+    /**
+     * Marks that processing of a message failed. The checkpoint will not
+     * advance any more during this task.
+     */
+    @Override
+    public void failed() {
+        blocked = true;
+    }
+
+    /**
+     * Stores the checkpoint if it advanced or if the stored one was discarded.
+     *
+     * @throws Exception if the checkpoint can't be stored.
+     */
+    void save() throws Exception {
+        if (lastUid != startUid || reset) {
+            UidCheckpoint checkpoint = new UidCheckpoint(uidValidity, lastUid);
+            LOG.trace("Saving {} for {}.", checkpoint, folderKey);
+            store.save(folderKey, checkpoint);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.theparanoidtimes.tabellarium.imap;
+
+import org.theparanoidtimes.tabellarium.api.AsyncMailboxTaskExecutorAdapter;
+import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on Java 21 or newer. The library is built for Java
+ * 11, so the virtual thread API is looked up reflectively and
+ * <pre>{@link #isSupported()}</pre> tells if it is available.
+ *
+ * @author djosifovic
+ */
+public final class VirtualThreads {
+
+    /**
+     * <pre>Thread.ofVirtual()</pre> or null if virtual threads are not
+     * supported.
+     */
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+
+    /**
+     * <pre>Executors.newVirtualThreadPerTaskExecutor()</pre> or null if
+     * virtual threads are not supported.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+    /**
+     * Non instantiable.
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns true if the running JVM supports virtual threads.
+     *
+     * @return true if virtual threads are supported, otherwise false.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null && NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns a new executor which runs each task on a new virtual thread.
+     * It can be used as the handler executor or the I/O executor of
+     * asynchronous tasks.
+     *
+     * @return a new virtual thread per task executor.
+     * @throws UnsupportedOperationException if virtual threads are not
+     *                                       supported.
+     */
+    public static ExecutorService newExecutor() {
+        return (ExecutorService) invokeStatic(NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR);
+    }
+
+    /**
+     * Returns a new asynchronous adapter which runs each task of the executor
+     * on its own virtual thread.
+     *
+     * @param mailboxTaskExecutor the executor which runs the tasks.
+     * @return a new adapter on virtual threads.
+     * @throws UnsupportedOperationException if virtual threads are not
+     *                                       supported.
+     */
+    public static AsyncMailboxTaskExecutorAdapter newAsyncAdapter(MailboxTaskExecutor mailboxTaskExecutor) {
+        return new AsyncMailboxTaskExecutorAdapter(mailboxTaskExecutor, newExecutor());
+    }
+
+    /**
+     * Returns a new factory of virtual threads with the given name.
+     *
+     * @param name the name of the threads.
+     * @return a new virtual thread factory.
+     * @throws UnsupportedOperationException if virtual threads are not
+     *                                       supported.
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        Object builder = invokeStatic(OF_VIRTUAL);
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads could not be created!", e);
+        }
+    }
+
+    /**
+     * Invokes a static method of the virtual thread API.
+     *
+     * @param method the method or null if it is not available.
+     * @return the result of the invocation.
+     * @throws UnsupportedOperationException if the method is not available.
+     */
+    private static Object invokeStatic(Method method) {
+        if (method == null)
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer!");
+        try {
+            return method.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Virtual threads could not be created!", e);
+        }
+    }
+
+    /**
+     * Looks up a public method without parameters.
+     *
+     * @param type the declaring class.
+     * @param name the name of the method.
+     * @return the method or null if it doesn't exist.
+     */
+    private static Method findMethod(Class<?> type, String name) {
+        try {
+            return type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
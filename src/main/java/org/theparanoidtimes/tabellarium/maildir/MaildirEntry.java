@@ -0,0 +1,135 @@
+package org.theparanoidtimes.tabellarium.maildir;
+
+import javax.mail.Flags;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A message file in the <pre>new</pre> or <pre>cur</pre> directory of a
+ * Maildir. The file name is the unique name of the message, followed in
+ * <pre>cur</pre> by <pre>:2,</pre> and the flag letters in ASCII order.
+ *
+ * @author djosifovic
+ */
+final class MaildirEntry {
+
+    /**
+     * The separator of the unique name and the flag letters.
+     */
+    static final String INFO_SEPARATOR = ":2,";
+
+    /**
+     * The message file.
+     */
+    private final Path path;
+
+    /**
+     * The unique name of the message.
+     */
+    private final String uniqueName;
+
+    /**
+     * The flag letters of the message.
+     */
+    private final String flagLetters;
+
+    /**
+     * Constructs a new entry from the message file.
+     *
+     * @param path the message file.
+     */
+    MaildirEntry(Path path) {
+        this.path = path;
+        String name = path.getFileName().toString();
+        int separator = name.lastIndexOf(INFO_SEPARATOR);
+        this.uniqueName = separator < 0 ? name : name.substring(0, separator);
+        this.flagLetters = separator < 0 ? "" : name.substring(separator + INFO_SEPARATOR.length());
+    }
+
+    /**
+     * Returns the message file.
+     *
+     * @return the message file.
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the unique name of the message, which starts with its delivery
+     * time.
+     *
+     * @return the unique name.
+     */
+    String getUniqueName() {
+        return uniqueName;
+    }
+
+    /**
+     * Returns true if the message has the S flag.
+     *
+     * @return true if the message is seen, otherwise false.
+     */
+    boolean isSeen() {
+        return flagLetters.indexOf('S') >= 0;
+    }
+
+    /**
+     * Returns true if the message has the T flag.
+     *
+     * @return true if the message is trashed, otherwise false.
+     */
+    boolean isTrashed() {
+        return flagLetters.indexOf('T') >= 0;
+    }
+
+    /**
+     * Returns the flags of the message: D is DRAFT, F is FLAGGED, R is
+     * ANSWERED, S is SEEN and T is DELETED.
+     *
+     * @return the flags of the message.
+     */
+    Flags getFlags() {
+        Flags flags = new Flags();
+        for (char letter : flagLetters.toCharArray()) {
+            switch (letter) {
+                case 'D':
+                    flags.add(Flags.Flag.DRAFT);
+                    break;
+                case 'F':
+                    flags.add(Flags.Flag.FLAGGED);
+                    break;
+                case 'R':
+                    flags.add(Flags.Flag.ANSWERED);
+                    break;
+                case 'S':
+                    flags.add(Flags.Flag.SEEN);
+                    break;
+                case 'T':
+                    flags.add(Flags.Flag.DELETED);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Returns the file of the message in the given <pre>cur</pre> directory
+     * once it is marked as seen.
+     *
+     * @param cur the <pre>cur</pre> directory of the Maildir.
+     * @return the file of the seen message.
+     */
+    Path getSeenPath(Path cur) {
+        char[] letters = (flagLetters + 'S').toCharArray();
+        Arrays.sort(letters);
+        return cur.resolve(uniqueName + INFO_SEPARATOR + new String(letters));
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
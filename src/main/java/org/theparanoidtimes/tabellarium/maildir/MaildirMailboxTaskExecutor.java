@@ -0,0 +1,509 @@
+package org.theparanoidtimes.tabellarium.maildir;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.BatchEmailHandler;
+import org.theparanoidtimes.tabellarium.api.BatchResult;
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.MailBoxTaskExecutorException;
+import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A Tabellarium implementation for local Maildir folders. The e-mails are
+ * the files in the <pre>new</pre> and <pre>cur</pre> directories of the
+ * folder; the <pre>tmp</pre> directory holds e-mails which are still being
+ * delivered and is ignored.
+ *
+ * E-mails in <pre>new</pre> and e-mails without the S flag in their file name
+ * are unseen, and e-mails with the T flag are treated as DELETED and skipped.
+ * A handled e-mail is moved to <pre>cur</pre> with the S flag added to its
+ * file name, unless <pre>retrieveSeenEmails</pre> is true, or deleted if
+ * <pre>deleteAfterRetrieval</pre> is true. Files are renamed and deleted
+ * right after the e-mail is handled, so an e-mail whose handling failed is
+ * left unchanged and there are no flags to revert.
+ *
+ * Both directories are listed and the file names are parsed in parallel, and
+ * the files are read through a <pre>{@link FileChannel}</pre> in one read
+ * each. <pre>{@link #retrieveEmails()}</pre> reads the files in parallel.
+ *
+ * @author djosifovic
+ */
+public class MaildirMailboxTaskExecutor implements MailboxTaskExecutor {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(MaildirMailboxTaskExecutor.class);
+
+    /**
+     * The Maildir folder.
+     */
+    private final Path maildir;
+
+    /**
+     * The directory of delivered e-mails which were not yet seen by a mail
+     * client.
+     */
+    private final Path newDirectory;
+
+    /**
+     * The directory of e-mails which were seen by a mail client.
+     */
+    private final Path curDirectory;
+
+    /**
+     * The session of parsed messages.
+     */
+    private final Session session = Session.getInstance(new Properties());
+
+    /**
+     * Batch size for retrieving e-mails. More specifically the maximum number
+     * of messages that will be retrieved in one run.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Flag marks if e-mails should be deleted after retrieval.
+     */
+    private boolean deleteAfterRetrieval = false;
+
+    /**
+     * Flag marks if e-mails that are marked as seen should also be retrieved.
+     */
+    private boolean retrieveSeenEmails = false;
+
+    /**
+     * The maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * A default batch size - all e-mails.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 0;
+
+    /**
+     * A default chunk size - fifty e-mails.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * Constructs a new <pre>{@link MaildirMailboxTaskExecutor}</pre> instance
+     * for the given Maildir folder.
+     *
+     * @param maildir the Maildir folder, which contains the <pre>new</pre>,
+     *                <pre>cur</pre> and <pre>tmp</pre> directories.
+     */
+    public MaildirMailboxTaskExecutor(Path maildir) {
+        if (maildir == null)
+            throw new IllegalArgumentException("Maildir must not be null!");
+        this.maildir = maildir;
+        this.newDirectory = maildir.resolve("new");
+        this.curDirectory = maildir.resolve("cur");
+    }
+
+    /**
+     * {@inheritDoc}
+     * Returns e-mails from the Maildir which are unseen or all e-mails if
+     * <pre>retrieveSeenEmails</pre> is set to true. The e-mails are read into
+     * memory, so they don't depend on their files.
+     *
+     * This is designed as a 'batch' task, so for retrieving all e-mails using a
+     * positive batch size the task should be called multiple times.
+     *
+     * @return a list of e-mails from the Maildir.
+     * @throws MailBoxTaskExecutorException if the task can't execute properly.
+     */
+    @Override
+    public List<Message> retrieveEmails() throws MailBoxTaskExecutorException {
+        try {
+            return doMaildirTask("RetrieveEmailsMaildirTask", () -> {
+                List<MaildirEntry> entries = findMessages();
+                List<Message> messages = entries.parallelStream()
+                        .map(this::readMessageUnchecked)
+                        .collect(Collectors.toList());
+                List<Message> retrievedEmails = new ArrayList<>(entries.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    if (messages.get(i) == null)
+                        continue;
+                    retrievedEmails.add(messages.get(i));
+                    emailHandled(entries.get(i));
+                }
+                return retrievedEmails;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while retrieving e-mail from the Maildir.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Returns true if there are more e-mails in the Maildir, otherwise false.
+     * If <pre>retrieveSeenEmails</pre> is set to true this task will count
+     * those mails to.
+     *
+     * @return true if there are more e-mails in the Maildir, otherwise false.
+     * @throws MailBoxTaskExecutorException if the task can't execute properly.
+     */
+    @Override
+    public boolean areThereRemainingEmails() throws MailBoxTaskExecutorException {
+        try {
+            return doMaildirTask("AreThereRemainingEmailsMaildirTask", () -> !findMessages().isEmpty());
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while getting remaining e-mails number.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Executes a passed <pre>EmailHandler</pre> method on each e-mail in the
+     * Maildir, in the order of delivery. An e-mail whose handling failed is
+     * left unchanged.
+     *
+     * @param emailHandler handler for each e-mail.
+     * @throws MailBoxTaskExecutorException if some error happened during
+     *                                      execution.
+     */
+    @Override
+    public void executeForEachEmail(final EmailHandler emailHandler) throws MailBoxTaskExecutorException {
+        try {
+            doMaildirTask("ExecuteForEachEmailMaildirTask", () -> {
+                List<MaildirEntry> entries = findMessages();
+                for (int i = 0; i < entries.size(); i++) {
+                    MaildirEntry entry = entries.get(i);
+                    Message message = readMessage(entry);
+                    if (message == null)
+                        continue;
+                    try {
+                        emailHandler.handleEmail(message);
+                    } catch (Exception e) {
+                        LOG.error("Error happened while handling e-mail message {}!", i, e);
+                        continue;
+                    }
+                    emailHandled(entry);
+                }
+                return null;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while executing task in Maildir.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The handler is invoked on chunks of up to <pre>chunkSize</pre> e-mails.
+     * Handled e-mails of a chunk are moved or deleted once the handler
+     * returns, and failed e-mails are left unchanged.
+     *
+     * @param batchEmailHandler handler for each chunk of e-mails.
+     * @throws MailBoxTaskExecutorException if some error happened during
+     *                                      execution.
+     */
+    @Override
+    public void executeForEachBatch(final BatchEmailHandler batchEmailHandler) throws MailBoxTaskExecutorException {
+        try {
+            doMaildirTask("ExecuteForEachBatchMaildirTask", () -> {
+                List<MaildirEntry> entries = findMessages();
+                for (int start = 0; start < entries.size(); start += chunkSize) {
+                    List<MaildirEntry> chunkEntries = new ArrayList<>();
+                    List<Message> chunk = new ArrayList<>();
+                    for (MaildirEntry entry : entries.subList(start, Math.min(start + chunkSize, entries.size()))) {
+                        Message message = readMessage(entry);
+                        if (message != null) {
+                            chunkEntries.add(entry);
+                            chunk.add(message);
+                        }
+                    }
+                    if (chunk.isEmpty())
+                        continue;
+                    BatchResult result;
+                    try {
+                        result = batchEmailHandler.handleEmails(chunk);
+                    } catch (Exception e) {
+                        LOG.error("Error happened while handling e-mail chunk starting at {}!", start, e);
+                        continue;
+                    }
+                    for (int i = 0; i < chunkEntries.size(); i++) {
+                        if (result.isFailed(i))
+                            LOG.error("Handling of e-mail message {} failed!", start + i);
+                        else
+                            emailHandled(chunkEntries.get(i));
+                    }
+                }
+                return null;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while executing task in Maildir.", ex);
+        }
+    }
+
+    /**
+     * Lists the e-mails to process, up to <pre>batchSize</pre> e-mails in the
+     * order of delivery. The <pre>new</pre> and <pre>cur</pre> directories are
+     * listed in parallel.
+     *
+     * @return the e-mails to process.
+     * @throws IOException if a directory can't be listed.
+     */
+    private List<MaildirEntry> findMessages() throws IOException {
+        if (!Files.isDirectory(newDirectory) || !Files.isDirectory(curDirectory))
+            throw new IOException("The specified Maildir " + maildir + " doesn't exist!");
+        try {
+            Stream<MaildirEntry> entries = Stream.of(newDirectory, curDirectory).parallel()
+                    .map(this::listDirectory)
+                    .flatMap(List::stream)
+                    .map(MaildirEntry::new)
+                    .filter(entry -> !isSkipped(entry))
+                    .sorted(Comparator.comparing(MaildirEntry::getUniqueName));
+            if (batchSize > 0)
+                entries = entries.limit(batchSize);
+            return entries.collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Lists the message files in the directory.
+     *
+     * @param directory the directory to list.
+     * @return the message files.
+     * @throws UncheckedIOException if the directory can't be listed.
+     */
+    private List<Path> listDirectory(Path directory) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, file -> !file.getFileName().toString().startsWith("."))) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return files;
+    }
+
+    /**
+     * Returns true if the e-mail should not be processed because it has the T
+     * flag, or it is seen and <pre>retrieveSeenEmails</pre> is false.
+     *
+     * @param entry the e-mail to check.
+     * @return true if the e-mail should be skipped, otherwise false.
+     */
+    private boolean isSkipped(MaildirEntry entry) {
+        return entry.isTrashed() || (!retrieveSeenEmails && entry.isSeen());
+    }
+
+    /**
+     * Reads the e-mail from its file. The flags of the returned message are
+     * set from the file name.
+     *
+     * @param entry the e-mail to read.
+     * @return the message or null if the file no longer exists.
+     * @throws IOException        if the file can't be read.
+     * @throws MessagingException if the e-mail can't be parsed.
+     */
+    private Message readMessage(MaildirEntry entry) throws IOException, MessagingException {
+        byte[] content;
+        try (FileChannel channel = FileChannel.open(entry.getPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8)
+                throw new IOException("E-mail " + entry + " is too large!");
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new IOException("E-mail " + entry + " was truncated while it was read!");
+            }
+            content = buffer.array();
+        } catch (NoSuchFileException e) {
+            LOG.debug("Skipping e-mail {} which was moved or deleted.", entry);
+            return null;
+        }
+        MimeMessage message = new MimeMessage(session, new SharedByteArrayInputStream(content));
+        message.setFlags(entry.getFlags(), true);
+        return message;
+    }
+
+    /**
+     * Reads the e-mail from its file, wrapping the errors for use in streams.
+     *
+     * @param entry the e-mail to read.
+     * @return the message or null if the file no longer exists.
+     * @throws UncheckedIOException if the file can't be read or parsed.
+     */
+    private Message readMessageUnchecked(MaildirEntry entry) {
+        try {
+            return readMessage(entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (MessagingException e) {
+            throw new UncheckedIOException(new IOException("Could not parse e-mail " + entry + ".", e));
+        }
+    }
+
+    /**
+     * Deletes the handled e-mail if <pre>deleteAfterRetrieval</pre> is true,
+     * otherwise moves it to <pre>cur</pre> with the S flag, unless
+     * <pre>retrieveSeenEmails</pre> is true or it is seen already.
+     *
+     * @param entry the handled e-mail.
+     * @throws IOException if the file can't be deleted or moved.
+     */
+    private void emailHandled(MaildirEntry entry) throws IOException {
+        try {
+            if (deleteAfterRetrieval) {
+                LOG.trace("Deleting e-mail {}.", entry);
+                Files.delete(entry.getPath());
+            } else if (!retrieveSeenEmails && !entry.isSeen()) {
+                LOG.trace("Marking e-mail {} as SEEN.", entry);
+                Files.move(entry.getPath(), entry.getSeenPath(curDirectory), StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (NoSuchFileException e) {
+            LOG.warn("E-mail {} was moved or deleted while it was handled.", entry);
+        }
+    }
+
+    /**
+     * The common skeleton for all tasks. Logs the task and unwraps errors
+     * thrown from streams.
+     *
+     * @param taskName the name of the task.
+     * @param task     task to execute.
+     * @param <T>      return type of the task.
+     * @return the result of task execution.
+     * @throws Exception if the task fails.
+     */
+    private <T> T doMaildirTask(String taskName, Callable<T> task) throws Exception {
+        long start = System.nanoTime();
+        try {
+            LOG.trace("Starting {} with retrieveSeenEmails set to {} and deleteAfterRetrieval set to {}.", taskName, retrieveSeenEmails, deleteAfterRetrieval);
+            T result = task.call();
+            LOG.info("Finished task {}, with result {} in {} ms", taskName, result, (System.nanoTime() - start) / 1_000_000);
+            return result;
+        } catch (UncheckedIOException e) {
+            LOG.error("Error happened while executing task {}!", taskName, e.getCause());
+            throw e.getCause();
+        } catch (Exception e) {
+            LOG.error("Error happened while executing task {}!", taskName, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the Maildir folder.
+     *
+     * @return the Maildir folder.
+     */
+    public final Path getMaildir() {
+        return maildir;
+    }
+
+    /**
+     * Returns the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @return the chunk size.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @param chunkSize the chunk size to set.
+     * @throws IllegalArgumentException if chunk size is not positive.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive!");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the batch size.
+     *
+     * @return the batch size.
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns true if e-mails are deleted after retrieval.
+     *
+     * @return the delete after retrieval flag.
+     */
+    public final boolean isDeleteAfterRetrieval() {
+        return deleteAfterRetrieval;
+    }
+
+    /**
+     * Returns true if seen e-mails are also retrieved.
+     *
+     * @return the retrieve seen e-mails flag.
+     */
+    public final boolean isRetrieveSeenEmails() {
+        return retrieveSeenEmails;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Zero size batch means all e-mails in the Maildir.
+     *
+     * @throws IllegalArgumentException if batch size is less then 0.
+     */
+    @Override
+    public final void setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("Batch size must be either zero or positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Sets the
+     * <pre>deleteAfterRetrieval</pre> flag.
+     *
+     * @param deleteAfterRetrieval boolean to set.
+     */
+    @Override
+    public final void setDeleteAfterRetrieval(boolean deleteAfterRetrieval) {
+        this.deleteAfterRetrieval = deleteAfterRetrieval;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Sets the
+     * <pre>retrieveSeenEmails</pre> flag.
+     *
+     * @param retrieveSeenEmails boolean to set.
+     */
+    @Override
+    public final void setRetrieveSeenEmails(boolean retrieveSeenEmails) {
+        this.retrieveSeenEmails = retrieveSeenEmails;
+    }
+}
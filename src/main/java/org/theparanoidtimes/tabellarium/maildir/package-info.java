@@ -0,0 +1,4 @@
+/**
+ * Tabellarium Maildir implementation package.
+ */
+package org.theparanoidtimes.tabellarium.maildir;
@@ -0,0 +1,90 @@
+package org.theparanoidtimes.tabellarium.mbox;
+
+import javax.mail.internet.SharedInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A <pre>{@link SharedInputStream}</pre> over a slice of a memory-mapped
+ * file. Messages parsed from it keep their content as slices of the same
+ * mapping, so the content is never copied to the heap.
+ *
+ * @author djosifovic
+ */
+final class MappedSliceInputStream extends InputStream implements SharedInputStream {
+
+    /**
+     * The bytes of the stream, from position zero to its end.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The marked position.
+     */
+    private int mark = 0;
+
+    /**
+     * Constructs a new stream over the remaining bytes of the buffer.
+     *
+     * @param buffer the bytes of the stream.
+     */
+    MappedSliceInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0)
+            return 0;
+        if (!buffer.hasRemaining())
+            return -1;
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        buffer.position(mark);
+    }
+
+    @Override
+    public long getPosition() {
+        return buffer.position();
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end < 0 ? buffer.limit() : (int) end);
+        slice.position((int) start);
+        return new MappedSliceInputStream(slice);
+    }
+}
@@ -0,0 +1,80 @@
+package org.theparanoidtimes.tabellarium.mbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only window into an mbox file which maps regions of the file on
+ * demand. A region which is not inside the current window maps a new window
+ * starting at the region, so regions read in file order map the file once.
+ * A window must be used by one thread at a time.
+ *
+ * @author djosifovic
+ */
+final class MappedWindow {
+
+    /**
+     * The size of a window - 256 MB.
+     */
+    static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * The channel of the mbox file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The size of the mbox file.
+     */
+    private final long fileSize;
+
+    /**
+     * The mapped window or null.
+     */
+    private MappedByteBuffer buffer = null;
+
+    /**
+     * The file position of the window.
+     */
+    private long start = 0;
+
+    /**
+     * The file position after the window.
+     */
+    private long end = 0;
+
+    /**
+     * Constructs a new window.
+     *
+     * @param channel  the channel of the mbox file.
+     * @param fileSize the size of the mbox file.
+     */
+    MappedWindow(FileChannel channel, long fileSize) {
+        this.channel = channel;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Returns the region of the file as a buffer which shares the mapping.
+     *
+     * @param from the file position of the region.
+     * @param to   the file position after the region.
+     * @return the bytes of the region.
+     * @throws IOException if the region is too large or can't be mapped.
+     */
+    ByteBuffer slice(long from, long to) throws IOException {
+        if (to - from > Integer.MAX_VALUE)
+            throw new IOException("Region at " + from + " is too large to be mapped!");
+        if (buffer == null || from < start || to > end) {
+            start = from;
+            end = Math.min(fileSize, Math.max(to, from + WINDOW_SIZE));
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) (to - start));
+        slice.position((int) (from - start));
+        return slice;
+    }
+}
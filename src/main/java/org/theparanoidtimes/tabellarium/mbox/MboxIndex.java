@@ -0,0 +1,409 @@
+package org.theparanoidtimes.tabellarium.mbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The offsets of the e-mails in an mbox file and the e-mails which were
+ * handled. An e-mail starts at a line which starts with <pre>From </pre>.
+ *
+ * The index is kept in a binary file along with the size and modification
+ * time of the mbox file. If the mbox file only grew since the index was
+ * saved, only the appended part is scanned; if it changed otherwise, the
+ * whole file is scanned again and the handled e-mails are forgotten.
+ *
+ * @author djosifovic
+ */
+final class MboxIndex {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(MboxIndex.class);
+
+    /**
+     * The first bytes of an index file.
+     */
+    private static final int MAGIC = 0x54424d58;
+
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The minimum number of bytes scanned by one thread - 16 MB.
+     */
+    private static final long MIN_SCAN_PART = 16L * 1024 * 1024;
+
+    /**
+     * The bytes which start an e-mail.
+     */
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    /**
+     * Eight newline bytes.
+     */
+    private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+
+    /**
+     * Eight bytes with the lowest bit set.
+     */
+    private static final long LOW_BITS = 0x0101010101010101L;
+
+    /**
+     * Eight bytes with the highest bit set.
+     */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * The size of the indexed mbox file.
+     */
+    private final long mboxSize;
+
+    /**
+     * The modification time of the indexed mbox file.
+     */
+    private final long mboxModified;
+
+    /**
+     * The offsets of the e-mails, in file order.
+     */
+    private final long[] offsets;
+
+    /**
+     * The indexes of handled e-mails.
+     */
+    private final BitSet handled;
+
+    /**
+     * Guards the handled e-mails.
+     */
+    private final ReentrantLock handledLock = new ReentrantLock();
+
+    /**
+     * A flag indicating that the index differs from the index file.
+     */
+    private volatile boolean changed;
+
+    /**
+     * Constructs a new index.
+     *
+     * @param mboxSize     the size of the indexed mbox file.
+     * @param mboxModified the modification time of the indexed mbox file.
+     * @param offsets      the offsets of the e-mails.
+     * @param handled      the indexes of handled e-mails.
+     * @param changed      true if the index differs from the index file.
+     */
+    private MboxIndex(long mboxSize, long mboxModified, long[] offsets, BitSet handled, boolean changed) {
+        this.mboxSize = mboxSize;
+        this.mboxModified = mboxModified;
+        this.offsets = offsets;
+        this.handled = handled;
+        this.changed = changed;
+    }
+
+    /**
+     * Returns the index of the mbox file, loaded from the index file and
+     * updated, or built by scanning the mbox file.
+     *
+     * @param mbox        the mbox file.
+     * @param channel     the channel of the mbox file.
+     * @param indexFile   the index file.
+     * @param parallelism the number of threads which scan the file.
+     * @return the index of the mbox file.
+     * @throws IOException if the files can't be read.
+     */
+    static MboxIndex open(Path mbox, FileChannel channel, Path indexFile, int parallelism) throws IOException {
+        long size = channel.size();
+        long modified = Files.getLastModifiedTime(mbox).toMillis();
+        MboxIndex saved = Files.exists(indexFile) ? load(indexFile) : null;
+        if (saved != null && saved.mboxSize == size && saved.mboxModified == modified)
+            return saved;
+        if (saved != null && saved.mboxSize <= size && saved.offsets.length > 0 && startsEmail(channel, saved.offsets[saved.offsets.length - 1])) {
+            long rescanFrom = saved.offsets[saved.offsets.length - 1] + 1;
+            long[] appended = scan(channel, size, rescanFrom, size, parallelism);
+            LOG.debug("Found {} e-mails appended to {}.", appended.length, mbox);
+            long[] offsets = Arrays.copyOf(saved.offsets, saved.offsets.length + appended.length);
+            System.arraycopy(appended, 0, offsets, saved.offsets.length, appended.length);
+            return new MboxIndex(size, modified, offsets, saved.handled, true);
+        }
+        long[] offsets = scan(channel, size, 0, size, parallelism);
+        LOG.debug("Found {} e-mails in {}.", offsets.length, mbox);
+        return new MboxIndex(size, modified, offsets, new BitSet(), true);
+    }
+
+    /**
+     * Returns the number of e-mails.
+     *
+     * @return the number of e-mails.
+     */
+    int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Returns the file position of the e-mail.
+     *
+     * @param index the index of the e-mail.
+     * @return the position of its <pre>From </pre> line.
+     */
+    long getStart(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Returns the file position after the e-mail.
+     *
+     * @param index the index of the e-mail.
+     * @return the position of the next e-mail or the size of the file.
+     */
+    long getEnd(int index) {
+        return index + 1 < offsets.length ? offsets[index + 1] : mboxSize;
+    }
+
+    /**
+     * Returns true if the e-mail was handled.
+     *
+     * @param index the index of the e-mail.
+     * @return true if the e-mail was handled, otherwise false.
+     */
+    boolean isHandled(int index) {
+        handledLock.lock();
+        try {
+            return handled.get(index);
+        } finally {
+            handledLock.unlock();
+        }
+    }
+
+    /**
+     * Records that the e-mail was handled.
+     *
+     * @param index the index of the e-mail.
+     */
+    void setHandled(int index) {
+        handledLock.lock();
+        try {
+            handled.set(index);
+            changed = true;
+        } finally {
+            handledLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the index of the first e-mail which starts at or after the
+     * position.
+     *
+     * @param position the file position.
+     * @return the index of the e-mail or the number of e-mails.
+     */
+    int indexAt(long position) {
+        int index = Arrays.binarySearch(offsets, position);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Returns true if the index differs from the index file.
+     *
+     * @return true if the index should be saved, otherwise false.
+     */
+    boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Writes the index to the file, replacing it atomically.
+     *
+     * @param indexFile the index file.
+     * @throws IOException if the file can't be written.
+     */
+    void save(Path indexFile) throws IOException {
+        long[] handledWords;
+        handledLock.lock();
+        try {
+            handledWords = handled.toLongArray();
+            changed = false;
+        } finally {
+            handledLock.unlock();
+        }
+        Path directory = indexFile.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, indexFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(mboxSize);
+                out.writeLong(mboxModified);
+                out.writeInt(offsets.length);
+                for (long offset : offsets)
+                    out.writeLong(offset);
+                out.writeInt(handledWords.length);
+                for (long word : handledWords)
+                    out.writeLong(word);
+            }
+            Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Reads the index from the file.
+     *
+     * @param indexFile the index file.
+     * @return the index or null if the file is not a valid index.
+     * @throws IOException if the file can't be read.
+     */
+    private static MboxIndex load(Path indexFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.warn("Ignoring invalid mbox index {}.", indexFile);
+                return null;
+            }
+            long mboxSize = in.readLong();
+            long mboxModified = in.readLong();
+            long[] offsets = new long[in.readInt()];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = in.readLong();
+            long[] handledWords = new long[in.readInt()];
+            for (int i = 0; i < handledWords.length; i++)
+                handledWords[i] = in.readLong();
+            return new MboxIndex(mboxSize, mboxModified, offsets, BitSet.valueOf(handledWords), false);
+        } catch (EOFException e) {
+            LOG.warn("Ignoring truncated mbox index {}.", indexFile);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if an e-mail starts at the position.
+     *
+     * @param channel  the channel of the mbox file.
+     * @param position the file position.
+     * @return true if the line at the position starts with <pre>From </pre>.
+     * @throws IOException if the file can't be read.
+     */
+    private static boolean startsEmail(FileChannel channel, long position) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(FROM.length + 1);
+        long from = Math.max(0, position - 1);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, from + bytes.position()) < 0)
+                break;
+        }
+        bytes.flip();
+        if (position > 0 && (!bytes.hasRemaining() || bytes.get() != '\n'))
+            return false;
+        return bytes.remaining() >= FROM.length && matchesFrom(bytes, bytes.position());
+    }
+
+    /**
+     * Finds the e-mails which start in the range of the file. The range is
+     * split in parts which are scanned in parallel.
+     *
+     * @param channel     the channel of the mbox file.
+     * @param size        the size of the mbox file.
+     * @param from        the file position of the range.
+     * @param to          the file position after the range.
+     * @param parallelism the maximum number of parts.
+     * @return the offsets of the e-mails, in file order.
+     * @throws IOException if the file can't be mapped.
+     */
+    static long[] scan(FileChannel channel, long size, long from, long to, int parallelism) throws IOException {
+        int parts = (int) Math.max(1, Math.min(parallelism, (to - from) / MIN_SCAN_PART));
+        long partSize = (to - from + parts - 1) / parts;
+        try {
+            List<long[]> found = IntStream.range(0, parts).parallel()
+                    .mapToObj(part -> scanPart(channel, size, from + part * partSize, Math.min(to, from + (part + 1) * partSize)))
+                    .collect(Collectors.toList());
+            return found.stream().flatMapToLong(Arrays::stream).toArray();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Finds the e-mails which start in the part of the file. Newlines are
+     * searched for eight bytes at a time.
+     *
+     * @param channel the channel of the mbox file.
+     * @param size    the size of the mbox file.
+     * @param from    the file position of the part.
+     * @param to      the file position after the part.
+     * @return the offsets of the e-mails, in file order.
+     * @throws UncheckedIOException if the file can't be mapped.
+     */
+    private static long[] scanPart(FileChannel channel, long size, long from, long to) {
+        long[] offsets = new long[16];
+        int count = 0;
+        try {
+            for (long windowStart = from; windowStart < to; windowStart += MappedWindow.WINDOW_SIZE) {
+                long windowEnd = Math.min(to, windowStart + MappedWindow.WINDOW_SIZE);
+                long mapStart = Math.max(0, windowStart - 1);
+                ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(size, windowEnd + FROM.length) - mapStart);
+                if (windowStart == 0 && matchesFrom(bytes, 0))
+                    offsets[count++] = 0;
+                int first = (int) (windowStart - 1 - mapStart);
+                int last = (int) (windowEnd - 1 - mapStart);
+                int i = Math.max(0, first);
+                while (i < last) {
+                    if (i + Long.BYTES <= last) {
+                        long x = bytes.getLong(i) ^ NEWLINES;
+                        if (((x - LOW_BITS) & ~x & HIGH_BITS) == 0) {
+                            i += Long.BYTES;
+                            continue;
+                        }
+                    }
+                    int end = Math.min(last, i + Long.BYTES);
+                    for (; i < end; i++) {
+                        if (bytes.get(i) == '\n' && matchesFrom(bytes, i + 1)) {
+                            if (count == offsets.length)
+                                offsets = Arrays.copyOf(offsets, count * 2);
+                            offsets[count++] = mapStart + i + 1;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Returns true if the bytes at the index are <pre>From </pre>.
+     *
+     * @param bytes the bytes to check.
+     * @param index the index of the first byte.
+     * @return true if an e-mail starts at the index, otherwise false.
+     */
+    private static boolean matchesFrom(ByteBuffer bytes, int index) {
+        if (index + FROM.length > bytes.limit())
+            return false;
+        for (int i = 0; i < FROM.length; i++) {
+            if (bytes.get(index + i) != FROM[i])
+                return false;
+        }
+        return true;
+    }
+}
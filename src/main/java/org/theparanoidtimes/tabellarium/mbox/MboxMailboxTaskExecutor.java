@@ -0,0 +1,646 @@
+package org.theparanoidtimes.tabellarium.mbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.BatchEmailHandler;
+import org.theparanoidtimes.tabellarium.api.BatchResult;
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.MailBoxTaskExecutorException;
+import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Tabellarium implementation for mbox files. The file is memory-mapped and
+ * the e-mails are found by scanning it, in parallel, for lines which start
+ * with <pre>From </pre>. Their offsets are kept in an index file next to the
+ * mbox file, so later tasks don't scan the file again, and only scan the
+ * appended part if the file grew.
+ *
+ * Each e-mail is parsed from a slice of the mapping, without its
+ * <pre>From </pre> line, and its content stays in the mapping, so e-mails are
+ * never copied to the heap. Quoted <pre>&gt;From </pre> lines are left as
+ * they are. The flags of an e-mail are read from its <pre>Status</pre> and
+ * <pre>X-Status</pre> headers; e-mails with the D flag in
+ * <pre>X-Status</pre> are treated as DELETED and skipped.
+ *
+ * The mbox file is never modified. Instead of being marked as SEEN, handled
+ * e-mails are recorded in the index, unless <pre>retrieveSeenEmails</pre> is
+ * true, and skipped by later tasks. Deleting e-mails is not supported.
+ *
+ * When <pre>shardCount</pre> is greater then one and <pre>batchSize</pre> is
+ * zero, <pre>{@link #executeForEachEmail(EmailHandler)}</pre> splits the file
+ * into byte ranges of about the same size and handles each range on its own
+ * thread, so the handler must be thread safe.
+ *
+ * @author djosifovic
+ */
+public class MboxMailboxTaskExecutor implements MailboxTaskExecutor {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(MboxMailboxTaskExecutor.class);
+
+    /**
+     * The mbox file.
+     */
+    private final Path mbox;
+
+    /**
+     * The file of the offset index.
+     */
+    private final Path indexFile;
+
+    /**
+     * The session of parsed messages.
+     */
+    private final Session session = Session.getInstance(new Properties());
+
+    /**
+     * Batch size for retrieving e-mails. More specifically the maximum number
+     * of messages that will be retrieved in one run.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Flag marks if e-mails that are marked as seen should also be retrieved.
+     */
+    private boolean retrieveSeenEmails = false;
+
+    /**
+     * The maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * The number of byte ranges which are handled in parallel.
+     */
+    private int shardCount = DEFAULT_SHARD_COUNT;
+
+    /**
+     * The maximum number of threads which scan the file.
+     */
+    private int scanParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * A default batch size - all e-mails.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 0;
+
+    /**
+     * A default chunk size - fifty e-mails.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * A default shard count - a single thread.
+     */
+    private static final int DEFAULT_SHARD_COUNT = 1;
+
+    /**
+     * Constructs a new <pre>{@link MboxMailboxTaskExecutor}</pre> instance for
+     * the given mbox file. The index is kept in a file with the same name and
+     * the <pre>.idx</pre> extension added.
+     *
+     * @param mbox the mbox file.
+     */
+    public MboxMailboxTaskExecutor(Path mbox) {
+        this(mbox, mbox == null ? null : mbox.resolveSibling(mbox.getFileName() + ".idx"));
+    }
+
+    /**
+     * Constructs a new <pre>{@link MboxMailboxTaskExecutor}</pre> instance for
+     * the given mbox file and index file.
+     *
+     * @param mbox      the mbox file.
+     * @param indexFile the file of the offset index.
+     */
+    public MboxMailboxTaskExecutor(Path mbox, Path indexFile) {
+        if (mbox == null)
+            throw new IllegalArgumentException("Mbox file must not be null!");
+        if (indexFile == null)
+            throw new IllegalArgumentException("Index file must not be null!");
+        this.mbox = mbox;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Returns e-mails from the mbox file which were not handled before or all
+     * e-mails if <pre>retrieveSeenEmails</pre> is set to true. The content of
+     * the e-mails stays in the mapping of the file.
+     *
+     * This is designed as a 'batch' task, so for retrieving all e-mails using a
+     * positive batch size the task should be called multiple times.
+     *
+     * @return a list of e-mails from the mbox file.
+     * @throws MailBoxTaskExecutorException if the task can't execute properly.
+     */
+    @Override
+    public List<Message> retrieveEmails() throws MailBoxTaskExecutorException {
+        try {
+            return doMboxTask("RetrieveEmailsMboxTask", (index, window) -> {
+                List<Message> retrievedEmails = new ArrayList<>();
+                for (int i = 0; i < index.size() && !isBatchFull(retrievedEmails.size()); i++) {
+                    Message message = findMessage(index, window, i);
+                    if (message != null) {
+                        retrievedEmails.add(message);
+                        emailHandled(index, i);
+                    }
+                }
+                return retrievedEmails;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while retrieving e-mail from the mbox file.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Returns true if there are more e-mails in the mbox file, otherwise
+     * false. If <pre>retrieveSeenEmails</pre> is set to true this task will
+     * count those mails to.
+     *
+     * @return true if there are more e-mails in the mbox file, otherwise false.
+     * @throws MailBoxTaskExecutorException if the task can't execute properly.
+     */
+    @Override
+    public boolean areThereRemainingEmails() throws MailBoxTaskExecutorException {
+        try {
+            return doMboxTask("AreThereRemainingEmailsMboxTask", (index, window) -> {
+                for (int i = 0; i < index.size(); i++) {
+                    if (findMessage(index, window, i) != null)
+                        return true;
+                }
+                return false;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while getting remaining e-mails number.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Executes a passed <pre>EmailHandler</pre> method on each e-mail in the
+     * mbox file, in file order unless the file is split into shards. An
+     * e-mail whose handling failed is not recorded as handled.
+     *
+     * @param emailHandler handler for each e-mail.
+     * @throws MailBoxTaskExecutorException if some error happened during
+     *                                      execution.
+     */
+    @Override
+    public void executeForEachEmail(final EmailHandler emailHandler) throws MailBoxTaskExecutorException {
+        try {
+            doMboxTask("ExecuteForEachEmailMboxTask", (index, window) -> {
+                int shards = batchSize == 0 ? Math.min(shardCount, index.size()) : 1;
+                if (shards <= 1) {
+                    handleRange(index, window, 0, index.size(), emailHandler);
+                    return null;
+                }
+                handleSharded(index, window, shards, emailHandler);
+                return null;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while executing task in mbox file.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The handler is invoked on chunks of up to <pre>chunkSize</pre> e-mails,
+     * in file order. Handled e-mails of a chunk are recorded in the index once
+     * the handler returns.
+     *
+     * @param batchEmailHandler handler for each chunk of e-mails.
+     * @throws MailBoxTaskExecutorException if some error happened during
+     *                                      execution.
+     */
+    @Override
+    public void executeForEachBatch(final BatchEmailHandler batchEmailHandler) throws MailBoxTaskExecutorException {
+        try {
+            doMboxTask("ExecuteForEachBatchMboxTask", (index, window) -> {
+                int found = 0;
+                int i = 0;
+                while (i < index.size() && !isBatchFull(found)) {
+                    List<Integer> chunkIndexes = new ArrayList<>();
+                    List<Message> chunk = new ArrayList<>();
+                    for (; i < index.size() && chunk.size() < chunkSize && !isBatchFull(found); i++) {
+                        Message message = findMessage(index, window, i);
+                        if (message != null) {
+                            chunkIndexes.add(i);
+                            chunk.add(message);
+                            found++;
+                        }
+                    }
+                    if (chunk.isEmpty())
+                        continue;
+                    BatchResult result;
+                    try {
+                        result = batchEmailHandler.handleEmails(chunk);
+                    } catch (Exception e) {
+                        LOG.error("Error happened while handling e-mail chunk starting at {}!", chunkIndexes.get(0), e);
+                        continue;
+                    }
+                    for (int j = 0; j < chunkIndexes.size(); j++) {
+                        if (result.isFailed(j))
+                            LOG.error("Handling of e-mail message {} failed!", chunkIndexes.get(j));
+                        else
+                            emailHandled(index, chunkIndexes.get(j));
+                    }
+                }
+                return null;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while executing task in mbox file.", ex);
+        }
+    }
+
+    /**
+     * Invokes the handler on each e-mail of the range which is not skipped, up
+     * to <pre>batchSize</pre> e-mails.
+     *
+     * @param index        the index of the mbox file.
+     * @param window       the window of the calling thread.
+     * @param from         the index of the first e-mail.
+     * @param to           the index after the last e-mail.
+     * @param emailHandler handler for each e-mail.
+     * @throws IOException        if the file can't be mapped.
+     * @throws MessagingException if an e-mail can't be parsed.
+     */
+    private void handleRange(MboxIndex index, MappedWindow window, int from, int to, EmailHandler emailHandler) throws IOException, MessagingException {
+        int found = 0;
+        for (int i = from; i < to && !isBatchFull(found); i++) {
+            Message message = findMessage(index, window, i);
+            if (message == null)
+                continue;
+            found++;
+            try {
+                emailHandler.handleEmail(message);
+            } catch (Exception e) {
+                LOG.error("Error happened while handling e-mail message {}!", i, e);
+                continue;
+            }
+            emailHandled(index, i);
+        }
+    }
+
+    /**
+     * Splits the e-mails into byte ranges of about the same size and handles
+     * each range on its own thread. The first range is handled on the calling
+     * thread.
+     *
+     * @param index        the index of the mbox file.
+     * @param window       the window of the calling thread.
+     * @param shards       the number of ranges.
+     * @param emailHandler handler for each e-mail.
+     * @throws Exception if some range fails.
+     */
+    private void handleSharded(MboxIndex index, MappedWindow window, int shards, EmailHandler emailHandler) throws Exception {
+        long fileSize = index.getEnd(index.size() - 1);
+        int[] bounds = new int[shards + 1];
+        for (int shard = 1; shard < shards; shard++)
+            bounds[shard] = Math.max(bounds[shard - 1], index.indexAt(fileSize * shard / shards));
+        bounds[shards] = index.size();
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService shardExecutor = Executors.newFixedThreadPool(shards - 1, runnable -> {
+            Thread thread = new Thread(runnable, "tabellarium-mbox-shard-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int shard = 1; shard < shards; shard++) {
+                int from = bounds[shard];
+                int to = bounds[shard + 1];
+                results.add(shardExecutor.submit(() -> {
+                    try (FileChannel channel = FileChannel.open(mbox, StandardOpenOption.READ)) {
+                        handleRange(index, new MappedWindow(channel, channel.size()), from, to, emailHandler);
+                    }
+                    return null;
+                }));
+            }
+            handleRange(index, window, bounds[0], bounds[1], emailHandler);
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            shardExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the e-mail unless it should be skipped because it was handled,
+     * or it has the R flag in its <pre>Status</pre> header, and
+     * <pre>retrieveSeenEmails</pre> is false, or it has the D flag in its
+     * <pre>X-Status</pre> header.
+     *
+     * @param index  the index of the mbox file.
+     * @param window the window of the calling thread.
+     * @param i      the index of the e-mail.
+     * @return the e-mail or null if it is skipped.
+     * @throws IOException        if the file can't be mapped.
+     * @throws MessagingException if the e-mail can't be parsed.
+     */
+    private Message findMessage(MboxIndex index, MappedWindow window, int i) throws IOException, MessagingException {
+        if (!retrieveSeenEmails && index.isHandled(i)) {
+            LOG.trace("Skipping message {} because it was handled.", i);
+            return null;
+        }
+        Message message = readMessage(window, index.getStart(i), index.getEnd(i));
+        if (message.isSet(Flags.Flag.DELETED) || (!retrieveSeenEmails && message.isSet(Flags.Flag.SEEN))) {
+            LOG.trace("Skipping message {} because it is marked as DELETED or SEEN and retrieveSeenEmails is false!", i);
+            return null;
+        }
+        return message;
+    }
+
+    /**
+     * Parses the e-mail from a slice of the mapping, without its
+     * <pre>From </pre> line, and sets its flags from its headers.
+     *
+     * @param window the window of the calling thread.
+     * @param start  the file position of the e-mail.
+     * @param end    the file position after the e-mail.
+     * @return the e-mail.
+     * @throws IOException        if the file can't be mapped.
+     * @throws MessagingException if the e-mail can't be parsed.
+     */
+    private Message readMessage(MappedWindow window, long start, long end) throws IOException, MessagingException {
+        ByteBuffer bytes = window.slice(start, end);
+        int position = bytes.position();
+        while (position < bytes.limit() && bytes.get(position) != '\n')
+            position++;
+        bytes.position(Math.min(position + 1, bytes.limit()));
+        MimeMessage message = new MimeMessage(session, new MappedSliceInputStream(bytes));
+        message.setFlags(getFlags(message), true);
+        return message;
+    }
+
+    /**
+     * Returns the flags of the e-mail from its headers: R in
+     * <pre>Status</pre> is SEEN, and A, F, T and D in <pre>X-Status</pre> are
+     * ANSWERED, FLAGGED, DRAFT and DELETED.
+     *
+     * @param message the e-mail.
+     * @return the flags of the e-mail.
+     * @throws MessagingException if the headers can't be read.
+     */
+    private Flags getFlags(MimeMessage message) throws MessagingException {
+        Flags flags = new Flags();
+        String status = message.getHeader("Status", null);
+        if (status != null && status.indexOf('R') >= 0)
+            flags.add(Flags.Flag.SEEN);
+        String extendedStatus = message.getHeader("X-Status", null);
+        if (extendedStatus != null) {
+            if (extendedStatus.indexOf('A') >= 0)
+                flags.add(Flags.Flag.ANSWERED);
+            if (extendedStatus.indexOf('F') >= 0)
+                flags.add(Flags.Flag.FLAGGED);
+            if (extendedStatus.indexOf('T') >= 0)
+                flags.add(Flags.Flag.DRAFT);
+            if (extendedStatus.indexOf('D') >= 0)
+                flags.add(Flags.Flag.DELETED);
+        }
+        return flags;
+    }
+
+    /**
+     * Records the handled e-mail in the index, unless
+     * <pre>retrieveSeenEmails</pre> is true.
+     *
+     * @param index the index of the mbox file.
+     * @param i     the index of the e-mail.
+     */
+    private void emailHandled(MboxIndex index, int i) {
+        if (!retrieveSeenEmails) {
+            LOG.trace("Recording message {} as handled.", i);
+            index.setHandled(i);
+        }
+    }
+
+    /**
+     * Returns true if the number of found e-mails reached
+     * <pre>batchSize</pre>.
+     *
+     * @param found the number of found e-mails.
+     * @return true if no more e-mails should be processed, otherwise false.
+     */
+    private boolean isBatchFull(int found) {
+        return batchSize > 0 && found >= batchSize;
+    }
+
+    /**
+     * The common skeleton for all tasks. Opens and maps the mbox file, opens
+     * the index and saves it after the task if it changed, even if the task
+     * failed, so handled e-mails are not handled again.
+     *
+     * @param taskName the name of the task.
+     * @param task     task to execute.
+     * @param <T>      return type of the task.
+     * @return the result of task execution.
+     * @throws Exception if the file can't be read or the task fails.
+     */
+    private <T> T doMboxTask(String taskName, MboxTask<T> task) throws Exception {
+        long start = System.nanoTime();
+        LOG.trace("Starting {} with retrieveSeenEmails set to {}.", taskName, retrieveSeenEmails);
+        MboxIndex index = null;
+        try (FileChannel channel = FileChannel.open(mbox, StandardOpenOption.READ)) {
+            index = MboxIndex.open(mbox, channel, indexFile, scanParallelism);
+            T result = task.run(index, new MappedWindow(channel, channel.size()));
+            LOG.info("Finished task {}, with result {} in {} ms", taskName, result, (System.nanoTime() - start) / 1_000_000);
+            return result;
+        } catch (Exception e) {
+            LOG.error("Error happened while executing task {}!", taskName, e);
+            throw e;
+        } finally {
+            if (index != null && index.isChanged())
+                index.save(indexFile);
+        }
+    }
+
+    /**
+     * A task over the indexed mbox file.
+     *
+     * @param <T> the result type of the task.
+     */
+    private interface MboxTask<T> {
+
+        /**
+         * Runs the task.
+         *
+         * @param index  the index of the mbox file.
+         * @param window the window of the calling thread.
+         * @return the result of the task.
+         * @throws Exception if the task fails.
+         */
+        T run(MboxIndex index, MappedWindow window) throws Exception;
+    }
+
+    /**
+     * Returns the mbox file.
+     *
+     * @return the mbox file.
+     */
+    public final Path getMbox() {
+        return mbox;
+    }
+
+    /**
+     * Returns the file of the offset index.
+     *
+     * @return the index file.
+     */
+    public final Path getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Returns the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @return the chunk size.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @param chunkSize the chunk size to set.
+     * @throws IllegalArgumentException if chunk size is not positive.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive!");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the number of byte ranges which are handled in parallel.
+     *
+     * @return the shard count.
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Sets the number of byte ranges which are handled in parallel by
+     * <pre>{@link #executeForEachEmail(EmailHandler)}</pre> when
+     * <pre>batchSize</pre> is zero.
+     *
+     * @param shardCount the shard count to set.
+     * @throws IllegalArgumentException if shard count is not positive.
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount <= 0)
+            throw new IllegalArgumentException("Shard count must be positive!");
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Returns the maximum number of threads which scan the file.
+     *
+     * @return the scan parallelism.
+     */
+    public int getScanParallelism() {
+        return scanParallelism;
+    }
+
+    /**
+     * Sets the maximum number of threads which scan the file. Parts of the
+     * file smaller then 16 MB are not split further.
+     *
+     * @param scanParallelism the scan parallelism to set.
+     * @throws IllegalArgumentException if scan parallelism is not positive.
+     */
+    public void setScanParallelism(int scanParallelism) {
+        if (scanParallelism <= 0)
+            throw new IllegalArgumentException("Scan parallelism must be positive!");
+        this.scanParallelism = scanParallelism;
+    }
+
+    /**
+     * Returns the batch size.
+     *
+     * @return the batch size.
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns true if seen e-mails are also retrieved.
+     *
+     * @return the retrieve seen e-mails flag.
+     */
+    public final boolean isRetrieveSeenEmails() {
+        return retrieveSeenEmails;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Zero size batch means all e-mails in the mbox file.
+     *
+     * @throws IllegalArgumentException if batch size is less then 0.
+     */
+    @Override
+    public final void setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("Batch size must be either zero or positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The mbox file is never modified, so only false is supported.
+     *
+     * @param deleteAfterRetrieval boolean to set.
+     * @throws UnsupportedOperationException if deleteAfterRetrieval is true.
+     */
+    @Override
+    public final void setDeleteAfterRetrieval(boolean deleteAfterRetrieval) {
+        if (deleteAfterRetrieval)
+            throw new UnsupportedOperationException("Deleting e-mails from an mbox file is not supported!");
+    }
+
+    /**
+     * {@inheritDoc}
+     * Sets the
+     * <pre>retrieveSeenEmails</pre> flag.
+     *
+     * @param retrieveSeenEmails boolean to set.
+     */
+    @Override
+    public final void setRetrieveSeenEmails(boolean retrieveSeenEmails) {
+        this.retrieveSeenEmails = retrieveSeenEmails;
+    }
+}
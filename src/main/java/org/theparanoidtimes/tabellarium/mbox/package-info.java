@@ -0,0 +1,4 @@
+/**
+ * Tabellarium mbox implementation package.
+ */
+package org.theparanoidtimes.tabellarium.mbox;
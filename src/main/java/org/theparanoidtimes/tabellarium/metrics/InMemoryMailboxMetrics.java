@@ -0,0 +1,150 @@
+package org.theparanoidtimes.tabellarium.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A <pre>{@link MailboxMetrics}</pre> implementation which keeps all
+ * measurements in memory, latencies in <pre>{@link LatencyHistogram}</pre>s
+ * and message outcomes and bytes in counters. Measurements can be read at any
+ * time, for example to be exported by a scraper.
+ *
+ * @author djosifovic
+ */
+public class InMemoryMailboxMetrics implements MailboxMetrics {
+
+    /**
+     * Measurements by their tags.
+     */
+    private final Map<MetricTags, Measurements> measurements = new ConcurrentHashMap<>();
+
+    /**
+     * The last recorded number of waiting scheduled polls.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    @Override
+    public void recordLatency(String taskName, String folderName, TaskPhase phase, long durationNanos) {
+        measurementsFor(taskName, folderName).latencies.get(phase).record(durationNanos);
+    }
+
+    @Override
+    public void recordMessage(String taskName, String folderName, MessageOutcome outcome) {
+        measurementsFor(taskName, folderName).outcomes.get(outcome).increment();
+    }
+
+    @Override
+    public void recordBytes(String taskName, String folderName, long bytes) {
+        measurementsFor(taskName, folderName).bytes.add(bytes);
+    }
+
+    @Override
+    public void recordQueueDepth(int queueDepth) {
+        this.queueDepth.set(queueDepth);
+    }
+
+    /**
+     * Returns the tags of all recorded measurements.
+     *
+     * @return an unmodifiable view of the tags.
+     */
+    public Set<MetricTags> getTags() {
+        return Collections.unmodifiableSet(measurements.keySet());
+    }
+
+    /**
+     * Returns the latency histogram of the phase.
+     *
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     * @param phase      the phase.
+     * @return the histogram, empty if nothing was recorded.
+     */
+    public LatencyHistogram getLatency(String taskName, String folderName, TaskPhase phase) {
+        Measurements found = measurements.get(new MetricTags(taskName, folderName));
+        return found == null ? new LatencyHistogram() : found.latencies.get(phase);
+    }
+
+    /**
+     * Returns the number of messages with the outcome.
+     *
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     * @param outcome    the outcome.
+     * @return the number of messages.
+     */
+    public long getMessageCount(String taskName, String folderName, MessageOutcome outcome) {
+        Measurements found = measurements.get(new MetricTags(taskName, folderName));
+        return found == null ? 0 : found.outcomes.get(outcome).sum();
+    }
+
+    /**
+     * Returns the number of bytes of retrieved and handled messages.
+     *
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     * @return the number of bytes.
+     */
+    public long getBytes(String taskName, String folderName) {
+        Measurements found = measurements.get(new MetricTags(taskName, folderName));
+        return found == null ? 0 : found.bytes.sum();
+    }
+
+    /**
+     * Returns the last recorded number of scheduled polls which are due but
+     * not started yet.
+     *
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the measurements with the tags, creating them if needed.
+     *
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     * @return the measurements.
+     */
+    private Measurements measurementsFor(String taskName, String folderName) {
+        return measurements.computeIfAbsent(new MetricTags(taskName, folderName), tags -> new Measurements());
+    }
+
+    /**
+     * All measurements with the same tags.
+     */
+    private static final class Measurements {
+
+        /**
+         * Latencies by phase.
+         */
+        private final Map<TaskPhase, LatencyHistogram> latencies = new EnumMap<>(TaskPhase.class);
+
+        /**
+         * Message counts by outcome.
+         */
+        private final Map<MessageOutcome, LongAdder> outcomes = new EnumMap<>(MessageOutcome.class);
+
+        /**
+         * Bytes of retrieved and handled messages.
+         */
+        private final LongAdder bytes = new LongAdder();
+
+        /**
+         * Creates empty measurements for all phases and outcomes, so the maps
+         * are never modified afterwards.
+         */
+        private Measurements() {
+            for (TaskPhase phase : TaskPhase.values())
+                latencies.put(phase, new LatencyHistogram());
+            for (MessageOutcome outcome : MessageOutcome.values())
+                outcomes.put(outcome, new LongAdder());
+        }
+    }
+}
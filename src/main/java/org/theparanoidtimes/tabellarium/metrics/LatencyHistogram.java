@@ -0,0 +1,167 @@
+package org.theparanoidtimes.tabellarium.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe histogram of latencies in nanoseconds. Values are counted in
+ * log-linear buckets, in the manner of HdrHistogram: every power of two range
+ * is split into <pre>SUB_BUCKETS</pre> linear buckets, so percentiles are
+ * reported with a relative error of less then two percent while the memory
+ * use stays fixed.
+ *
+ * @author djosifovic
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of linear buckets in each power of two range.
+     */
+    private static final int SUB_BUCKETS = 64;
+
+    /**
+     * The number of bits needed for <pre>SUB_BUCKETS</pre>.
+     */
+    private static final int SUB_BUCKET_BITS = 6;
+
+    /**
+     * Values below this are counted exactly.
+     */
+    private static final int EXACT_VALUES = 2 * SUB_BUCKETS;
+
+    /**
+     * The number of buckets needed for all positive long values.
+     */
+    private static final int BUCKETS = EXACT_VALUES + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    /**
+     * Counts of values in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of recorded values.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The sum of recorded values.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * The largest recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param nanos the value in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until the larger value is stored
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the largest recorded value in nanoseconds.
+     *
+     * @return the largest value or zero if nothing is recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of recorded values in nanoseconds.
+     *
+     * @return the mean or zero if nothing is recorded.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the value, in nanoseconds, below or at which the passed
+     * percentage of recorded values lies. The value is the upper bound of the
+     * bucket, capped by the largest recorded value.
+     *
+     * @param percentile the percentile between 0 and 100.
+     * @return the value at the percentile or zero if nothing is recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100!");
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the bucket of the value.
+     *
+     * @param value a value which is zero or positive.
+     * @return the index of the bucket.
+     */
+    private static int bucketOf(long value) {
+        if (value < EXACT_VALUES)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return EXACT_VALUES + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the largest value counted in the bucket.
+     *
+     * @param bucket the index of the bucket.
+     * @return the upper bound of the bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < EXACT_VALUES)
+            return bucket;
+        int shift = (bucket - EXACT_VALUES) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - EXACT_VALUES) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount()
+                + ", mean=" + TimeUnit.NANOSECONDS.toMicros((long) getMean()) + "us"
+                + ", p50=" + TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(50)) + "us"
+                + ", p99=" + TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99)) + "us"
+                + ", max=" + TimeUnit.NANOSECONDS.toMicros(getMax()) + "us}";
+    }
+}
@@ -0,0 +1,52 @@
+package org.theparanoidtimes.tabellarium.metrics;
+
+/**
+ * Receives measurements of mailbox tasks. Every measurement is tagged with the
+ * name of the task and the mailbox folder it was executed in.
+ *
+ * Implementations must be thread safe since measurements are recorded from
+ * connection and handler threads concurrently, and should be cheap since they
+ * are called for every message.
+ *
+ * @author djosifovic
+ */
+public interface MailboxMetrics {
+
+    /**
+     * Records the duration of a task phase.
+     *
+     * @param taskName      the name of the task.
+     * @param folderName    the name of the folder.
+     * @param phase         the measured phase.
+     * @param durationNanos the duration in nanoseconds.
+     */
+    void recordLatency(String taskName, String folderName, TaskPhase phase, long durationNanos);
+
+    /**
+     * Records the outcome of processing a single message.
+     *
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     * @param outcome    the outcome.
+     */
+    void recordMessage(String taskName, String folderName, MessageOutcome outcome);
+
+    /**
+     * Records the size of a message that was retrieved or handled, as
+     * reported by the server.
+     *
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     * @param bytes      the number of bytes.
+     */
+    void recordBytes(String taskName, String folderName, long bytes);
+
+    /**
+     * Records the number of scheduled polls which are due but not started yet.
+     * Does nothing by default.
+     *
+     * @param queueDepth the number of waiting polls.
+     */
+    default void recordQueueDepth(int queueDepth) {
+    }
+}
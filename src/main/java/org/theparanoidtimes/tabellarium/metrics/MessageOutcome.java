@@ -0,0 +1,24 @@
+package org.theparanoidtimes.tabellarium.metrics;
+
+/**
+ * The outcomes of processing a single message.
+ *
+ * @author djosifovic
+ */
+public enum MessageOutcome {
+
+    /**
+     * The message was retrieved or handled successfully.
+     */
+    PROCESSED,
+
+    /**
+     * The message was skipped because of its flags.
+     */
+    SKIPPED,
+
+    /**
+     * Handling of the message failed.
+     */
+    FAILED
+}
@@ -0,0 +1,68 @@
+package org.theparanoidtimes.tabellarium.metrics;
+
+import java.util.Objects;
+
+/**
+ * The tags of a measurement - the task name and the folder name.
+ *
+ * @author djosifovic
+ */
+public final class MetricTags {
+
+    /**
+     * The name of the task.
+     */
+    private final String taskName;
+
+    /**
+     * The name of the folder.
+     */
+    private final String folderName;
+
+    /**
+     * Constructs new tags.
+     *
+     * @param taskName   the name of the task.
+     * @param folderName the name of the folder.
+     */
+    public MetricTags(String taskName, String folderName) {
+        this.taskName = taskName;
+        this.folderName = folderName;
+    }
+
+    /**
+     * Returns the name of the task.
+     *
+     * @return the task name.
+     */
+    public String getTaskName() {
+        return taskName;
+    }
+
+    /**
+     * Returns the name of the folder.
+     *
+     * @return the folder name.
+     */
+    public String getFolderName() {
+        return folderName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MetricTags that = (MetricTags) o;
+        return Objects.equals(taskName, that.taskName) && Objects.equals(folderName, that.folderName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(taskName, folderName);
+    }
+
+    @Override
+    public String toString() {
+        return "MetricTags{taskName=" + taskName + ", folderName=" + folderName + '}';
+    }
+}
@@ -0,0 +1,33 @@
+package org.theparanoidtimes.tabellarium.metrics;
+
+/**
+ * A <pre>{@link MailboxMetrics}</pre> implementation that discards all
+ * measurements.
+ *
+ * @author djosifovic
+ */
+public final class NoopMailboxMetrics implements MailboxMetrics {
+
+    /**
+     * The single instance.
+     */
+    public static final NoopMailboxMetrics INSTANCE = new NoopMailboxMetrics();
+
+    /**
+     * Use <pre>{@link #INSTANCE}</pre>.
+     */
+    private NoopMailboxMetrics() {
+    }
+
+    @Override
+    public void recordLatency(String taskName, String folderName, TaskPhase phase, long durationNanos) {
+    }
+
+    @Override
+    public void recordMessage(String taskName, String folderName, MessageOutcome outcome) {
+    }
+
+    @Override
+    public void recordBytes(String taskName, String folderName, long bytes) {
+    }
+}
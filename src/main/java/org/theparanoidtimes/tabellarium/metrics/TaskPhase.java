@@ -0,0 +1,46 @@
+package org.theparanoidtimes.tabellarium.metrics;
+
+/**
+ * The phases of a mailbox task whose latency is recorded.
+ *
+ * @author djosifovic
+ */
+public enum TaskPhase {
+
+    /**
+     * Connecting and authenticating to the mailbox.
+     */
+    CONNECT,
+
+    /**
+     * Opening the mailbox folder.
+     */
+    FOLDER_OPEN,
+
+    /**
+     * Searching the folder for messages to process.
+     */
+    SEARCH,
+
+    /**
+     * Fetching message data from the server, either a prefetched chunk or a
+     * single message copy.
+     */
+    FETCH,
+
+    /**
+     * Invoking the handler on a single e-mail or a chunk of e-mails.
+     */
+    HANDLE,
+
+    /**
+     * The whole task.
+     */
+    TASK,
+
+    /**
+     * The time a scheduled poll waited, after it was due, for a free thread or
+     * a free slot of its host.
+     */
+    POLL_LAG
+}
@@ -0,0 +1,4 @@
+/**
+ * Tabellarium metrics package.
+ */
+package org.theparanoidtimes.tabellarium.metrics;
@@ -0,0 +1,28 @@
+package org.theparanoidtimes.tabellarium.pop3;
+
+/**
+ * When POP3 commands are pipelined as described by RFC 2449. Pipelined
+ * commands are sent without waiting for the responses to the previous ones,
+ * so retrieving and deleting e-mails costs no round trip per command.
+ *
+ * @author djosifovic
+ */
+public enum PipeliningMode {
+
+    /**
+     * Commands are pipelined if the server lists PIPELINING in its response
+     * to CAPA.
+     */
+    AUTO,
+
+    /**
+     * Commands are always pipelined, for servers which read commands in order
+     * but don't support CAPA.
+     */
+    ALWAYS,
+
+    /**
+     * Each command waits for the response to the previous one.
+     */
+    NEVER
+}
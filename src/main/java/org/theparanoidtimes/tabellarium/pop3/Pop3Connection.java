@@ -0,0 +1,259 @@
+package org.theparanoidtimes.tabellarium.pop3;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A connection to a POP3 server. Commands are buffered until they are
+ * flushed, so several commands can be sent in one write when the server
+ * supports pipelining.
+ *
+ * @author djosifovic
+ */
+final class Pop3Connection implements AutoCloseable {
+
+    /**
+     * The socket of the connection.
+     */
+    private final Socket socket;
+
+    /**
+     * The stream of server responses.
+     */
+    private final InputStream in;
+
+    /**
+     * The stream of client commands.
+     */
+    private final OutputStream out;
+
+    /**
+     * The buffer of server responses.
+     */
+    private final byte[] buffer = new byte[64 * 1024];
+
+    /**
+     * The position of the next unread byte in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * The number of bytes in the buffer.
+     */
+    private int limit = 0;
+
+    /**
+     * Opens a connection and reads the greeting of the server.
+     *
+     * @param host    the host of the server.
+     * @param port    the port of the server.
+     * @param secure  true to connect over SSL.
+     * @param timeout the connection and read timeout in milliseconds, or -1
+     *                for no timeout.
+     * @throws IOException if the connection can't be established or the
+     *                     server rejects it.
+     */
+    Pop3Connection(String host, int port, boolean secure, int timeout) throws IOException {
+        SocketFactory socketFactory = secure ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+        this.socket = socketFactory.createSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), Math.max(timeout, 0));
+            socket.setSoTimeout(Math.max(timeout, 0));
+            this.in = socket.getInputStream();
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            readStatus();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the command and returns the text of its positive response.
+     *
+     * @param command the command to send.
+     * @return the text after <pre>+OK</pre>.
+     * @throws IOException if the command can't be sent or the server responds
+     *                     with <pre>-ERR</pre>.
+     */
+    String command(String command) throws IOException {
+        send(command);
+        flush();
+        return readStatus();
+    }
+
+    /**
+     * Buffers the command without sending it.
+     *
+     * @param command the command to send.
+     * @throws IOException if the buffer can't be written.
+     */
+    void send(String command) throws IOException {
+        out.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Sends the buffered commands.
+     *
+     * @throws IOException if the commands can't be sent.
+     */
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Reads a status line.
+     *
+     * @return the text after <pre>+OK</pre>.
+     * @throws IOException if the response can't be read or is
+     *                     <pre>-ERR</pre>.
+     */
+    String readStatus() throws IOException {
+        String line = new String(readLine(), StandardCharsets.US_ASCII).trim();
+        if (line.startsWith("+OK"))
+            return line.substring(3).trim();
+        throw new Pop3Exception(line);
+    }
+
+    /**
+     * Reads the lines of a multi-line response, after its status line.
+     *
+     * @return the lines without line terminators.
+     * @throws IOException if the response can't be read.
+     */
+    List<String> readLines() throws IOException {
+        List<String> lines = new ArrayList<>();
+        byte[] line;
+        while ((line = readDataLine()) != null)
+            lines.add(new String(line, StandardCharsets.US_ASCII).trim());
+        return lines;
+    }
+
+    /**
+     * Reads the content of a multi-line response, after its status line. Dot
+     * stuffing is removed and line terminators are kept.
+     *
+     * @return the content of the response.
+     * @throws IOException if the response can't be read.
+     */
+    byte[] readContent() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(8192);
+        byte[] line;
+        while ((line = readDataLine()) != null)
+            content.write(line, 0, line.length);
+        return content.toByteArray();
+    }
+
+    /**
+     * Sends QUIT, which makes the server delete the messages marked with
+     * DELE, and closes the connection.
+     *
+     * @throws IOException if the server fails to delete the messages.
+     */
+    void quit() throws IOException {
+        try {
+            command("QUIT");
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection without QUIT, so the server deletes no messages.
+     *
+     * @throws IOException if the socket can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Reads a line of a multi-line response with its terminator and dot
+     * stuffing removed.
+     *
+     * @return the line or null at the end of the response.
+     * @throws IOException if the line can't be read.
+     */
+    private byte[] readDataLine() throws IOException {
+        byte[] line = readLine();
+        int length = line.length;
+        if (length > 0 && line[length - 1] == '\n')
+            length--;
+        if (length > 0 && line[length - 1] == '\r')
+            length--;
+        if (line.length > 0 && line[0] == '.') {
+            if (length == 1)
+                return null;
+            byte[] unstuffed = new byte[line.length - 1];
+            System.arraycopy(line, 1, unstuffed, 0, unstuffed.length);
+            return unstuffed;
+        }
+        return line;
+    }
+
+    /**
+     * Reads a line with its terminator.
+     *
+     * @return the line.
+     * @throws IOException if the line can't be read or the connection is
+     *                     closed.
+     */
+    private byte[] readLine() throws IOException {
+        ByteArrayOutputStream line = null;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit < 0) {
+                    limit = 0;
+                    throw new IOException("POP3 server closed the connection.");
+                }
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n')
+                position++;
+            boolean complete = position < limit;
+            if (complete)
+                position++;
+            if (complete && line == null)
+                return Arrays.copyOfRange(buffer, start, position);
+            if (line == null)
+                line = new ByteArrayOutputStream(256);
+            line.write(buffer, start, position - start);
+            if (complete)
+                return line.toByteArray();
+        }
+    }
+
+    /**
+     * A negative response of the server.
+     */
+    static final class Pop3Exception extends IOException {
+
+        /**
+         * Serialization version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs a new exception.
+         *
+         * @param response the response of the server.
+         */
+        Pop3Exception(String response) {
+            super("POP3 server responded with '" + response + "'.");
+        }
+    }
+}
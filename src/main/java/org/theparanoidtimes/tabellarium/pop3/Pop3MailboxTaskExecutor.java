@@ -0,0 +1,786 @@
+package org.theparanoidtimes.tabellarium.pop3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.BatchEmailHandler;
+import org.theparanoidtimes.tabellarium.api.BatchResult;
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.MailBoxTaskExecutorException;
+import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+import org.theparanoidtimes.tabellarium.handlers.SeenMessageStore;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Tabellarium implementation for POP3(S) mailboxes. POP3 has no flags, so
+ * e-mails are identified by their UIDL and an e-mail is seen once its UIDL is
+ * recorded. UIDLs are kept in the <pre>seenUidlStore</pre> if it is set,
+ * otherwise in memory for the lifetime of the executor. The server must
+ * support UIDL.
+ *
+ * RETR and DELE commands are pipelined, up to <pre>pipeliningWindow</pre>
+ * retrievals ahead of the handled e-mail, when the server supports
+ * PIPELINING or <pre>pipeliningMode</pre> is <pre>ALWAYS</pre>. E-mails
+ * marked with DELE are deleted by the server only when the task succeeds; if
+ * it fails, the session ends without QUIT and no e-mail is deleted. UIDLs of
+ * handled e-mails are recorded when the session ends either way.
+ *
+ * @author djosifovic
+ */
+public class Pop3MailboxTaskExecutor implements MailboxTaskExecutor {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(Pop3MailboxTaskExecutor.class);
+
+    /**
+     * Mailbox host address.
+     */
+    private final String pop3HostAddress;
+
+    /**
+     * Mailbox username.
+     */
+    private final String username;
+
+    /**
+     * Mailbox password.
+     */
+    private final String password;
+
+    /**
+     * The session of parsed messages.
+     */
+    private final Session session = Session.getInstance(new Properties());
+
+    /**
+     * UIDLs of seen e-mails when <pre>seenUidlStore</pre> is not set.
+     */
+    private final Set<String> seenUidls = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Batch size for retrieving e-mails. More specifically the maximum number
+     * of messages that will be retrieved in one run.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Flag marks if e-mails should be deleted after retrieval.
+     */
+    private boolean deleteAfterRetrieval = false;
+
+    /**
+     * Flag marks if e-mails that are seen should also be retrieved.
+     */
+    private boolean retrieveSeenEmails = false;
+
+    /**
+     * The connection timeout for connecting to the mailbox.
+     */
+    private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+
+    /**
+     * The port number on which to connect to. When null defaults to POP3(S)
+     * port number.
+     */
+    private Integer port = null;
+
+    /**
+     * A flag indicating if POP3 or POP3S protocol should be used.
+     * Default is true which means POP3S.
+     */
+    private boolean secure = true;
+
+    /**
+     * When commands are pipelined.
+     */
+    private PipeliningMode pipeliningMode = PipeliningMode.AUTO;
+
+    /**
+     * The maximum number of retrievals sent ahead of the handled e-mail when
+     * commands are pipelined.
+     */
+    private int pipeliningWindow = DEFAULT_PIPELINING_WINDOW;
+
+    /**
+     * The maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * The store of seen UIDLs or null.
+     */
+    private SeenMessageStore seenUidlStore = null;
+
+    /**
+     * A default connection timeout - infinite timeout.
+     */
+    private static final int DEFAULT_CONNECTION_TIMEOUT = -1;
+
+    /**
+     * A default pipelining window - sixteen retrievals.
+     */
+    private static final int DEFAULT_PIPELINING_WINDOW = 16;
+
+    /**
+     * A default chunk size - fifty e-mails.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * A default batch size - all e-mails.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 0;
+
+    /**
+     * The POP3 port.
+     */
+    private static final int POP3_PORT = 110;
+
+    /**
+     * The POP3S port.
+     */
+    private static final int POP3S_PORT = 995;
+
+    /**
+     * Constructs a new <pre>{@link Pop3MailboxTaskExecutor}</pre> instance
+     * with specified host address, username and password.
+     *
+     * @param pop3HostAddress the host address of the mailbox.
+     * @param username        the username for the mailbox.
+     * @param password        the password for the mailbox.
+     */
+    public Pop3MailboxTaskExecutor(String pop3HostAddress, String username, String password) {
+        this.pop3HostAddress = pop3HostAddress;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Constructs a new <pre>{@link Pop3MailboxTaskExecutor}</pre> instance
+     * with specified host address, port, username and password.
+     *
+     * @param pop3HostAddress the host address of the mailbox.
+     * @param port            the port on which to connect.
+     * @param username        the username for the mailbox.
+     * @param password        the password for the mailbox.
+     */
+    public Pop3MailboxTaskExecutor(String pop3HostAddress, Integer port, String username, String password) {
+        this(pop3HostAddress, username, password);
+        this.port = port;
+    }
+
+    /**
+     * Constructs a new <pre>{@link Pop3MailboxTaskExecutor}</pre> instance
+     * with specified host address, username, password and secure flag.
+     *
+     * @param pop3HostAddress the host address of the mailbox.
+     * @param username        the username for the mailbox.
+     * @param password        the password for the mailbox.
+     * @param secure          true for POP3S, false for POP3.
+     */
+    public Pop3MailboxTaskExecutor(String pop3HostAddress, String username, String password, boolean secure) {
+        this(pop3HostAddress, username, password);
+        this.secure = secure;
+    }
+
+    /**
+     * Constructs a new <pre>{@link Pop3MailboxTaskExecutor}</pre> instance
+     * with specified host address, port, username, password and secure flag.
+     *
+     * @param pop3HostAddress the host address of the mailbox.
+     * @param port            the port on which to connect.
+     * @param username        the username for the mailbox.
+     * @param password        the password for the mailbox.
+     * @param secure          true for POP3S, false for POP3.
+     */
+    public Pop3MailboxTaskExecutor(String pop3HostAddress, Integer port, String username, String password, boolean secure) {
+        this(pop3HostAddress, port, username, password);
+        this.secure = secure;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Returns e-mails from the mailbox which are unseen or all e-mails if
+     * <pre>retrieveSeenEmails</pre> is set to true. The e-mails are read into
+     * memory, so no connection must be maintained in order to use them.
+     *
+     * This is designed as a 'batch' task, so for retrieving all e-mails using a
+     * positive batch size the task should be called multiple times.
+     *
+     * @return a list of e-mails from the mailbox.
+     * @throws MailBoxTaskExecutorException if the task can't execute properly.
+     */
+    @Override
+    public List<Message> retrieveEmails() throws MailBoxTaskExecutorException {
+        try {
+            return doPop3Task("RetrieveEmailsPop3Task", (pipeline, window, entries, handledUidls) -> {
+                List<Message> retrievedEmails = new ArrayList<>(entries.size());
+                int requested = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    requested = requestAhead(pipeline, entries, requested, i + window);
+                    retrievedEmails.add(toMessage(pipeline.nextMessage(), entries.get(i)));
+                    emailHandled(pipeline, entries.get(i), handledUidls);
+                }
+                pipeline.sync();
+                return retrievedEmails;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while retrieving e-mail from the mailbox.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Returns true if there are unseen e-mails in the mailbox, otherwise
+     * false. If <pre>retrieveSeenEmails</pre> is set to true this task will
+     * count seen e-mails to. No e-mail is downloaded.
+     *
+     * @return true if there are more e-mails in the mailbox, otherwise false.
+     * @throws MailBoxTaskExecutorException if the task can't execute properly.
+     */
+    @Override
+    public boolean areThereRemainingEmails() throws MailBoxTaskExecutorException {
+        try {
+            return doPop3Task("AreThereRemainingEmailsPop3Task", (pipeline, window, entries, handledUidls) -> !entries.isEmpty());
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while getting remaining e-mails number.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Executes a passed <pre>EmailHandler</pre> method on each e-mail in the
+     * mailbox. An e-mail whose handling failed is neither recorded as seen
+     * nor deleted.
+     *
+     * @param emailHandler handler for each e-mail.
+     * @throws MailBoxTaskExecutorException if some error happened during
+     *                                      execution.
+     */
+    @Override
+    public void executeForEachEmail(final EmailHandler emailHandler) throws MailBoxTaskExecutorException {
+        try {
+            doPop3Task("ExecuteForEachEmailPop3Task", (pipeline, window, entries, handledUidls) -> {
+                int requested = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    requested = requestAhead(pipeline, entries, requested, i + window);
+                    Message message = toMessage(pipeline.nextMessage(), entries.get(i));
+                    try {
+                        emailHandler.handleEmail(message);
+                    } catch (Exception e) {
+                        LOG.error("Error happened while handling e-mail message {}!", entries.get(i).number, e);
+                        continue;
+                    }
+                    emailHandled(pipeline, entries.get(i), handledUidls);
+                }
+                pipeline.sync();
+                return null;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while executing task in mailbox.", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The handler is invoked on chunks of up to <pre>chunkSize</pre> e-mails.
+     * Handled e-mails of a chunk are marked with DELE, if
+     * <pre>deleteAfterRetrieval</pre> is true, once the handler returns.
+     *
+     * @param batchEmailHandler handler for each chunk of e-mails.
+     * @throws MailBoxTaskExecutorException if some error happened during
+     *                                      execution.
+     */
+    @Override
+    public void executeForEachBatch(final BatchEmailHandler batchEmailHandler) throws MailBoxTaskExecutorException {
+        try {
+            doPop3Task("ExecuteForEachBatchPop3Task", (pipeline, window, entries, handledUidls) -> {
+                int requested = 0;
+                for (int start = 0; start < entries.size(); start += chunkSize) {
+                    List<Pop3Entry> chunkEntries = entries.subList(start, Math.min(start + chunkSize, entries.size()));
+                    List<Message> chunk = new ArrayList<>(chunkEntries.size());
+                    for (int i = start; i < start + chunkEntries.size(); i++) {
+                        requested = requestAhead(pipeline, entries, requested, i + window);
+                        chunk.add(toMessage(pipeline.nextMessage(), entries.get(i)));
+                    }
+                    BatchResult result;
+                    try {
+                        result = batchEmailHandler.handleEmails(chunk);
+                    } catch (Exception e) {
+                        LOG.error("Error happened while handling e-mail chunk starting at {}!", chunkEntries.get(0).number, e);
+                        continue;
+                    }
+                    for (int i = 0; i < chunkEntries.size(); i++) {
+                        if (result.isFailed(i))
+                            LOG.error("Handling of e-mail message {} failed!", chunkEntries.get(i).number);
+                        else
+                            emailHandled(pipeline, chunkEntries.get(i), handledUidls);
+                    }
+                }
+                pipeline.sync();
+                return null;
+            });
+        } catch (Exception ex) {
+            throw new MailBoxTaskExecutorException("Error while executing task in mailbox.", ex);
+        }
+    }
+
+    /**
+     * Requests the e-mails up to the given index which were not requested
+     * yet.
+     *
+     * @param pipeline  the command pipeline.
+     * @param entries   the e-mails to process.
+     * @param requested the number of requested e-mails.
+     * @param until     the index after the last e-mail to request.
+     * @return the new number of requested e-mails.
+     * @throws IOException if a command fails.
+     */
+    private int requestAhead(Pop3Pipeline pipeline, List<Pop3Entry> entries, int requested, int until) throws IOException {
+        for (; requested < Math.min(until, entries.size()); requested++)
+            pipeline.retrieve(entries.get(requested).number);
+        return requested;
+    }
+
+    /**
+     * Parses the retrieved content. The returned message is marked as SEEN if
+     * its UIDL is recorded.
+     *
+     * @param content the content of the e-mail.
+     * @param entry   the e-mail.
+     * @return the message.
+     * @throws Exception if the e-mail can't be parsed or the store can't be
+     *                   read.
+     */
+    private Message toMessage(byte[] content, Pop3Entry entry) throws Exception {
+        MimeMessage message = new MimeMessage(session, new SharedByteArrayInputStream(content));
+        if (isSeen(entry.uidl))
+            message.setFlag(Flags.Flag.SEEN, true);
+        return message;
+    }
+
+    /**
+     * Marks the handled e-mail with DELE if <pre>deleteAfterRetrieval</pre>
+     * is true, and collects its UIDL unless <pre>retrieveSeenEmails</pre> is
+     * true.
+     *
+     * @param pipeline     the command pipeline.
+     * @param entry        the handled e-mail.
+     * @param handledUidls the UIDLs to record when the session ends.
+     * @throws IOException if the command fails.
+     */
+    private void emailHandled(Pop3Pipeline pipeline, Pop3Entry entry, List<String> handledUidls) throws IOException {
+        if (deleteAfterRetrieval) {
+            LOG.trace("Marking message {} with DELE.", entry.number);
+            pipeline.delete(entry.number);
+        }
+        if (!retrieveSeenEmails)
+            handledUidls.add(entry.uidl);
+    }
+
+    /**
+     * Lists the e-mails with UIDL and returns those to process, up to
+     * <pre>batchSize</pre> e-mails.
+     *
+     * @param connection the connection to the server.
+     * @return the e-mails to process.
+     * @throws Exception if UIDL fails or the store can't be read.
+     */
+    private List<Pop3Entry> findMessages(Pop3Connection connection) throws Exception {
+        List<String> lines;
+        try {
+            connection.command("UIDL");
+            lines = connection.readLines();
+        } catch (Pop3Connection.Pop3Exception e) {
+            throw new IOException("The POP3 server doesn't support UIDL!", e);
+        }
+        List<Pop3Entry> entries = new ArrayList<>();
+        for (String line : lines) {
+            String[] parts = line.split("\\s+", 2);
+            if (parts.length != 2)
+                throw new IOException("Malformed UIDL response '" + line + "'!");
+            if (!retrieveSeenEmails && isSeen(parts[1])) {
+                LOG.trace("Skipping message {} because it is seen and retrieveSeenEmails is false!", parts[0]);
+                continue;
+            }
+            entries.add(new Pop3Entry(Integer.parseInt(parts[0]), parts[1]));
+            if (batchSize > 0 && entries.size() >= batchSize)
+                break;
+        }
+        return entries;
+    }
+
+    /**
+     * Returns true if the UIDL is recorded as seen.
+     *
+     * @param uidl the UIDL of the e-mail.
+     * @return true if the e-mail is seen, otherwise false.
+     * @throws Exception if the store can't be read.
+     */
+    private boolean isSeen(String uidl) throws Exception {
+        return seenUidlStore == null ? seenUidls.contains(uidl) : seenUidlStore.contains(getSeenKey(uidl));
+    }
+
+    /**
+     * Records the UIDLs as seen.
+     *
+     * @param uidls the UIDLs of handled e-mails.
+     * @throws Exception if the store can't be written.
+     */
+    private void recordSeen(List<String> uidls) throws Exception {
+        for (String uidl : uidls) {
+            if (seenUidlStore == null)
+                seenUidls.add(uidl);
+            else
+                seenUidlStore.add(getSeenKey(uidl));
+        }
+    }
+
+    /**
+     * Returns the key of the UIDL in the <pre>seenUidlStore</pre>.
+     *
+     * @param uidl the UIDL of the e-mail.
+     * @return the key which identifies the mailbox and the e-mail.
+     */
+    private String getSeenKey(String uidl) {
+        return username + "@" + pop3HostAddress + "/" + uidl;
+    }
+
+    /**
+     * The common skeleton for all tasks. Connects and logs in, lists the
+     * e-mails and ends the session with QUIT if the task succeeded, otherwise
+     * closes the connection without it. UIDLs of handled e-mails are recorded
+     * in both cases.
+     *
+     * @param taskName the name of the task.
+     * @param task     task to execute.
+     * @param <T>      return type of the task.
+     * @return the result of task execution.
+     * @throws Exception if the connection can't be established or the task
+     *                   fails.
+     */
+    private <T> T doPop3Task(String taskName, Pop3Task<T> task) throws Exception {
+        long start = System.nanoTime();
+        List<String> handledUidls = new ArrayList<>();
+        Pop3Connection connection = null;
+        boolean succeeded = false;
+        try {
+            connection = new Pop3Connection(pop3HostAddress, port != null ? port : secure ? POP3S_PORT : POP3_PORT, secure, connectionTimeout);
+            boolean pipelined = isPipelined(connection);
+            connection.command("USER " + username);
+            connection.command("PASS " + password);
+
+            LOG.trace("Starting {} with retrieveSeenEmails set to {}, deleteAfterRetrieval set to {} and pipelining {}.", taskName, retrieveSeenEmails, deleteAfterRetrieval, pipelined);
+            List<Pop3Entry> entries = findMessages(connection);
+            T result = task.run(new Pop3Pipeline(connection, pipelined), pipelined ? pipeliningWindow : 1, entries, handledUidls);
+            connection.quit();
+            succeeded = true;
+
+            LOG.info("Finished task {}, with result {} in {} ms", taskName, result, (System.nanoTime() - start) / 1_000_000);
+            return result;
+        } catch (Exception e) {
+            LOG.error("Error happened while executing task {}!", taskName, e);
+            throw new MailBoxTaskExecutorException("Error while retrieving e-mails.", e);
+        } finally {
+            try {
+                if (connection != null && !succeeded)
+                    connection.close();
+            } finally {
+                recordSeen(handledUidls);
+            }
+        }
+    }
+
+    /**
+     * Returns true if commands should be pipelined on the connection.
+     *
+     * @param connection the connection to the server.
+     * @return true if commands are pipelined, otherwise false.
+     * @throws IOException if the capabilities can't be read.
+     */
+    private boolean isPipelined(Pop3Connection connection) throws IOException {
+        if (pipeliningMode != PipeliningMode.AUTO)
+            return pipeliningMode == PipeliningMode.ALWAYS;
+        List<String> capabilities;
+        try {
+            connection.command("CAPA");
+            capabilities = connection.readLines();
+        } catch (Pop3Connection.Pop3Exception e) {
+            capabilities = Collections.emptyList();
+        }
+        return capabilities.stream().anyMatch(capability -> capability.equalsIgnoreCase("PIPELINING"));
+    }
+
+    /**
+     * An e-mail listed by UIDL.
+     */
+    private static final class Pop3Entry {
+
+        /**
+         * The message number in the session.
+         */
+        private final int number;
+
+        /**
+         * The unique id of the message.
+         */
+        private final String uidl;
+
+        /**
+         * Constructs a new entry.
+         *
+         * @param number the message number in the session.
+         * @param uidl   the unique id of the message.
+         */
+        private Pop3Entry(int number, String uidl) {
+            this.number = number;
+            this.uidl = uidl;
+        }
+    }
+
+    /**
+     * A task in a POP3 session.
+     *
+     * @param <T> the result type of the task.
+     */
+    private interface Pop3Task<T> {
+
+        /**
+         * Runs the task.
+         *
+         * @param pipeline     the command pipeline.
+         * @param window       the maximum number of retrievals sent ahead.
+         * @param entries      the e-mails to process.
+         * @param handledUidls the UIDLs to record when the session ends.
+         * @return the result of the task.
+         * @throws Exception if the task fails.
+         */
+        T run(Pop3Pipeline pipeline, int window, List<Pop3Entry> entries, List<String> handledUidls) throws Exception;
+    }
+
+    /**
+     * Returns the current connection timeout.
+     *
+     * @return connection timeout.
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Sets the connection timeout. Value -1 means infinite timeout.
+     *
+     * @param connectionTimeout connection timeout to set.
+     * @throws IllegalArgumentException if connection timeout is less then -1.
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        if (connectionTimeout < -1)
+            throw new IllegalArgumentException("Connection timeout must be greater then or equal to -1!");
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Returns when commands are pipelined.
+     *
+     * @return the pipelining mode.
+     */
+    public PipeliningMode getPipeliningMode() {
+        return pipeliningMode;
+    }
+
+    /**
+     * Sets when commands are pipelined.
+     *
+     * @param pipeliningMode the pipelining mode to set.
+     * @throws IllegalArgumentException if pipelining mode is null.
+     */
+    public void setPipeliningMode(PipeliningMode pipeliningMode) {
+        if (pipeliningMode == null)
+            throw new IllegalArgumentException("Pipelining mode must not be null!");
+        this.pipeliningMode = pipeliningMode;
+    }
+
+    /**
+     * Returns the maximum number of retrievals sent ahead of the handled
+     * e-mail when commands are pipelined.
+     *
+     * @return the pipelining window.
+     */
+    public int getPipeliningWindow() {
+        return pipeliningWindow;
+    }
+
+    /**
+     * Sets the maximum number of retrievals sent ahead of the handled e-mail
+     * when commands are pipelined. Retrieved e-mails which wait to be handled
+     * are held in memory.
+     *
+     * @param pipeliningWindow the pipelining window to set.
+     * @throws IllegalArgumentException if pipelining window is not positive.
+     */
+    public void setPipeliningWindow(int pipeliningWindow) {
+        if (pipeliningWindow <= 0)
+            throw new IllegalArgumentException("Pipelining window must be positive!");
+        this.pipeliningWindow = pipeliningWindow;
+    }
+
+    /**
+     * Returns the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @return the chunk size.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the maximum number of e-mails in a chunk handed to a
+     * <pre>{@link BatchEmailHandler}</pre>.
+     *
+     * @param chunkSize the chunk size to set.
+     * @throws IllegalArgumentException if chunk size is not positive.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive!");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the store of seen UIDLs.
+     *
+     * @return the store or null if seen UIDLs are kept in memory.
+     */
+    public SeenMessageStore getSeenUidlStore() {
+        return seenUidlStore;
+    }
+
+    /**
+     * Sets the store of seen UIDLs, so seen e-mails are not retrieved again
+     * by other executors or after a restart. The UIDLs are stored under keys
+     * which include the username and host, so a store can be shared between
+     * mailboxes.
+     *
+     * @param seenUidlStore the store to set or null to keep seen UIDLs in
+     *                      memory.
+     */
+    public void setSeenUidlStore(SeenMessageStore seenUidlStore) {
+        this.seenUidlStore = seenUidlStore;
+    }
+
+    /**
+     * Returns the batch size.
+     *
+     * @return the batch size.
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the host address of the mailbox.
+     *
+     * @return the host address.
+     */
+    public final String getPop3HostAddress() {
+        return pop3HostAddress;
+    }
+
+    /**
+     * Returns the username for the mailbox.
+     *
+     * @return the username.
+     */
+    public final String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns true if e-mails are deleted after retrieval.
+     *
+     * @return the delete after retrieval flag.
+     */
+    public final boolean isDeleteAfterRetrieval() {
+        return deleteAfterRetrieval;
+    }
+
+    /**
+     * Returns true if seen e-mails are also retrieved.
+     *
+     * @return the retrieve seen e-mails flag.
+     */
+    public final boolean isRetrieveSeenEmails() {
+        return retrieveSeenEmails;
+    }
+
+    /**
+     * Returns the port on which to connect.
+     *
+     * @return the port or null for the default port.
+     */
+    public Integer getPort() {
+        return port;
+    }
+
+    /**
+     * Returns true if POP3S is used.
+     *
+     * @return the secure flag.
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Zero size batch means all e-mails in mailbox.
+     *
+     * @throws IllegalArgumentException if batch size is less then 0.
+     */
+    @Override
+    public final void setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("Batch size must be either zero or positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Sets the
+     * <pre>deleteAfterRetrieval</pre> flag.
+     *
+     * @param deleteAfterRetrieval boolean to set.
+     */
+    @Override
+    public final void setDeleteAfterRetrieval(boolean deleteAfterRetrieval) {
+        this.deleteAfterRetrieval = deleteAfterRetrieval;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Sets the
+     * <pre>retrieveSeenEmails</pre> flag.
+     *
+     * @param retrieveSeenEmails boolean to set.
+     */
+    @Override
+    public final void setRetrieveSeenEmails(boolean retrieveSeenEmails) {
+        this.retrieveSeenEmails = retrieveSeenEmails;
+    }
+}
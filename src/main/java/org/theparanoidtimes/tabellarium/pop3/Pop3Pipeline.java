@@ -0,0 +1,117 @@
+package org.theparanoidtimes.tabellarium.pop3;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Sends RETR and DELE commands over a connection and reads their responses in
+ * order. When pipelined, commands are buffered and sent together, and their
+ * responses are read only when the content of a message is needed or the
+ * pipeline is synchronized. Otherwise each command waits for its response.
+ *
+ * @author djosifovic
+ */
+final class Pop3Pipeline {
+
+    /**
+     * The connection to the server.
+     */
+    private final Pop3Connection connection;
+
+    /**
+     * A flag indicating that commands are pipelined.
+     */
+    private final boolean pipelined;
+
+    /**
+     * The message numbers of sent commands whose responses were not read,
+     * negative for DELE commands.
+     */
+    private final Deque<Integer> pending = new ArrayDeque<>();
+
+    /**
+     * The content of retrieved messages which was not taken yet.
+     */
+    private final Deque<byte[]> retrieved = new ArrayDeque<>();
+
+    /**
+     * Constructs a new pipeline.
+     *
+     * @param connection the connection to the server.
+     * @param pipelined  true to pipeline commands.
+     */
+    Pop3Pipeline(Pop3Connection connection, boolean pipelined) {
+        this.connection = connection;
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Requests the content of the message.
+     *
+     * @param number the number of the message.
+     * @throws IOException if the command fails.
+     */
+    void retrieve(int number) throws IOException {
+        connection.send("RETR " + number);
+        pending.add(number);
+        if (!pipelined)
+            sync();
+    }
+
+    /**
+     * Marks the message for deletion at the end of the session.
+     *
+     * @param number the number of the message.
+     * @throws IOException if the command fails.
+     */
+    void delete(int number) throws IOException {
+        connection.send("DELE " + number);
+        pending.add(-number);
+        if (!pipelined)
+            sync();
+    }
+
+    /**
+     * Returns the content of the next requested message, reading the
+     * responses to the commands sent before it.
+     *
+     * @return the content of the message.
+     * @throws IOException if a command failed or no message was requested.
+     */
+    byte[] nextMessage() throws IOException {
+        if (retrieved.isEmpty()) {
+            connection.flush();
+            while (retrieved.isEmpty()) {
+                if (pending.isEmpty())
+                    throw new IllegalStateException("No message was requested!");
+                readResponse();
+            }
+        }
+        return retrieved.remove();
+    }
+
+    /**
+     * Sends the buffered commands and reads all pending responses. Content of
+     * retrieved messages is kept until it is taken.
+     *
+     * @throws IOException if a command failed.
+     */
+    void sync() throws IOException {
+        connection.flush();
+        while (!pending.isEmpty())
+            readResponse();
+    }
+
+    /**
+     * Reads the response to the oldest pending command.
+     *
+     * @throws IOException if the command failed.
+     */
+    private void readResponse() throws IOException {
+        int number = pending.remove();
+        connection.readStatus();
+        if (number > 0)
+            retrieved.add(connection.readContent());
+    }
+}
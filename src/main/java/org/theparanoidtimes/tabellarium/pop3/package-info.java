@@ -0,0 +1,4 @@
+/**
+ * Tabellarium POP3 implementation package.
+ */
+package org.theparanoidtimes.tabellarium.pop3;
@@ -0,0 +1,484 @@
+package org.theparanoidtimes.tabellarium.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+import org.theparanoidtimes.tabellarium.imap.ImapMailboxFolderTaskExecutor;
+import org.theparanoidtimes.tabellarium.metrics.MailboxMetrics;
+import org.theparanoidtimes.tabellarium.metrics.NoopMailboxMetrics;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Polls many mailboxes on a small pool of threads. Each poll invokes
+ * <pre>executeForEachEmail</pre> of the mailbox executor and the next poll is
+ * scheduled after the mailbox poll interval.
+ *
+ * The interval of each mailbox adapts to its arrival rate. It doubles after
+ * each poll which found no e-mails, up to <pre>maxPollInterval</pre>, and is
+ * divided by the number of found e-mails plus one after other polls, down to
+ * <pre>minPollInterval</pre>. Every delay, and the delay of the first poll,
+ * is randomized by the jitter, so mailboxes scheduled together don't poll
+ * together.
+ *
+ * At most <pre>maxPollsPerHost</pre> polls of mailboxes on the same host run
+ * at once, others wait in the order they became due. The time a poll waited
+ * after it was due is recorded as the <pre>{@link TaskPhase#POLL_LAG}</pre>
+ * of the <pre>ScheduledPoll</pre> task, tagged with the mailbox name, and the
+ * number of waiting polls as the queue depth.
+ *
+ * @author djosifovic
+ */
+public class MailboxScheduler implements AutoCloseable {
+
+    /**
+     * Log instance.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(MailboxScheduler.class);
+
+    /**
+     * The task name of scheduler metrics.
+     */
+    private static final String TASK_NAME = "ScheduledPoll";
+
+    /**
+     * Default minimum poll interval in milliseconds.
+     */
+    private static final long DEFAULT_MIN_POLL_INTERVAL = 1000;
+
+    /**
+     * Default maximum poll interval in milliseconds.
+     */
+    private static final long DEFAULT_MAX_POLL_INTERVAL = 5 * 60 * 1000;
+
+    /**
+     * Default jitter.
+     */
+    private static final double DEFAULT_JITTER = 0.1;
+
+    /**
+     * The thread which starts due polls.
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * The threads which run polls.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Guards <pre>hosts</pre>.
+     */
+    private final ReentrantLock hostsLock = new ReentrantLock();
+
+    /**
+     * Running and waiting polls by host.
+     */
+    private final Map<String, HostSlots> hosts = new HashMap<>();
+
+    /**
+     * The number of polls which are due but not started yet.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * The shortest poll interval in milliseconds.
+     */
+    private volatile long minPollInterval = DEFAULT_MIN_POLL_INTERVAL;
+
+    /**
+     * The longest poll interval in milliseconds.
+     */
+    private volatile long maxPollInterval = DEFAULT_MAX_POLL_INTERVAL;
+
+    /**
+     * The largest relative change of a delay by randomization, between zero
+     * and one.
+     */
+    private volatile double jitter = DEFAULT_JITTER;
+
+    /**
+     * The maximum number of polls of the same host which run at once. If it
+     * is zero the number is not limited.
+     */
+    private volatile int maxPollsPerHost = 0;
+
+    /**
+     * The metrics to record to.
+     */
+    private volatile MailboxMetrics metrics = NoopMailboxMetrics.INSTANCE;
+
+    /**
+     * A flag indicating that the scheduler is closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new scheduler.
+     *
+     * @param threads the number of threads which run polls.
+     */
+    public MailboxScheduler(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Number of threads must be positive!");
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("tabellarium-scheduler-timer"));
+        this.workers = Executors.newFixedThreadPool(threads, daemonThreads("tabellarium-scheduler"));
+    }
+
+    /**
+     * Starts polling the mailbox of the executor. The username and the folder
+     * name are used as the mailbox name and the IMAP host address as its
+     * host.
+     *
+     * @param executor     the executor which polls the mailbox.
+     * @param emailHandler the handler for each e-mail.
+     * @return the scheduled mailbox.
+     */
+    public ScheduledMailbox schedule(ImapMailboxFolderTaskExecutor executor, EmailHandler emailHandler) {
+        if (executor == null)
+            throw new IllegalArgumentException("Mailbox task executor must not be null!");
+        return schedule(executor.getUsername() + "/" + executor.getFolderName(), executor.getImapHostAddress(), executor, emailHandler);
+    }
+
+    /**
+     * Starts polling the mailbox. The first poll is after a random delay of up
+     * to <pre>minPollInterval</pre>.
+     *
+     * @param name         the name of the mailbox, used in metrics and logs.
+     * @param host         the host of the mailbox, used for the per host
+     *                     concurrency cap.
+     * @param executor     the executor which polls the mailbox.
+     * @param emailHandler the handler for each e-mail.
+     * @return the scheduled mailbox.
+     */
+    public ScheduledMailbox schedule(String name, String host, MailboxTaskExecutor executor, EmailHandler emailHandler) {
+        if (name == null)
+            throw new IllegalArgumentException("Mailbox name must not be null!");
+        if (host == null)
+            throw new IllegalArgumentException("Host must not be null!");
+        if (executor == null)
+            throw new IllegalArgumentException("Mailbox task executor must not be null!");
+        if (emailHandler == null)
+            throw new IllegalArgumentException("E-mail handler must not be null!");
+        if (closed)
+            throw new IllegalStateException("Scheduler is closed!");
+        ScheduledMailbox mailbox = new ScheduledMailbox(this, name, host, executor, emailHandler, minPollInterval);
+        scheduleNext(mailbox, ThreadLocalRandom.current().nextLong(minPollInterval));
+        return mailbox;
+    }
+
+    /**
+     * Stops polling all mailboxes. Polls which are running are not
+     * interrupted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        workers.shutdown();
+    }
+
+    /**
+     * Schedules the next poll of the mailbox.
+     *
+     * @param mailbox the mailbox to poll.
+     * @param delay   the delay in milliseconds.
+     */
+    private void scheduleNext(ScheduledMailbox mailbox, long delay) {
+        if (closed || mailbox.isCancelled())
+            return;
+        mailbox.setDueTime(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+        try {
+            mailbox.setTimer(timer.schedule(() -> due(mailbox), delay, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            LOG.trace("Not scheduling {} because the scheduler is closed.", mailbox);
+        }
+    }
+
+    /**
+     * Starts the poll of the mailbox, or queues it if its host has no free
+     * slot.
+     *
+     * @param mailbox the mailbox which is due.
+     */
+    private void due(ScheduledMailbox mailbox) {
+        if (mailbox.isCancelled())
+            return;
+        metrics.recordQueueDepth(queueDepth.incrementAndGet());
+        boolean start;
+        hostsLock.lock();
+        try {
+            HostSlots slots = hosts.computeIfAbsent(mailbox.getHost(), host -> new HostSlots());
+            start = maxPollsPerHost == 0 || slots.running < maxPollsPerHost;
+            if (start)
+                slots.running++;
+            else
+                slots.waiting.addLast(mailbox);
+        } finally {
+            hostsLock.unlock();
+        }
+        if (start)
+            start(mailbox);
+        else
+            LOG.trace("Poll of {} waits for a free slot of its host.", mailbox);
+    }
+
+    /**
+     * Submits the poll of the mailbox, which holds a slot of its host, to the
+     * worker threads.
+     *
+     * @param mailbox the mailbox to poll.
+     */
+    private void start(ScheduledMailbox mailbox) {
+        try {
+            workers.execute(() -> poll(mailbox));
+        } catch (RejectedExecutionException e) {
+            metrics.recordQueueDepth(queueDepth.decrementAndGet());
+            releaseSlot(mailbox.getHost());
+        }
+    }
+
+    /**
+     * Polls the mailbox, adapts its poll interval and schedules the next poll.
+     *
+     * @param mailbox the mailbox to poll.
+     */
+    private void poll(ScheduledMailbox mailbox) {
+        metrics.recordQueueDepth(queueDepth.decrementAndGet());
+        metrics.recordLatency(TASK_NAME, mailbox.getName(), TaskPhase.POLL_LAG, Math.max(0, System.nanoTime() - mailbox.getDueTime()));
+        AtomicInteger found = new AtomicInteger();
+        try {
+            if (!mailbox.isCancelled()) {
+                EmailHandler emailHandler = mailbox.getEmailHandler();
+                mailbox.getExecutor().executeForEachEmail(message -> {
+                    found.incrementAndGet();
+                    emailHandler.handleEmail(message);
+                });
+            }
+        } catch (Exception e) {
+            LOG.error("Error while polling {}!", mailbox, e);
+        } finally {
+            releaseSlot(mailbox.getHost());
+        }
+        mailbox.setPollInterval(nextPollInterval(mailbox.getPollInterval(), found.get()));
+        LOG.trace("Polled {} and found {} e-mails.", mailbox, found.get());
+        scheduleNext(mailbox, withJitter(mailbox.getPollInterval()));
+    }
+
+    /**
+     * Frees a slot of the host, or passes it to the first waiting poll of the
+     * host.
+     *
+     * @param host the host of the finished poll.
+     */
+    private void releaseSlot(String host) {
+        ScheduledMailbox next;
+        hostsLock.lock();
+        try {
+            HostSlots slots = hosts.get(host);
+            next = slots.waiting.pollFirst();
+            if (next == null && --slots.running == 0)
+                hosts.remove(host);
+        } finally {
+            hostsLock.unlock();
+        }
+        if (next != null)
+            start(next);
+    }
+
+    /**
+     * Removes the cancelled mailbox from the polls which wait for a slot.
+     *
+     * @param mailbox the cancelled mailbox.
+     */
+    void cancelled(ScheduledMailbox mailbox) {
+        boolean removed = false;
+        hostsLock.lock();
+        try {
+            HostSlots slots = hosts.get(mailbox.getHost());
+            if (slots != null)
+                removed = slots.waiting.remove(mailbox);
+        } finally {
+            hostsLock.unlock();
+        }
+        if (removed)
+            metrics.recordQueueDepth(queueDepth.decrementAndGet());
+    }
+
+    /**
+     * Returns the poll interval after a poll which found the given number of
+     * e-mails.
+     *
+     * @param pollInterval the current poll interval.
+     * @param found        the number of found e-mails.
+     * @return the next poll interval.
+     */
+    private long nextPollInterval(long pollInterval, int found) {
+        long min = minPollInterval;
+        long max = maxPollInterval;
+        if (found == 0)
+            return pollInterval >= max / 2 ? max : Math.max(pollInterval * 2, min);
+        return Math.min(Math.max(pollInterval / (found + 1), min), max);
+    }
+
+    /**
+     * Randomizes the delay by up to <pre>jitter</pre> in both directions.
+     *
+     * @param delay the delay in milliseconds.
+     * @return the randomized delay.
+     */
+    private long withJitter(long delay) {
+        double change = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(0, Math.round(delay * (1 + change)));
+    }
+
+    /**
+     * Returns a factory of daemon threads with the given name.
+     *
+     * @param name the name of the threads.
+     * @return a new thread factory.
+     */
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns the number of polls which are due but not started yet, because
+     * all threads are busy or their hosts have no free slot.
+     *
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the minimum poll interval.
+     *
+     * @return the minimum poll interval in milliseconds.
+     */
+    public long getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    /**
+     * Returns the maximum poll interval.
+     *
+     * @return the maximum poll interval in milliseconds.
+     */
+    public long getMaxPollInterval() {
+        return maxPollInterval;
+    }
+
+    /**
+     * Sets the bounds of the adaptive poll interval. The defaults are one
+     * second and five minutes.
+     *
+     * @param minPollInterval the shortest interval in milliseconds.
+     * @param maxPollInterval the longest interval in milliseconds.
+     */
+    public void setPollInterval(long minPollInterval, long maxPollInterval) {
+        if (minPollInterval <= 0 || maxPollInterval < minPollInterval)
+            throw new IllegalArgumentException("Poll intervals must be positive and the maximum must not be less then the minimum!");
+        this.minPollInterval = minPollInterval;
+        this.maxPollInterval = maxPollInterval;
+    }
+
+    /**
+     * Returns the jitter.
+     *
+     * @return the jitter.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Sets the largest relative change of a delay by randomization. With the
+     * default of 0.1 each delay is randomized by up to ten percent in both
+     * directions.
+     *
+     * @param jitter the jitter, between zero and one.
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("Jitter must be between zero and one!");
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns the maximum number of polls of the same host which run at once.
+     *
+     * @return the maximum number of polls per host, zero if not limited.
+     */
+    public int getMaxPollsPerHost() {
+        return maxPollsPerHost;
+    }
+
+    /**
+     * Sets the maximum number of polls of the same host which run at once. If
+     * it is zero, which is the default, the number is not limited.
+     *
+     * @param maxPollsPerHost the maximum number of polls per host.
+     */
+    public void setMaxPollsPerHost(int maxPollsPerHost) {
+        if (maxPollsPerHost < 0)
+            throw new IllegalArgumentException("Maximum polls per host must be either zero or positive!");
+        this.maxPollsPerHost = maxPollsPerHost;
+    }
+
+    /**
+     * Returns the metrics.
+     *
+     * @return the metrics.
+     */
+    public MailboxMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics to which the poll lag and the queue depth are
+     * recorded.
+     *
+     * @param metrics the metrics to set.
+     */
+    public void setMetrics(MailboxMetrics metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("Metrics must not be null!");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Running and waiting polls of a host.
+     */
+    private static final class HostSlots {
+
+        /**
+         * The number of running polls.
+         */
+        private int running = 0;
+
+        /**
+         * Polls which wait for a free slot, in the order they became due.
+         */
+        private final Deque<ScheduledMailbox> waiting = new ArrayDeque<>();
+    }
+}
@@ -0,0 +1,185 @@
+package org.theparanoidtimes.tabellarium.scheduler;
+
+import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A mailbox polled by a <pre>{@link MailboxScheduler}</pre>. The poll interval
+ * adapts to the number of e-mails found by recent polls.
+ *
+ * @author djosifovic
+ */
+public final class ScheduledMailbox {
+
+    /**
+     * The scheduler which polls the mailbox.
+     */
+    private final MailboxScheduler scheduler;
+
+    /**
+     * The name of the mailbox, used as the folder name of metrics.
+     */
+    private final String name;
+
+    /**
+     * The host of the mailbox, used for the per host concurrency cap.
+     */
+    private final String host;
+
+    /**
+     * The executor which polls the mailbox.
+     */
+    private final MailboxTaskExecutor executor;
+
+    /**
+     * The handler for each e-mail.
+     */
+    private final EmailHandler emailHandler;
+
+    /**
+     * The current poll interval in milliseconds, before jitter.
+     */
+    private volatile long pollInterval;
+
+    /**
+     * The time, from <pre>System.nanoTime()</pre>, the next poll is due.
+     */
+    private volatile long dueTime;
+
+    /**
+     * The pending timer of the next poll or null.
+     */
+    private volatile ScheduledFuture<?> timer;
+
+    /**
+     * A flag indicating that the mailbox is no longer polled.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructs a new scheduled mailbox.
+     *
+     * @param scheduler    the scheduler which polls the mailbox.
+     * @param name         the name of the mailbox.
+     * @param host         the host of the mailbox.
+     * @param executor     the executor which polls the mailbox.
+     * @param emailHandler the handler for each e-mail.
+     * @param pollInterval the initial poll interval in milliseconds.
+     */
+    ScheduledMailbox(MailboxScheduler scheduler, String name, String host, MailboxTaskExecutor executor, EmailHandler emailHandler, long pollInterval) {
+        this.scheduler = scheduler;
+        this.name = name;
+        this.host = host;
+        this.executor = executor;
+        this.emailHandler = emailHandler;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Stops polling the mailbox. A poll which is running is not interrupted.
+     */
+    public void cancel() {
+        cancelled = true;
+        ScheduledFuture<?> pending = timer;
+        if (pending != null)
+            pending.cancel(false);
+        scheduler.cancelled(this);
+    }
+
+    /**
+     * Returns true if the mailbox is no longer polled.
+     *
+     * @return true if the mailbox is cancelled, otherwise false.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the name of the mailbox.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the host of the mailbox.
+     *
+     * @return the host.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns the current poll interval, before jitter.
+     *
+     * @return the poll interval in milliseconds.
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Returns the executor which polls the mailbox.
+     *
+     * @return the mailbox task executor.
+     */
+    MailboxTaskExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the handler for each e-mail.
+     *
+     * @return the e-mail handler.
+     */
+    EmailHandler getEmailHandler() {
+        return emailHandler;
+    }
+
+    /**
+     * Sets the poll interval.
+     *
+     * @param pollInterval the poll interval in milliseconds.
+     */
+    void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Returns the time the next poll is due.
+     *
+     * @return the due time from <pre>System.nanoTime()</pre>.
+     */
+    long getDueTime() {
+        return dueTime;
+    }
+
+    /**
+     * Sets the time the next poll is due.
+     *
+     * @param dueTime the due time from <pre>System.nanoTime()</pre>.
+     */
+    void setDueTime(long dueTime) {
+        this.dueTime = dueTime;
+    }
+
+    /**
+     * Sets the timer of the next poll.
+     *
+     * @param timer the timer of the poll.
+     */
+    void setTimer(ScheduledFuture<?> timer) {
+        this.timer = timer;
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduledMailbox{name=" + name + ", host=" + host + ", pollInterval=" + pollInterval + '}';
+    }
+}
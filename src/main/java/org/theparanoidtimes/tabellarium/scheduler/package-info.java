@@ -0,0 +1,4 @@
+/**
+ * Tabellarium scheduler package.
+ */
+package org.theparanoidtimes.tabellarium.scheduler;
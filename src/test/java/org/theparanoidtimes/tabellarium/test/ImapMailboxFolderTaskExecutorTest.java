@@ -4,26 +4,69 @@ import com.icegreen.greenmail.store.MailFolder;
 import com.icegreen.greenmail.user.GreenMailUser;
 import com.icegreen.greenmail.util.GreenMail;
 import com.icegreen.greenmail.util.ServerSetup;
+import org.theparanoidtimes.tabellarium.api.AsyncMailboxTaskExecutorAdapter;
+import org.theparanoidtimes.tabellarium.api.BatchResult;
+import org.theparanoidtimes.tabellarium.api.DetachedMimeMessage;
 import org.theparanoidtimes.tabellarium.api.EmailHandler;
+import org.theparanoidtimes.tabellarium.api.LazyUnlinkedEmailHandler;
+import org.theparanoidtimes.tabellarium.api.MailBoxTaskExecutorException;
 import org.theparanoidtimes.tabellarium.api.MailboxTaskExecutor;
+import org.theparanoidtimes.tabellarium.api.MessageSpool;
+import org.theparanoidtimes.tabellarium.api.UnlinkedEmailHandler;
 import org.theparanoidtimes.tabellarium.handlers.ChangeMessageFlagEmailHandler;
+import org.theparanoidtimes.tabellarium.handlers.DeduplicatingEmailHandler;
+import org.theparanoidtimes.tabellarium.handlers.FileSeenMessageStore;
+import org.theparanoidtimes.tabellarium.imap.FetchMode;
+import org.theparanoidtimes.tabellarium.imap.ImapFolderSubscription;
+import org.theparanoidtimes.tabellarium.imap.InMemoryUidCheckpointStore;
 import org.theparanoidtimes.tabellarium.imap.ImapMailboxFolderTaskExecutor;
+import org.theparanoidtimes.tabellarium.imap.ImapMessageSubscription;
+import org.theparanoidtimes.tabellarium.imap.ProcessingJournal;
+import org.theparanoidtimes.tabellarium.imap.VirtualThreads;
+import org.theparanoidtimes.tabellarium.metrics.InMemoryMailboxMetrics;
+import org.theparanoidtimes.tabellarium.metrics.LatencyHistogram;
+import org.theparanoidtimes.tabellarium.metrics.MessageOutcome;
+import org.theparanoidtimes.tabellarium.metrics.MetricTags;
+import org.theparanoidtimes.tabellarium.metrics.TaskPhase;
+import org.theparanoidtimes.tabellarium.scheduler.MailboxScheduler;
+import org.theparanoidtimes.tabellarium.scheduler.ScheduledMailbox;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import javax.mail.Flags;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.SubjectTerm;
+import javax.mail.util.SharedFileInputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.fail;
 
 public class ImapMailboxFolderTaskExecutorTest {
 
@@ -152,6 +195,260 @@ public class ImapMailboxFolderTaskExecutorTest {
         assertThat(result, equalTo(false));
     }
 
+    @Test
+    public void pooledExecutorWillReuseConnectionAndExpungeDeletedEmails() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+
+        try (ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor()) {
+            executor.setMaxPooledConnections(1);
+            executor.setDeleteAfterRetrieval(true);
+            executor.executeForEachEmail(message -> {});
+            assertThat(inbox.getMessageCount(), equalTo(0));
+
+            appendTwoUnseenMessagesToUserInbox();
+            assertThat(executor.retrieveEmails().size(), equalTo(2));
+            assertThat(executor.areThereRemainingEmails(), equalTo(false));
+        }
+    }
+
+    @Test
+    public void subscriptionWillHandleExistingAndNewEmails() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        CountDownLatch handled = new CountDownLatch(3);
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setPollInterval(50, 200);
+        try (ImapFolderSubscription ignored = executor.subscribe(message -> handled.countDown())) {
+            inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", "c3"), new Flags(), new Date());
+
+            assertThat(handled.await(10, TimeUnit.SECONDS), equalTo(true));
+        }
+    }
+
+    @Test
+    public void incrementalExecutorWillRetrieveEachEmailOnlyOnce() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setRetrieveSeenEmails(true);
+        executor.setUidCheckpointStore(new InMemoryUidCheckpointStore());
+
+        assertThat(executor.retrieveEmails().size(), equalTo(2));
+        assertThat(executor.areThereRemainingEmails(), equalTo(false));
+        assertThat(executor.retrieveEmails().size(), equalTo(0));
+
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", "c3"), new Flags(), new Date());
+        List<Message> messages = executor.retrieveEmails();
+
+        assertThat(messages.size(), equalTo(1));
+        assertThat(messages.get(0).getSubject(), equalTo("s3"));
+    }
+
+    @Test
+    public void executorWillHandleEmailsInParallelAndApplyFlagsAfterHandling() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        ExecutorService handlerExecutor = Executors.newFixedThreadPool(2);
+
+        try {
+            ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+            executor.setHandlerExecutor(handlerExecutor);
+            executor.setMaxInFlight(1);
+            executor.setDeleteAfterRetrieval(true);
+
+            executor.executeForEachEmail(new FaultyEmailHandler());
+            assertThat(inbox.getUnseenCount(), equalTo(2));
+
+            executor.executeForEachEmail(message -> {});
+            assertThat(inbox.getMessageCount(), equalTo(0));
+        } finally {
+            handlerExecutor.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shardedExecutorWillRetrieveEmailsInFolderOrder() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", "c3"), new Flags(), new Date());
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setShardCount(2);
+        executor.setDeleteAfterRetrieval(true);
+        List<Message> messages = executor.retrieveEmails();
+
+        assertThat(messages, contains(
+                hasProperty("subject", equalTo("s1")),
+                hasProperty("subject", equalTo("s2")),
+                hasProperty("subject", equalTo("s3"))));
+        assertThat(inbox.getMessageCount(), equalTo(0));
+    }
+
+    @Test
+    public void shardedExecutorWillNotExpungeAnyShardIfOneFails() throws Exception {
+        MimeMessage large = mimeMessageWithFromSubjectAndContent("f1@localhost", "s1", new String(new char[4096]).replace('\0', 'x'));
+        inbox.appendMessage(large, new Flags(), new Date());
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f2@localhost", "s2", "c2"), new Flags(), new Date());
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", "c3"), new Flags(), new Date());
+        Path spoolDirectory = Files.createTempDirectory("tabellarium-spool");
+        Files.delete(spoolDirectory);
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setShardCount(2);
+        executor.setDeleteAfterRetrieval(true);
+        executor.setMessageSpool(new MessageSpool(1024, spoolDirectory.toFile()));
+        try {
+            executor.retrieveEmails();
+            fail("Spilling to a missing directory should fail the first shard!");
+        } catch (MailBoxTaskExecutorException e) {
+            // The first shard failed, the second one marked its message as DELETED.
+        }
+
+        assertThat(inbox.getMessageCount(), equalTo(3));
+    }
+
+    @Test
+    public void executorWillApplyBufferedFlagChangesAcrossChunks() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", "c3"), new Flags(), new Date());
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setPrefetchSize(2);
+        executor.setDeleteAfterRetrieval(true);
+        executor.executeForEachEmail(message -> {
+            message.getContent();
+            if (message.getSubject().equals("s2"))
+                throw new Exception("Message " + message + " handling failed!");
+        });
+
+        assertThat(inbox.getMessageCount(), equalTo(1));
+        assertThat(inbox.getUnseenCount(), equalTo(1));
+    }
+
+    @Test
+    public void streamWillRetrieveEmailsInWindowsAndLeaveUnreturnedEmailsUnseen() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", "c3"), new Flags(), new Date());
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setStreamWindowSize(2);
+        try (Stream<Message> emails = executor.streamEmails()) {
+            assertThat(emails.findFirst().get().getSubject(), equalTo("s1"));
+        }
+
+        List<Message> messages = executor.retrieveEmails();
+        assertThat(messages, contains(
+                hasProperty("subject", equalTo("s2")),
+                hasProperty("subject", equalTo("s3"))));
+    }
+
+    @Test
+    public void batchExecutorWillHandleChunksAndRevertFlagsOfFailedEmails() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", "c3"), new Flags(), new Date());
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setChunkSize(2);
+        executor.setDeleteAfterRetrieval(true);
+        List<Integer> chunkSizes = new ArrayList<>();
+        executor.executeForEachBatch(messages -> {
+            chunkSizes.add(messages.size());
+            for (Message message : messages)
+                message.getContent();
+            return chunkSizes.size() == 1 ? BatchResult.failed(1) : BatchResult.success();
+        });
+
+        assertThat(chunkSizes, contains(2, 1));
+        assertThat(inbox.getMessageCount(), equalTo(1));
+        List<Message> messages = executor.retrieveEmails();
+        assertThat(messages, contains(hasProperty("subject", equalTo("s2"))));
+    }
+
+    @Test
+    public void executorWillRecordMetricsTaggedByTaskAndFolder() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        InMemoryMailboxMetrics metrics = new InMemoryMailboxMetrics();
+        executor.setMetrics(metrics);
+        executor.executeForEachEmail(message -> {
+            if (message.getSubject().equals("s2"))
+                throw new Exception("Message " + message + " handling failed!");
+        });
+
+        String taskName = "ExecuteForEachEmailImapFolderTask";
+        assertThat(metrics.getTags(), contains(new MetricTags(taskName, "INBOX")));
+        assertThat(metrics.getMessageCount(taskName, "INBOX", MessageOutcome.PROCESSED), equalTo(1L));
+        assertThat(metrics.getMessageCount(taskName, "INBOX", MessageOutcome.FAILED), equalTo(1L));
+        assertThat(metrics.getBytes(taskName, "INBOX"), greaterThan(0L));
+        assertThat(metrics.getLatency(taskName, "INBOX", TaskPhase.CONNECT).getCount(), equalTo(1L));
+        assertThat(metrics.getLatency(taskName, "INBOX", TaskPhase.SEARCH).getCount(), equalTo(1L));
+        assertThat(metrics.getLatency(taskName, "INBOX", TaskPhase.HANDLE).getCount(), equalTo(2L));
+        LatencyHistogram task = metrics.getLatency(taskName, "INBOX", TaskPhase.TASK);
+        assertThat(task.getCount(), equalTo(1L));
+        assertThat(task.getValueAtPercentile(99), allOf(greaterThan(0L), lessThanOrEqualTo(task.getMax())));
+    }
+
+    @Test
+    public void executorWillPrefetchEmailsInChunksOfPrefetchSize() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        for (int i = 3; i <= 5; i++)
+            inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f" + i + "@localhost", "s" + i, "c" + i), new Flags(), new Date());
+        String taskName = "ExecuteForEachEmailImapFolderTask";
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setRetrieveSeenEmails(true);
+        executor.setPrefetchSize(2);
+        InMemoryMailboxMetrics metrics = new InMemoryMailboxMetrics();
+        executor.setMetrics(metrics);
+        List<String> handled = new ArrayList<>();
+        executor.executeForEachEmail(message -> {
+            assertThat(message.isSet(Flags.Flag.SEEN), equalTo(false));
+            assertThat(message.getSize(), greaterThan(0));
+            handled.add(message.getSubject());
+        });
+
+        assertThat(handled, contains("s1", "s2", "s3", "s4", "s5"));
+        assertThat(metrics.getLatency(taskName, "INBOX", TaskPhase.FETCH).getCount(), equalTo(3L));
+
+        executor.setPrefetchSize(0);
+        executor.setMetrics(metrics = new InMemoryMailboxMetrics());
+        handled.clear();
+        executor.executeForEachEmail(message -> handled.add(message.getSubject()));
+
+        assertThat(handled, contains("s1", "s2", "s3", "s4", "s5"));
+        assertThat(metrics.getLatency(taskName, "INBOX", TaskPhase.FETCH).getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void executorWillEmitFlightRecorderEventsForTaskPhases() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+
+        Path recordingFile = Files.createTempFile("tabellarium", ".jfr");
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("org.theparanoidtimes.tabellarium.ImapPhase");
+            recording.start();
+            getMailboxTaskExecutor().retrieveEmails();
+            recording.stop();
+            recording.dump(recordingFile);
+            events = RecordingFile.readAllEvents(recordingFile);
+        } finally {
+            Files.delete(recordingFile);
+        }
+
+        List<String> phases = new ArrayList<>();
+        List<Integer> fetchedMessages = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            assertThat(event.getString("taskName"), equalTo("RetrieveEmailsImapFolderTask"));
+            phases.add(event.getString("phase"));
+            if (event.getString("phase").equals("FETCH") && event.getLong("messageSize") > 0)
+                fetchedMessages.add(event.getInt("messageNumber"));
+        }
+        assertThat(phases, hasItems("CONNECT", "FOLDER_OPEN", "SEARCH", "FETCH", "TASK"));
+        assertThat(fetchedMessages, contains(1, 2));
+        assertThat(Collections.frequency(phases, "TASK"), equalTo(1));
+    }
+
     // Handler tests
 
     @Test
@@ -163,6 +460,495 @@ public class ImapMailboxFolderTaskExecutorTest {
         assertThat(inbox.getRecentCount(false), equalTo(2));
     }
 
+    @Test
+    public void executorWillNotOverrideSeenFlagChangedByHandler() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        MailboxTaskExecutor executor = getMailboxTaskExecutor();
+
+        executor.executeForEachEmail(new ChangeMessageFlagEmailHandler("seen", false));
+        assertThat(inbox.getUnseenCount(), equalTo(2));
+
+        executor.executeForEachEmail(message -> {
+            message.getContent();
+            message.setFlag(Flags.Flag.SEEN, false);
+        });
+        assertThat(inbox.getUnseenCount(), equalTo(2));
+
+        executor.executeForEachEmail(message -> {});
+        executor.executeForEachBatch(messages -> BatchResult.success());
+        assertThat(inbox.getUnseenCount(), equalTo(2));
+    }
+
+    @Test
+    public void unlinkedHandlerWillHandleFullCopiesUsableAfterItReturns() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+
+        List<Message> copies = new ArrayList<>();
+        getMailboxTaskExecutor().executeForEachEmail(new UnlinkedEmailHandler() {
+            @Override
+            protected void doHandleEmail(Message message) {
+                copies.add(message);
+            }
+        });
+
+        assertThat(copies, hasSize(2));
+        assertThat(copies.get(0), not(instanceOf(DetachedMimeMessage.class)));
+        assertThat(copies.get(0).getContent(), equalTo((Object) "c1"));
+        assertThat(copies.get(1).getContent(), equalTo((Object) "c2"));
+        assertThat(inbox.getUnseenCount(), equalTo(0));
+    }
+
+    @Test
+    public void unlinkedHandlerWillDownloadBodyOnlyWhenItIsRead() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+
+        List<DetachedMimeMessage> copies = new ArrayList<>();
+        List<Boolean> loaded = new ArrayList<>();
+        List<Object> contents = new ArrayList<>();
+        getMailboxTaskExecutor().executeForEachEmail(new LazyUnlinkedEmailHandler() {
+            @Override
+            protected void doHandleEmail(Message message) throws Exception {
+                DetachedMimeMessage copy = (DetachedMimeMessage) message;
+                copies.add(copy);
+                if (message.getSubject().equals("s2"))
+                    contents.add(message.getContent());
+                loaded.add(copy.isLoaded());
+            }
+        });
+
+        assertThat(copies, hasSize(2));
+        assertThat(loaded, contains(false, true));
+        assertThat(copies.get(0).isHeadersOnly(), equalTo(true));
+        assertThat(copies.get(1).isHeadersOnly(), equalTo(false));
+        assertThat(contents, contains((Object) "c2"));
+        assertThat(inbox.getUnseenCount(), equalTo(0));
+    }
+
+    @Test
+    public void executorWillSpillLargeEmailsToTemporaryFiles() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        MimeMessage large = mimeMessageWithFromSubjectAndContent("f3@localhost", "s3", new String(new char[4096]).replace('\0', 'x'));
+        inbox.appendMessage(large, new Flags(), new Date());
+        Path spoolDirectory = Files.createTempDirectory("tabellarium-spool");
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setMessageSpool(new MessageSpool(1024, spoolDirectory.toFile()));
+        List<Message> emails = executor.retrieveEmails();
+
+        assertThat(emails, hasSize(3));
+        assertThat(((MimeMessage) emails.get(0)).getRawInputStream(), not(instanceOf(SharedFileInputStream.class)));
+        assertThat(((MimeMessage) emails.get(2)).getRawInputStream(), instanceOf(SharedFileInputStream.class));
+        assertThat(emails.get(0).getContent(), equalTo((Object) "c1"));
+        assertThat(((String) emails.get(2).getContent()).length(), equalTo(4096));
+        assertThat(emails.get(2).getSubject(), equalTo("s3"));
+        emails.forEach(MessageSpool::release);
+        assertThat(emails.get(0).getContent(), equalTo((Object) "c1"));
+        try {
+            emails.get(2).getContent();
+            fail("The content of a released spilled copy must not be readable!");
+        } catch (Exception e) {
+            // The temporary file is closed.
+        }
+        try (Stream<Path> spooledFiles = Files.list(spoolDirectory)) {
+            assertThat(spooledFiles.count(), equalTo(0L));
+        } finally {
+            Files.delete(spoolDirectory);
+        }
+    }
+
+    @Test
+    public void executorWillFetchOnlyHeadersInHeadersFetchMode() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setFetchMode(FetchMode.HEADERS);
+        List<Message> emails = executor.retrieveEmails();
+
+        assertThat(emails, hasSize(2));
+        assertThat(emails.get(0).getSubject(), equalTo("s1"));
+        assertThat(emails.get(0).getFrom()[0].toString(), equalTo("f1@localhost"));
+        assertThat(((DetachedMimeMessage) emails.get(0)).isHeadersOnly(), equalTo(true));
+        assertThat(emails.get(0).getSize(), equalTo(-1));
+        try {
+            emails.get(0).getContent();
+            fail("Header-only copies should have no body!");
+        } catch (MessagingException e) {
+            assertThat(e.getMessage(), containsString("only the headers"));
+        }
+        assertThat(inbox.getUnseenCount(), equalTo(0));
+
+        greenMail.purgeEmailFromAllMailboxes();
+        appendTwoUnseenMessagesToUserInbox();
+        List<Object> contents = new ArrayList<>();
+        executor.setFetchMode(FetchMode.STRUCTURE);
+        executor.executeForEachEmail(message -> contents.add(message.getContent()));
+
+        assertThat(contents, contains((Object) "c1", "c2"));
+        assertThat(inbox.getUnseenCount(), equalTo(0));
+    }
+
+    @Test
+    public void executorWillRetrieveOnlyEmailsMatchingSearchFilter() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        inbox.appendMessage(mimeMessageWithFromSubjectAndContent("f3@localhost", "s2", "c3"), new Flags(Flags.Flag.DELETED), new Date());
+
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setSearchFilter(new SubjectTerm("s2"));
+        List<Message> emails = executor.retrieveEmails();
+
+        assertThat(emails, hasSize(1));
+        assertThat(emails.get(0).getContent(), equalTo((Object) "c2"));
+        assertThat(inbox.getUnseenCount(), equalTo(1));
+        assertThat(executor.areThereRemainingEmails(), equalTo(false));
+
+        executor.setSearchFilter(null);
+        emails = executor.retrieveEmails();
+        assertThat(emails, hasSize(1));
+        assertThat(emails.get(0).getSubject(), equalTo("s1"));
+    }
+
+    @Test
+    public void asyncExecutorWillCompleteTasksAndStopCancelledOnes() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        AsyncMailboxTaskExecutorAdapter asyncExecutor = new AsyncMailboxTaskExecutorAdapter(getMailboxTaskExecutor(), ioExecutor);
+
+        assertThat(asyncExecutor.areThereRemainingEmailsAsync().get(5, TimeUnit.SECONDS), equalTo(true));
+
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> handled = new ArrayList<>();
+        CompletableFuture<Void> future = asyncExecutor.executeForEachEmailAsync(message -> {
+            handled.add(message.getSubject());
+            started.countDown();
+            new CountDownLatch(1).await();
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(future.cancel(true), equalTo(true));
+        ioExecutor.shutdown();
+        assertThat(ioExecutor.awaitTermination(5, TimeUnit.SECONDS), equalTo(true));
+
+        assertThat(future.isCancelled(), equalTo(true));
+        assertThat(handled, contains("s1"));
+        assertThat(inbox.getUnseenCount(), equalTo(2));
+    }
+
+    @Test
+    public void executorWillRunShardsAndHandlersOnVirtualThreadsWhenSupported() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+
+        if (!VirtualThreads.isSupported()) {
+            try {
+                executor.setVirtualThreads(true);
+                fail("Virtual threads should not be supported!");
+            } catch (UnsupportedOperationException e) {
+                assertThat(executor.isVirtualThreads(), equalTo(false));
+            }
+            return;
+        }
+
+        executor.setVirtualThreads(true);
+        executor.setShardCount(2);
+        executor.setDeleteAfterRetrieval(true);
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        List<Object> handlerThreadsVirtual = Collections.synchronizedList(new ArrayList<>());
+        VirtualThreads.newAsyncAdapter(executor).executeForEachEmailAsync(message -> {
+            handled.add(message.getSubject());
+            handlerThreadsVirtual.add(isVirtual.invoke(Thread.currentThread()));
+        }).get(5, TimeUnit.SECONDS);
+
+        assertThat(handled, containsInAnyOrder("s1", "s2"));
+        assertThat(handlerThreadsVirtual, contains(true, true));
+        assertThat(inbox.getMessageCount(), equalTo(0));
+    }
+
+    @Test
+    public void publisherWillFetchOnlyRequestedEmailsAndApplyFlagsOnAcknowledgement() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        executor.setDeleteAfterRetrieval(true);
+        ExecutorService deliveryExecutor = Executors.newSingleThreadExecutor();
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch completed = new CountDownLatch(1);
+
+        executor.publishEmails(deliveryExecutor).subscribe(new Flow.Subscriber<Message>() {
+            private ImapMessageSubscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = (ImapMessageSubscription) subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Message message) {
+                published.add(subject(message));
+                subscription.acknowledge(message);
+                subscription.cancel();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        executor.publishEmails(deliveryExecutor).subscribe(new Flow.Subscriber<Message>() {
+            private ImapMessageSubscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = (ImapMessageSubscription) subscription;
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Message message) {
+                published.add(subject(message));
+                subscription.reject(message, new Exception("Rejected!"));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        assertThat(completed.await(5, TimeUnit.SECONDS), equalTo(true));
+        deliveryExecutor.shutdown();
+        assertThat(published, contains("s1", "s2"));
+        assertThat(inbox.getMessageCount(), equalTo(1));
+        assertThat(inbox.getUnseenCount(), equalTo(1));
+    }
+
+    @Test
+    public void publisherWillLeaveUnacknowledgedEmailsUnseenAfterAnError() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+        ExecutorService deliveryExecutor = Executors.newSingleThreadExecutor();
+        List<Object> contents = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> unseenWhilePending = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch failed = new CountDownLatch(1);
+
+        executor.publishEmails(deliveryExecutor).subscribe(new Flow.Subscriber<Message>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Message message) {
+                try {
+                    contents.add(message.getContent());
+                    unseenWhilePending.add(inbox.getUnseenCount());
+                } catch (Exception e) {
+                    contents.add(e);
+                }
+                subscription.request(0);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                failed.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        assertThat(failed.await(5, TimeUnit.SECONDS), equalTo(true));
+        deliveryExecutor.shutdown();
+        assertThat(contents, contains((Object) "c1"));
+        assertThat(unseenWhilePending, contains(2));
+        assertThat(inbox.getUnseenCount(), equalTo(2));
+    }
+
+    @Test
+    public void schedulerWillPollMailboxAndBackOffWhenIdle() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        InMemoryMailboxMetrics metrics = new InMemoryMailboxMetrics();
+        CountDownLatch handled = new CountDownLatch(2);
+
+        try (MailboxScheduler scheduler = new MailboxScheduler(1)) {
+            scheduler.setPollInterval(50, 400);
+            scheduler.setJitter(0);
+            scheduler.setMaxPollsPerHost(1);
+            scheduler.setMetrics(metrics);
+            ScheduledMailbox mailbox = scheduler.schedule(getImapMailboxFolderTaskExecutor(), message -> {
+                message.getContent();
+                handled.countDown();
+            });
+
+            assertThat(handled.await(5, TimeUnit.SECONDS), equalTo(true));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mailbox.getPollInterval() < 400 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            mailbox.cancel();
+
+            assertThat(mailbox.getName(), equalTo("user@localhost/INBOX"));
+            assertThat(mailbox.getPollInterval(), equalTo(400L));
+            assertThat(metrics.getLatency("ScheduledPoll", mailbox.getName(), TaskPhase.POLL_LAG).getCount(), greaterThan(1L));
+            assertThat(inbox.getUnseenCount(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void executorWillResumeInterruptedTaskFromProcessingJournal() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        long[] uids = inbox.getMessageUids();
+        inbox.getMessages().get(1).setFlag(Flags.Flag.SEEN, true);
+        Path journalFile = Files.createTempFile("tabellarium", ".journal");
+        String folderKey = "user@localhost@localhost/INBOX";
+        String records = "B " + inbox.getUidValidity() + " " + uids[0] + " " + folderKey + "\n"
+                + "B " + inbox.getUidValidity() + " " + uids[1] + " " + folderKey + "\n"
+                + "D " + inbox.getUidValidity() + " " + uids[0] + " " + folderKey + "\n"
+                + "D " + inbox.getUidValidity() + " " + uids[1];
+        Files.write(journalFile, records.getBytes(StandardCharsets.UTF_8));
+
+        try (ProcessingJournal journal = new ProcessingJournal(journalFile)) {
+            ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+            executor.setProcessingJournal(journal);
+            executor.setRetrieveSeenEmails(false);
+            List<String> handled = new ArrayList<>();
+            executor.executeForEachEmail(new LazyUnlinkedEmailHandler() {
+                @Override
+                protected void doHandleEmail(Message message) throws Exception {
+                    handled.add(message.getSubject());
+                }
+            });
+
+            assertThat(handled, contains("s2"));
+            assertThat(inbox.getUnseenCount(), equalTo(0));
+            assertThat(Files.size(journalFile), equalTo(0L));
+        } finally {
+            Files.delete(journalFile);
+        }
+    }
+
+    @Test
+    public void processingJournalWillKeepOnlyRecordsOfUnfinishedTasks() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        Path journalFile = Files.createTempFile("tabellarium", ".journal");
+        String abandoned = "B 1 7 user@localhost@localhost/Archive\n";
+        Files.write(journalFile, abandoned.getBytes(StandardCharsets.UTF_8));
+
+        try (ProcessingJournal journal = new ProcessingJournal(journalFile)) {
+            ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+            executor.setProcessingJournal(journal);
+            executor.executeForEachEmail(Message::getContent);
+
+            assertThat(inbox.getUnseenCount(), equalTo(0));
+            assertThat(new String(Files.readAllBytes(journalFile), StandardCharsets.UTF_8), equalTo(abandoned));
+        } finally {
+            Files.delete(journalFile);
+        }
+    }
+
+    @Test
+    public void processingJournalWillSurviveInterruptedHandler() throws Exception {
+        appendTwoUnseenMessagesToUserInbox();
+        Path journalFile = Files.createTempFile("tabellarium", ".journal");
+
+        try (ProcessingJournal journal = new ProcessingJournal(journalFile)) {
+            ImapMailboxFolderTaskExecutor executor = getImapMailboxFolderTaskExecutor();
+            executor.setProcessingJournal(journal);
+            executor.setRetrieveSeenEmails(false);
+            try {
+                executor.executeForEachEmail(message -> {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedException();
+                });
+                fail("The interrupted task should fail!");
+            } catch (MailBoxTaskExecutorException e) {
+                assertThat(Thread.interrupted(), equalTo(true));
+            }
+            assertThat(inbox.getUnseenCount(), equalTo(2));
+            assertThat(Files.size(journalFile), greaterThan(0L));
+
+            List<String> handled = new ArrayList<>();
+            executor.executeForEachEmail(message -> {
+                handled.add(message.getSubject());
+                message.getContent();
+            });
+
+            assertThat(handled, contains("s1", "s2"));
+            assertThat(inbox.getUnseenCount(), equalTo(0));
+            assertThat(Files.size(journalFile), equalTo(0L));
+        } finally {
+            Files.delete(journalFile);
+        }
+    }
+
+    @Test
+    public void deduplicatingHandlerWillHandleEmailsWithSameMessageIdOnlyOnce() throws Exception {
+        for (String subject : new String[]{"s1", "s2", "s3"}) {
+            MimeMessage mimeMessage = mimeMessageWithFromSubjectAndContent("f1@localhost", subject, "c1");
+            mimeMessage.saveChanges();
+            mimeMessage.setHeader("Message-ID", subject.equals("s3") ? "<unique@localhost>" : "<duplicate@localhost>");
+            inbox.appendMessage(mimeMessage, new Flags(), new Date());
+        }
+        Path storeFile = Files.createTempFile("tabellarium", ".seen");
+
+        try {
+            List<String> handled = new ArrayList<>();
+            try (FileSeenMessageStore store = new FileSeenMessageStore(storeFile, TimeUnit.HOURS.toMillis(1))) {
+                MailboxTaskExecutor executor = getMailboxTaskExecutor();
+                executor.executeForEachEmail(new DeduplicatingEmailHandler(message -> {
+                    handled.add(message.getSubject());
+                    message.getContent();
+                }, store, 1000, 0.01));
+                assertThat(handled, contains("s1", "s3"));
+                assertThat(inbox.getUnseenCount(), equalTo(1));
+            }
+
+            try (FileSeenMessageStore store = new FileSeenMessageStore(storeFile, TimeUnit.HOURS.toMillis(1))) {
+                assertThat(store.size(), equalTo(2));
+                MailboxTaskExecutor executor = getMailboxTaskExecutor();
+                executor.setRetrieveSeenEmails(true);
+                executor.executeForEachEmail(new DeduplicatingEmailHandler(message -> handled.add(message.getSubject()), store));
+                assertThat(handled, contains("s1", "s3"));
+            }
+        } finally {
+            Files.delete(storeFile);
+        }
+    }
+
+    @Test
+    public void deduplicatingHandlerWillFindStoredKeysForgottenByItsFilter() throws Exception {
+        for (String subject : new String[]{"s1", "s2"}) {
+            MimeMessage mimeMessage = mimeMessageWithFromSubjectAndContent("f1@localhost", subject, "c1");
+            mimeMessage.saveChanges();
+            mimeMessage.setHeader("Message-ID", "<" + subject + "@localhost>");
+            inbox.appendMessage(mimeMessage, new Flags(), new Date());
+        }
+        Path storeFile = Files.createTempFile("tabellarium", ".seen");
+
+        try (FileSeenMessageStore store = new FileSeenMessageStore(storeFile, TimeUnit.HOURS.toMillis(1), 4)) {
+            for (String key : new String[]{"<old@localhost>", "<s1@localhost>", "<k1@localhost>", "<k2@localhost>", "<k3@localhost>"})
+                store.add(key);
+            assertThat(store.size(), equalTo(4));
+            assertThat(store.contains("<old@localhost>"), equalTo(false));
+
+            List<String> handled = new ArrayList<>();
+            MailboxTaskExecutor executor = getMailboxTaskExecutor();
+            executor.executeForEachEmail(new DeduplicatingEmailHandler(message -> handled.add(message.getSubject()), store, 1, 0.01));
+            assertThat(handled, contains("s2"));
+        } finally {
+            Files.delete(storeFile);
+        }
+    }
+
     // Utilities
 
     private void appendTwoUnseenMessagesToUserInbox() throws Exception {
@@ -173,9 +959,21 @@ public class ImapMailboxFolderTaskExecutorTest {
     }
 
     private MailboxTaskExecutor getMailboxTaskExecutor() {
+        return getImapMailboxFolderTaskExecutor();
+    }
+
+    private ImapMailboxFolderTaskExecutor getImapMailboxFolderTaskExecutor() {
         return new ImapMailboxFolderTaskExecutor("localhost", 30993, "user@localhost", "password", "INBOX", false);
     }
 
+    private static String subject(Message message) {
+        try {
+            return message.getSubject();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private MimeMessage mimeMessageWithFromSubjectAndContent(String from, String subject, String content) throws Exception {
         MimeMessage mimeMessage = new MimeMessage(Session.getInstance(greenMail.getImap().getServerSetup().configureJavaMailSessionProperties(null, false)));
         mimeMessage.setFrom(new InternetAddress(from));
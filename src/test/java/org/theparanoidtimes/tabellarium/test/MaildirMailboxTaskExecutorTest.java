@@ -0,0 +1,101 @@
+package org.theparanoidtimes.tabellarium.test;
+
+import org.theparanoidtimes.tabellarium.api.BatchResult;
+import org.theparanoidtimes.tabellarium.maildir.MaildirMailboxTaskExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class MaildirMailboxTaskExecutorTest {
+
+    private Path maildir;
+
+    @Before
+    public void createMaildir() throws Exception {
+        maildir = Files.createTempDirectory("tabellarium-maildir");
+        Files.createDirectory(maildir.resolve("new"));
+        Files.createDirectory(maildir.resolve("cur"));
+        Files.createDirectory(maildir.resolve("tmp"));
+        writeMessage("new/1000.M1P1.localhost", "s1");
+        writeMessage("cur/1001.M1P1.localhost:2,S", "s2");
+        writeMessage("cur/1002.M1P1.localhost:2,F", "s3");
+        writeMessage("cur/1003.M1P1.localhost:2,ST", "s4");
+        writeMessage("tmp/1004.M1P1.localhost", "s5");
+    }
+
+    @After
+    public void deleteMaildir() throws Exception {
+        try (Stream<Path> files = Files.walk(maildir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(file);
+        }
+    }
+
+    @Test
+    public void executorWillHandleUnseenEmailsAndMoveThemToCurAsSeen() throws Exception {
+        MaildirMailboxTaskExecutor executor = new MaildirMailboxTaskExecutor(maildir);
+        List<String> handled = new ArrayList<>();
+        List<Boolean> flagged = new ArrayList<>();
+        executor.executeForEachEmail(message -> {
+            handled.add(message.getSubject());
+            flagged.add(message.isSet(Flags.Flag.FLAGGED));
+        });
+
+        assertThat(handled, contains("s1", "s3"));
+        assertThat(flagged, contains(false, true));
+        assertThat(list("new"), empty());
+        assertThat(list("cur"), containsInAnyOrder("1000.M1P1.localhost:2,S", "1001.M1P1.localhost:2,S", "1002.M1P1.localhost:2,FS", "1003.M1P1.localhost:2,ST"));
+        assertThat(executor.areThereRemainingEmails(), equalTo(false));
+    }
+
+    @Test
+    public void executorWillRetrieveSeenEmailsInBatchesAndDeleteThem() throws Exception {
+        MaildirMailboxTaskExecutor executor = new MaildirMailboxTaskExecutor(maildir);
+        executor.setRetrieveSeenEmails(true);
+        executor.setDeleteAfterRetrieval(true);
+        executor.setBatchSize(2);
+
+        List<Message> first = executor.retrieveEmails();
+        assertThat(first.size(), equalTo(2));
+        assertThat(first.get(0).getSubject(), equalTo("s1"));
+        assertThat(first.get(1).getSubject(), equalTo("s2"));
+
+        List<String> handled = new ArrayList<>();
+        executor.executeForEachBatch(messages -> {
+            for (Message message : messages)
+                handled.add(message.getSubject());
+            return BatchResult.success();
+        });
+        assertThat(handled, contains("s3"));
+        assertThat(list("new"), empty());
+        assertThat(list("cur"), contains("1003.M1P1.localhost:2,ST"));
+    }
+
+    // Utilities
+
+    private void writeMessage(String file, String subject) throws Exception {
+        String content = "From: f@localhost\r\nSubject: " + subject + "\r\n\r\nc\r\n";
+        Files.write(maildir.resolve(file), content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private List<String> list(String directory) throws Exception {
+        try (Stream<Path> files = Files.list(maildir.resolve(directory))) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+}
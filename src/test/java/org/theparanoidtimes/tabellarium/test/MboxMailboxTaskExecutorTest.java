@@ -0,0 +1,75 @@
+package org.theparanoidtimes.tabellarium.test;
+
+import org.theparanoidtimes.tabellarium.mbox.MboxMailboxTaskExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Message;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class MboxMailboxTaskExecutorTest {
+
+    private Path mbox;
+
+    @Before
+    public void createMbox() throws Exception {
+        mbox = Files.createTempFile("tabellarium", ".mbox");
+        Files.write(mbox, (message("s1", "", "c1\n>From the quoted line\n")
+                + message("s2", "Status: RO\n", "c2\n")
+                + message("s3", "X-Status: D\n", "c3\n")
+                + message("s4", "X-Status: F\n", "c4\n")).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @After
+    public void deleteMbox() throws Exception {
+        Files.deleteIfExists(mbox);
+        Files.deleteIfExists(mbox.resolveSibling(mbox.getFileName() + ".idx"));
+    }
+
+    @Test
+    public void executorWillHandleEmailsOnceAndScanOnlyAppendedEmails() throws Exception {
+        MboxMailboxTaskExecutor executor = new MboxMailboxTaskExecutor(mbox);
+        List<String> handled = new ArrayList<>();
+        executor.executeForEachEmail(message -> handled.add(message.getSubject()));
+
+        assertThat(handled, contains("s1", "s4"));
+        assertThat(Files.exists(executor.getIndexFile()), equalTo(true));
+        assertThat(executor.areThereRemainingEmails(), equalTo(false));
+
+        Files.write(mbox, message("s5", "", "c5\n").getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        List<Message> retrieved = executor.retrieveEmails();
+        assertThat(retrieved.size(), equalTo(1));
+        assertThat(retrieved.get(0).getSubject(), equalTo("s5"));
+        assertThat(retrieved.get(0).getContent(), equalTo("c5\n\n"));
+    }
+
+    @Test
+    public void executorWillSplitFileIntoShardsAndKeepMessageContent() throws Exception {
+        MboxMailboxTaskExecutor executor = new MboxMailboxTaskExecutor(mbox);
+        executor.setRetrieveSeenEmails(true);
+        executor.setShardCount(3);
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        executor.executeForEachEmail(message -> handled.add(message.getSubject() + ":" + message.getContent()));
+
+        assertThat(handled, containsInAnyOrder("s1:c1\n>From the quoted line\n\n", "s2:c2\n\n", "s4:c4\n\n"));
+    }
+
+    // Utilities
+
+    private static String message(String subject, String status, String content) {
+        return "From f@localhost Thu Jan  1 00:00:00 2026\n"
+                + "From: f@localhost\nSubject: " + subject + "\n" + status
+                + "Content-Type: text/plain\n\n" + content + "\n";
+    }
+}
@@ -0,0 +1,116 @@
+package org.theparanoidtimes.tabellarium.test;
+
+import com.icegreen.greenmail.imap.ImapHostManager;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.theparanoidtimes.tabellarium.handlers.FileSeenMessageStore;
+import org.theparanoidtimes.tabellarium.pop3.PipeliningMode;
+import org.theparanoidtimes.tabellarium.pop3.Pop3MailboxTaskExecutor;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class Pop3MailboxTaskExecutorTest {
+
+    private static GreenMail greenMail;
+    private static MailFolder inbox;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ServerSetup serverSetup = new ServerSetup(30110, "localhost", "pop3");
+        greenMail = new GreenMail(serverSetup);
+        GreenMailUser user = greenMail.setUser("user@localhost", "user@localhost", "password");
+        ImapHostManager imapHostManager = greenMail.getManagers().getImapHostManager();
+        inbox = imapHostManager.getInbox(user);
+        greenMail.start();
+    }
+
+    @After
+    public void cleanUpMailbox() throws Exception {
+        greenMail.purgeEmailFromAllMailboxes();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        greenMail.stop();
+    }
+
+    @Test
+    public void executorWillHandleEachEmailOnceUsingPersistedUidls() throws Exception {
+        appendMessagesToUserInbox("s1", "s2");
+        Path storeFile = Files.createTempFile("tabellarium", ".uidl");
+        try (FileSeenMessageStore store = new FileSeenMessageStore(storeFile, 60_000)) {
+            Pop3MailboxTaskExecutor executor = getPop3MailboxTaskExecutor();
+            executor.setSeenUidlStore(store);
+            List<String> handled = new ArrayList<>();
+            executor.executeForEachEmail(message -> handled.add(message.getSubject()));
+
+            assertThat(handled, contains("s1", "s2"));
+            assertThat(store.size(), equalTo(2));
+            assertThat(inbox.getMessageCount(), equalTo(2));
+
+            appendMessagesToUserInbox("s3");
+            Pop3MailboxTaskExecutor restarted = getPop3MailboxTaskExecutor();
+            restarted.setSeenUidlStore(store);
+            List<Message> retrieved = restarted.retrieveEmails();
+            assertThat(retrieved.size(), equalTo(1));
+            assertThat(retrieved.get(0).getSubject(), equalTo("s3"));
+            assertThat(restarted.areThereRemainingEmails(), equalTo(false));
+        } finally {
+            Files.deleteIfExists(storeFile);
+        }
+    }
+
+    @Test
+    public void executorWillPipelineRetrievalsAndDeleteOnlyHandledEmails() throws Exception {
+        appendMessagesToUserInbox("s1", "s2", "s3", "s4", "s5");
+        Pop3MailboxTaskExecutor executor = getPop3MailboxTaskExecutor();
+        executor.setPipeliningMode(PipeliningMode.ALWAYS);
+        executor.setPipeliningWindow(2);
+        executor.setDeleteAfterRetrieval(true);
+        List<String> handled = new ArrayList<>();
+        executor.executeForEachEmail(message -> {
+            if (message.getSubject().equals("s3"))
+                throw new Exception("Handling failed!");
+            handled.add(message.getSubject());
+        });
+
+        assertThat(handled, contains("s1", "s2", "s4", "s5"));
+        assertThat(inbox.getMessageCount(), equalTo(1));
+        assertThat(inbox.getMessages().get(0).getMimeMessage().getSubject(), equalTo("s3"));
+    }
+
+    // Utilities
+
+    private Pop3MailboxTaskExecutor getPop3MailboxTaskExecutor() {
+        return new Pop3MailboxTaskExecutor("localhost", 30110, "user@localhost", "password", false);
+    }
+
+    private void appendMessagesToUserInbox(String... subjects) throws Exception {
+        for (String subject : subjects) {
+            MimeMessage mimeMessage = new MimeMessage(Session.getInstance(greenMail.getPop3().getServerSetup().configureJavaMailSessionProperties(null, false)));
+            mimeMessage.setFrom(new InternetAddress("f@localhost"));
+            mimeMessage.setSubject(subject);
+            mimeMessage.setText("c");
+            inbox.appendMessage(mimeMessage, new Flags(), new Date());
+        }
+    }
+}